@@ -3,21 +3,63 @@ package simpledb;
 import java.util.*;
 
 /**
- * The Aggregation operator that computes an aggregate (e.g., sum, avg, max,
- * min). Note that we only support aggregates over a single column, grouped by a
- * single column.
+ * The Aggregation operator that computes aggregates (e.g., sum, avg, max,
+ * min). Any number of aggregates, each over a single column, can be computed
+ * in one pass over the child, grouped by any number of columns.
+ * <p>
+ * Groups are kept in memory as long as the {@link MemoryManager} grants room
+ * for them. When it refuses, the partial aggregates gathered so far are
+ * written to NUM_PARTITIONS spill files by hash of the group value, the
+ * in-memory groups are dropped, and aggregation continues. Once the child is
+ * exhausted each partition is merged on its own (and split again if it still
+ * does not fit), and its groups are returned before the next partition is
+ * read. Averages are carried between passes as SUM_COUNT partials, whose sum
+ * and count are longs split over two int fields each.
+ * <p>
+ * As long as nothing spills the groups are aggregated in one pass with the
+ * final operators.
+ * <p>
+ * COUNT_DISTINCT and the percentiles keep a sketch per group that does not
+ * fit in a partial tuple, so an Aggregate computing one of them never
+ * spills. Its groups are still charged to the MemoryManager, sketches
+ * included; once the budget is used up they are force-reserved and
+ * aggregation goes on in memory, leaving less memory to the other
+ * operators of the query.
  */
 public class Aggregate extends Operator {
 
     private static final long serialVersionUID = 1L;
 
     DbIterator child;
-    int aggregateField;
-    int groupingField;
-    Aggregator.Op aop;
+    int[] aggregateFields;
+    int[] groupFields;
+    Aggregator.Op[] aops;
     TupleDesc td;
 
     private DbIterator content;
+
+    // number of partitions the partial aggregates are split into when they spill
+    static final int NUM_PARTITIONS = Join.NUM_PARTITIONS;
+    // partitions are split again at most this many times before we merge them regardless of memory
+    static final int MAX_PARTITION_LEVEL = Join.MAX_PARTITION_LEVEL;
+
+    private boolean spilled; // content is produced one spilled partition at a time
+    private long reserved; // bytes of the MemoryManager held by the in-memory groups
+    private SpillFile[] spillParts; // partial aggregates of the first pass, once it has spilled
+    private LinkedList<AggregatePartition> partitions; // spilled partitions still to be merged
+    private AggregatePartition current;
+
+    /** A spill file of partial aggregates whose groups hash to the same partition. */
+    static class AggregatePartition {
+        SpillFile file;
+        int level;
+
+        AggregatePartition(SpillFile file, int level) {
+            this.file = file;
+            this.level = level;
+        }
+    }
+
     /**
      * Constructor.
      * 
@@ -37,21 +79,55 @@ public class Aggregate extends Operator {
      *            The aggregation operator to use
      */
     public Aggregate(DbIterator child, int afield, int gfield, Aggregator.Op aop) {
+        this(child, gfield == Aggregator.NO_GROUPING ? new int[0] : new int[] {gfield},
+                new int[] {afield}, new Aggregator.Op[] {aop});
+    }
+
+    /**
+     * Constructor for several aggregates computed together.
+     *
+     * @param child
+     *            The DbIterator that is feeding us tuples.
+     * @param gfields
+     *            The columns over which we are grouping the result; empty if
+     *            there is no grouping
+     * @param afields
+     *            The columns over which we are computing the aggregates, one
+     *            per aggregate
+     * @param aops
+     *            The aggregation operators to use, one per aggregate
+     * @throws IllegalArgumentException if there are no aggregates, or afields
+     *             and aops differ in length
+     */
+    public Aggregate(DbIterator child, int[] gfields, int[] afields, Aggregator.Op[] aops) {
+        if(afields.length == 0 || afields.length != aops.length) {
+            throw new IllegalArgumentException("need one aggregate operator per aggregate field");
+        }
 	    this.child = child;
-        this.aggregateField = afield;
-        this.groupingField = gfield;
-        this.aop = aop;
+        this.aggregateFields = afields;
+        this.groupFields = gfields;
+        this.aops = aops;
         this.td = child.getTupleDesc();
         this.content = null;
+        this.reserved = 0;
+        this.partitions = new LinkedList<AggregatePartition> ();
     }
 
     /**
-     * @return If this aggregate is accompanied by a groupby, return the groupby
-     *         field index in the <b>INPUT</b> tuples. If not, return
+     * @return If this aggregate is accompanied by a groupby, return the (first)
+     *         groupby field index in the <b>INPUT</b> tuples. If not, return
      *         {@link simpledb.Aggregator#NO_GROUPING}
      * */
     public int groupField() {
-	    return this.groupingField; // NO_GROUPING should be taken care of by this.
+	    return this.groupFields.length == 0 ? Aggregator.NO_GROUPING : this.groupFields[0];
+    }
+
+    /**
+     * @return the groupby field indexes in the <b>INPUT</b> tuples, which are
+     *         also the first fields of the <b>OUTPUT</b> tuples
+     * */
+    public int[] groupFields() {
+        return this.groupFields;
     }
 
     /**
@@ -60,98 +136,381 @@ public class Aggregate extends Operator {
      *         null;
      * */
     public String groupFieldName() {
-	    if(this.groupingField == Aggregator.NO_GROUPING) {
+	    if(this.groupFields.length == 0) {
             return null;
         } else {
-            return this.td.getFieldName(this.groupingField);
+            return this.td.getFieldName(this.groupFields[0]);
         }
     }
 
     /**
-     * @return the aggregate field
+     * @return the (first) aggregate field
      * */
     public int aggregateField() {
-        return this.aggregateField;
+        return this.aggregateFields[0];
+    }
+
+    /**
+     * @return the aggregate fields, in the order of the aggregate values in
+     *         the <b>OUTPUT</b> tuples
+     * */
+    public int[] aggregateFields() {
+        return this.aggregateFields;
     }
 
     /**
-     * @return return the name of the aggregate field in the <b>OUTPUT</b>
-     *         tuples
+     * @return return the name of the (first) aggregate field in the
+     *         <b>OUTPUT</b> tuples
      * */
     public String aggregateFieldName() {
-        return this.td.getFieldName(this.aggregateField);
+        return this.td.getFieldName(this.aggregateFields[0]);
     }
 
     /**
-     * @return return the aggregate operator
+     * @return return the (first) aggregate operator
      * */
     public Aggregator.Op aggregateOp() {
-        return this.aop;
+        return this.aops[0];
+    }
+
+    /**
+     * @return the aggregate operators, one per aggregate field
+     * */
+    public Aggregator.Op[] aggregateOps() {
+        return this.aops;
     }
 
     public static String nameOfAggregatorOp(Aggregator.Op aop) {
 	    return aop.toString();
     }
 
+    /**
+     * @return the operator that computes mergeable partial aggregates for aop
+     */
+    static Aggregator.Op partialOp(Aggregator.Op aop) {
+        return aop == Aggregator.Op.AVG ? Aggregator.Op.SUM_COUNT : aop;
+    }
+
+    /**
+     * @return the operator that combines the partial aggregates of aop, or
+     *         null if they cannot be combined (the sketches of COUNT_DISTINCT
+     *         and the percentiles)
+     */
+    static Aggregator.Op mergeOp(Aggregator.Op aop) {
+        switch(aop) {
+        case MIN:
+        case MAX:
+        case SUM:
+            return aop;
+        case COUNT:
+            return Aggregator.Op.SUM;
+        case AVG:
+            return Aggregator.Op.SC_AVG;
+        default:
+            return null;
+        }
+    }
+
+    /**
+     * @return an aggregator for the given groups and aggregates: a plain
+     *         IntegerAggregator or StringAggregator for a single aggregate
+     *         with at most one group field, a GroupAggregator otherwise
+     */
+    private static Aggregator newAggregator(int[] gfields, Type[] gtypes, int[] afields,
+            Type[] atypes, Aggregator.Op[] ops) {
+        if(gfields.length > 1 || ops.length > 1) {
+            return new GroupAggregator(gfields, gtypes, afields, atypes, ops);
+        }
+        int gfield = gfields.length == 0 ? Aggregator.NO_GROUPING : gfields[0];
+        Type gtype = gfields.length == 0 ? null : gtypes[0];
+        if (atypes[0] == Type.INT_TYPE) {
+            return new IntegerAggregator(gfield, gtype, afields[0], ops[0]);
+        } else {
+            return new StringAggregator(gfield, gtype, afields[0], ops[0]);
+        }
+    }
+
+    private Type[] groupTypes() {
+        Type[] types = new Type[this.groupFields.length];
+        for(int i = 0; i < types.length; i++) {
+            types[i] = this.td.getFieldType(this.groupFields[i]);
+        }
+        return types;
+    }
+
+    /**
+     * @return an aggregator that merges partial aggregates, laid out as the
+     *         group fields followed by the partial value(s) of each aggregate
+     */
+    private Aggregator newMergeAggregator() {
+        int k = this.groupFields.length;
+        int[] gfields = new int[k];
+        for(int i = 0; i < k; i++) {
+            gfields[i] = i;
+        }
+        int[] afields = new int[this.aops.length];
+        Type[] atypes = new Type[this.aops.length];
+        Aggregator.Op[] ops = new Aggregator.Op[this.aops.length];
+        int field = k;
+        for(int a = 0; a < this.aops.length; a++) {
+            afields[a] = field;
+            atypes[a] = Type.INT_TYPE;
+            ops[a] = mergeOp(this.aops[a]);
+            field += partialOp(this.aops[a]) == Aggregator.Op.SUM_COUNT ? 4 : 1;
+        }
+        return newAggregator(gfields, groupTypes(), afields, atypes, ops);
+    }
+
+    /**
+     * @return the estimated size of one group held in memory by an
+     *         aggregator that computes the final aggregates, sketches included
+     */
+    private long inMemoryGroupSize() {
+        long size = MemoryManager.estimateSize(getTupleDesc());
+        for(Aggregator.Op aop : this.aops) {
+            if(aop == Aggregator.Op.COUNT_DISTINCT) {
+                size += HyperLogLog.NUM_REGISTERS;
+            } else if(aop.quantile() >= 0) {
+                size += QuantileSketch.MAX_SIZE_IN_BYTES;
+            }
+        }
+        return size;
+    }
+
+    /**
+     * Reserve memory for one more group.
+     *
+     * @return false if the MemoryManager is out of memory (the group is
+     *         accounted for regardless)
+     */
+    private boolean reserveGroup(long groupSize) {
+        MemoryManager mm = Database.getMemoryManager();
+        boolean fits = mm.reserve(groupSize);
+        if(!fits) {
+            mm.forceReserve(groupSize);
+        }
+        this.reserved += groupSize;
+        return fits;
+    }
+
+    private void releaseGroups() {
+        if(this.reserved > 0) {
+            Database.getMemoryManager().release(this.reserved);
+            this.reserved = 0;
+        }
+    }
+
+    /**
+     * @return the groups of agtr as partial aggregates, which carry every AVG
+     *         as a sum and a count
+     */
+    private static DbIterator partials(Aggregator agtr) {
+        if(agtr instanceof IntegerAggregator) {
+            return ((IntegerAggregator) agtr).partialIterator();
+        } else if(agtr instanceof GroupAggregator) {
+            return ((GroupAggregator) agtr).partialIterator();
+        }
+        return agtr.iterator();
+    }
+
+    /** Write the partial aggregates of partials to parts, by hash of their group. */
+    private void spill(DbIterator partials, SpillFile[] parts, int level)
+            throws DbException, TransactionAbortedException {
+        partials.open();
+        while(partials.hasNext()) {
+            Tuple t = partials.next();
+            parts[partitionOf(t, level)].add(t);
+        }
+        partials.close();
+    }
+
+    /** @return the partition of a partial aggregate, by hash of its group fields */
+    private int partitionOf(Tuple partial, int level) {
+        if(this.groupFields.length == 1) {
+            return Join.partitionOf(partial.getField(0), level);
+        }
+        Field[] key = new Field[this.groupFields.length];
+        for(int i = 0; i < key.length; i++) {
+            key[i] = partial.getField(i);
+        }
+        return Join.partitionOf(new IntField(Arrays.hashCode(key)), level);
+    }
+
+    private SpillFile[] newPartitions(TupleDesc partialTd) throws DbException {
+        SpillFile[] parts = new SpillFile[NUM_PARTITIONS];
+        for(int i = 0; i < NUM_PARTITIONS; i++) {
+            parts[i] = new SpillFile(partialTd);
+        }
+        return parts;
+    }
+
+    private void queuePartitions(SpillFile[] parts, int level) throws DbException {
+        for(int i = 0; i < NUM_PARTITIONS; i++) {
+            if(parts[i].size() == 0) {
+                parts[i].delete();
+            } else {
+                this.partitions.add(new AggregatePartition(parts[i], level));
+            }
+        }
+    }
+
     public void open() throws NoSuchElementException, DbException,
 	    TransactionAbortedException {
-        Type type;
 	    super.open();
         if(this.content == null) {
-            child.open();
-            Aggregator agtr = null;
-            if(this.groupingField != Aggregator.NO_GROUPING)
-                type = this.td.getFieldType(this.groupingField);
-            else
-                type = null;
-
-            if (this.td.getFieldType(this.aggregateField) == Type.INT_TYPE) {
-                agtr = new IntegerAggregator(this.groupingField, type, this.aggregateField, this.aop);
-            } else {
-                agtr = new StringAggregator(this.groupingField, type, this.aggregateField, this.aop);
+            aggregate();
+        } else {
+            this.content.rewind();
+        }
+    }
+
+    /**
+     * Runs the child through an aggregator, spilling partial aggregates to
+     * disk whenever the groups outgrow the memory granted to us.
+     */
+    private void aggregate() throws DbException, TransactionAbortedException {
+        child.open();
+        Type[] gtypes = groupTypes();
+        Type[] atypes = new Type[this.aggregateFields.length];
+        boolean canSpill = this.groupFields.length > 0;
+        for(int a = 0; a < atypes.length; a++) {
+            atypes[a] = this.td.getFieldType(this.aggregateFields[a]);
+            canSpill = canSpill && mergeOp(this.aops[a]) != null;
+        }
+        TupleDesc partialTd = null;
+        long groupSize = 0;
+        if(canSpill) {
+            ArrayList<Type> types = new ArrayList<Type> (Arrays.asList(gtypes));
+            for(int a = 0; a < this.aops.length; a++) {
+                types.add(Type.INT_TYPE);
+                if(partialOp(this.aops[a]) == Aggregator.Op.SUM_COUNT) {
+                    types.addAll(Arrays.asList(Type.INT_TYPE, Type.INT_TYPE, Type.INT_TYPE));
+                }
             }
+            partialTd = new TupleDesc(types.toArray(new Type[types.size()]));
+            groupSize = MemoryManager.estimateSize(partialTd);
+        } else if(this.groupFields.length > 0) {
+            // sketches cannot be spilled: account for the groups, but keep
+            // them in memory when the budget is exceeded
+            groupSize = inMemoryGroupSize();
+        }
+        Aggregator agtr = newAggregator(this.groupFields, gtypes, this.aggregateFields, atypes, this.aops);
 
-            int cnt = 0;
-            while (child.hasNext()) {
-                Tuple tuple = child.next();
-                agtr.mergeTupleIntoGroup(tuple);
+        int groups = 0;
+        while (child.hasNext()) {
+            Tuple tuple = child.next();
+            agtr.mergeTupleIntoGroup(tuple);
+            if(groupSize > 0 && agtr.numGroups() > groups) {
+                groups++;
+                if(!reserveGroup(groupSize) && canSpill) {
+                    if(this.spillParts == null) {
+                        this.spillParts = newPartitions(partialTd);
+                    }
+                    spill(partials(agtr), this.spillParts, 0);
+                    releaseGroups();
+                    agtr = newAggregator(this.groupFields, gtypes, this.aggregateFields, atypes, this.aops);
+                    groups = 0;
+                }
             }
+        }
+        child.close();
 
-            content = agtr.iterator();
-            child.close();
-            content.open();
-        } else {
-            this.content.rewind();
+        if(this.spillParts != null) {
+            spill(partials(agtr), this.spillParts, 0);
+            releaseGroups();
+            queuePartitions(this.spillParts, 0);
+            this.spillParts = null;
+            this.spilled = true;
+            this.content = null;
+            nextPartition();
+            return;
+        }
+        this.content = agtr.iterator();
+        this.content.open();
+    }
+
+    /**
+     * Merges the next spilled partition in memory and makes its groups the
+     * current content. Partitions that still do not fit are split again.
+     *
+     * @return false if there are no partitions left
+     */
+    private boolean nextPartition() throws DbException, TransactionAbortedException {
+        releaseGroups();
+        if(this.current != null) {
+            this.current.file.delete();
+            this.current = null;
+        }
+        this.content = null;
+        while(!this.partitions.isEmpty()) {
+            AggregatePartition ap = this.partitions.removeFirst();
+            long groupSize = MemoryManager.estimateSize(ap.file.getTupleDesc());
+            boolean force = ap.level >= MAX_PARTITION_LEVEL;
+            boolean fits = true;
+            Aggregator merged = newMergeAggregator();
+            int groups = 0;
+            ap.file.open();
+            while(ap.file.hasNext()) {
+                merged.mergeTupleIntoGroup(ap.file.next());
+                if(merged.numGroups() > groups) {
+                    groups++;
+                    if(!reserveGroup(groupSize) && !force) {
+                        fits = false;
+                        break;
+                    }
+                }
+            }
+            if(fits) {
+                this.current = ap;
+                this.content = merged.iterator();
+                this.content.open();
+                return true;
+            }
+            // still too many groups: split the partition again with a different hash
+            releaseGroups();
+            SpillFile[] parts = newPartitions(ap.file.getTupleDesc());
+            spill(ap.file, parts, ap.level + 1);
+            ap.file.delete();
+            queuePartitions(parts, ap.level + 1);
         }
+        return false;
     }
 
     /**
-     * Returns the next tuple. If there is a group by field, then the first
-     * field is the field by which we are grouping, and the second field is the
-     * result of computing the aggregate, If there is no group by field, then
-     * the result tuple should contain one field representing the result of the
-     * aggregate. Should return null if there are no more tuples.
+     * Returns the next tuple. The first fields are the fields by which we are
+     * grouping (if any), followed by one field per aggregate holding its
+     * result. Should return null if there are no more tuples.
      */
     protected Tuple fetchNext() throws TransactionAbortedException, DbException {
-        if(content != null && content.hasNext()) {
-            return content.next();
-        } else if(content == null){
-            throw new DbException("it hasn't been opened");
-        } else {
-            // !content.hasNext()
-            return null;
+        while(true) {
+            if(content != null && content.hasNext()) {
+                return content.next();
+            }
+            if(!this.spilled) {
+                if(content == null) {
+                    throw new DbException("it hasn't been opened");
+                }
+                return null;
+            }
+            if(!nextPartition()) {
+                return null;
+            }
         }
     }
 
     public void rewind() throws DbException, TransactionAbortedException {
-	    this.content.rewind();
+        if(this.spilled) {
+            // the groups of the spilled partitions are gone, aggregate again
+            this.close();
+            this.open();
+        } else {
+	        this.content.rewind();
+        }
     }
 
     /**
-     * Returns the TupleDesc of this Aggregate. If there is no group by field,
-     * this will have one field - the aggregate column. If there is a group by
-     * field, the first field will be the group by field, and the second will be
-     * the aggregate value column.
+     * Returns the TupleDesc of this Aggregate: the group by fields (if any),
+     * followed by one aggregate value column per aggregate.
      * 
      * The name of an aggregate column should be informative. For example:
      * "aggName(aop) (child_td.getFieldName(afield))" where aop and afield are
@@ -159,22 +518,48 @@ public class Aggregate extends Operator {
      * iterator.
      */
     public TupleDesc getTupleDesc() { // you need to get the tuple desc of whatever you have created
-        if(this.groupingField == Aggregator.NO_GROUPING) {
-            return new TupleDesc(
-                    new Type [] {Type.INT_TYPE},
-                    new String[] {this.aop.toString()}
-            );
-        } else {
-            return new TupleDesc(
-                    new Type [] {this.td.getFieldType(this.groupingField), Type.INT_TYPE},
-                    new String [] {this.td.getFieldName(this.groupingField), this.aop.toString()}
-            );
+        int k = this.groupFields.length;
+        Type[] types = new Type[k + this.aops.length];
+        String[] names = new String[k + this.aops.length];
+        for(int i = 0; i < k; i++) {
+            types[i] = this.td.getFieldType(this.groupFields[i]);
+            names[i] = this.td.getFieldName(this.groupFields[i]);
         }
+        for(int a = 0; a < this.aops.length; a++) {
+            types[k + a] = Type.INT_TYPE;
+            names[k + a] = this.aops[a].toString();
+        }
+        return new TupleDesc(types, names);
     }
 
     public void close() {
-        this.content.close();
+        releaseGroups();
+        DbException failure = null;
+        if(this.spilled) {
+            // drop the partitions so that the next open aggregates again;
+            // delete all of them before reporting a failure
+            if(this.current != null) {
+                this.partitions.addFirst(this.current);
+                this.current = null;
+            }
+            while(!this.partitions.isEmpty()) {
+                try {
+                    this.partitions.removeFirst().file.delete();
+                } catch(DbException e) {
+                    if(failure == null) {
+                        failure = e;
+                    }
+                }
+            }
+            this.content = null;
+            this.spilled = false;
+        } else if(this.content != null) {
+            this.content.close();
+        }
 	    super.close();
+        if(failure != null) {
+            throw new RuntimeException(failure);
+        }
     }
 
     @Override
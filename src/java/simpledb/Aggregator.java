@@ -25,7 +25,17 @@ public interface Aggregator extends Serializable {
          * SC_AVG: compute the avg of a set of SUM_COUNT tuples,
          * will be used to compute distributed avg in lab6.
          * */
-        SC_AVG;
+        SC_AVG,
+        /**
+         * COUNT_DISTINCT: estimated number of distinct values, computed
+         * with a HyperLogLog sketch per group.
+         * */
+        COUNT_DISTINCT,
+        /**
+         * P25, MEDIAN, P75, P90, P99: approximate percentiles of int
+         * values, computed with a KLL quantile sketch per group.
+         * */
+        P25, MEDIAN, P75, P90, P99;
 
         /**
          * Interface to access operations by a string containing an integer
@@ -47,6 +57,21 @@ public interface Aggregator extends Serializable {
             return values()[i];
         }
         
+        /**
+         * @return the fraction of values below the percentile computed by
+         *         this op, or -1 if it does not compute a percentile
+         */
+        public double quantile() {
+            switch (this) {
+            case P25: return 0.25;
+            case MEDIAN: return 0.5;
+            case P75: return 0.75;
+            case P90: return 0.9;
+            case P99: return 0.99;
+            default: return -1;
+            }
+        }
+
         public String toString()
         {
         	if (this==MIN)
@@ -63,6 +88,18 @@ public interface Aggregator extends Serializable {
         		return "count";
         	if (this==SC_AVG)
     			return "sc_avg";
+        	if (this==COUNT_DISTINCT)
+        		return "count_distinct";
+        	if (this==P25)
+        		return "p25";
+        	if (this==MEDIAN)
+        		return "median";
+        	if (this==P75)
+        		return "p75";
+        	if (this==P90)
+        		return "p90";
+        	if (this==P99)
+        		return "p99";
         	throw new IllegalStateException("impossible to reach here");
         }
     }
@@ -76,6 +113,11 @@ public interface Aggregator extends Serializable {
      */
     public void mergeTupleIntoGroup(Tuple tup);
 
+    /**
+     * @return the number of distinct groups merged so far (1 without grouping)
+     */
+    public int numGroups();
+
     /**
      * Create a DbIterator over group aggregate results.
      * @see simpledb.TupleIterator for a possible helper
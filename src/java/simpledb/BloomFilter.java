@@ -0,0 +1,77 @@
+package simpledb;
+
+import java.io.Serializable;
+
+/**
+ * A Bloom filter over Field values. {@link #mightContain} never returns false
+ * for a value that was added, and returns true for a value that was not added
+ * only with a small probability (about 1% when no more than the expected
+ * number of values are added).
+ * <p>
+ * Join builds one over the keys of its hash table and hands it to the scan
+ * on its probe side, so that probe tuples that cannot match are dropped
+ * before they reach the join.
+ */
+public class BloomFilter implements Serializable {
+
+    private static final long serialVersionUID = 1L;
+
+    static final int BITS_PER_KEY = 10;
+    static final int NUM_HASHES = 7;
+    static final int MIN_BITS = 1 << 10;
+    static final int MAX_BITS = 1 << 26;
+
+    private long[] bits;
+    private int mask;
+
+    /**
+     * Creates an empty filter sized for about expectedItems distinct values.
+     */
+    public BloomFilter(int expectedItems) {
+        long wanted = (long) expectedItems * BITS_PER_KEY;
+        int numBits = MIN_BITS;
+        while (numBits < wanted && numBits < MAX_BITS)
+            numBits <<= 1;
+        this.bits = new long[numBits / 64];
+        this.mask = numBits - 1;
+    }
+
+    private static int mix(int h) {
+        h ^= h >>> 16;
+        h *= 0x85EBCA6B;
+        h ^= h >>> 13;
+        h *= 0xC2B2AE35;
+        h ^= h >>> 16;
+        return h;
+    }
+
+    /** Add f to the filter. */
+    public void add(Field f) {
+        int h1 = mix(f.hashCode());
+        int h2 = mix(h1) | 1;
+        for (int i = 0; i < NUM_HASHES; i++) {
+            int bit = (h1 + i * h2) & this.mask;
+            this.bits[bit >>> 6] |= 1L << bit;
+        }
+    }
+
+    /**
+     * @return false if f was definitely not added to the filter, true if it
+     *         may have been
+     */
+    public boolean mightContain(Field f) {
+        int h1 = mix(f.hashCode());
+        int h2 = mix(h1) | 1;
+        for (int i = 0; i < NUM_HASHES; i++) {
+            int bit = (h1 + i * h2) & this.mask;
+            if ((this.bits[bit >>> 6] & (1L << bit)) == 0)
+                return false;
+        }
+        return true;
+    }
+
+    /** @return the size of this filter in bytes */
+    public int sizeInBytes() {
+        return this.bits.length * 8;
+    }
+}
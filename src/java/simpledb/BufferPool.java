@@ -2,6 +2,7 @@ package simpledb;
 
 import java.io.*;
 import java.util.*;
+import java.util.concurrent.ConcurrentHashMap;
 /**
  * BufferPool manages the reading and writing of pages into memory from
  * disk. Access methods call into it to retrieve pages, and it fetches
@@ -9,7 +10,18 @@ import java.util.*;
  * <p>
  * The BufferPool is also responsible for locking;  when a transaction fetches
  * a page, BufferPool checks that the transaction has the appropriate
- * locks to read/write the page.
+ * locks to read/write the page. Pages can also be fetched with an intention
+ * lock only ({@link #getPageForRows}), in which case the caller locks the
+ * tuples it reads or writes with {@link #lockTuple}; several transactions
+ * may then change one page, each committing or aborting its own slots.
+ * <p>
+ * Read-only transactions that begin a snapshot take no locks at all:
+ * they see every page as it was committed when the snapshot began, so
+ * they never block writers nor are blocked by them. To that end, whenever
+ * a dirty page is flushed, its last committed image is kept along with the
+ * new one, and each image is stamped with the commit timestamp of the
+ * transaction that wrote it. Images that no running snapshot can see any
+ * more are dropped.
  */
 
 public class BufferPool {
@@ -27,6 +39,29 @@ public class BufferPool {
 
     private LockManager lockManager;
 
+    /** One image of a page: committed at begin, or not yet committed by writer. */
+    private static class PageVersion {
+        byte[] data;
+        long begin;
+        TransactionId writer;
+
+        PageVersion(byte[] data, long begin, TransactionId writer) {
+            this.data = data;
+            this.begin = begin;
+            this.writer = writer;
+        }
+    }
+
+    // the images of recently written pages, newest first; guards the
+    // version state below
+    private final HashMap<PageId, LinkedList<PageVersion>> versions;
+    // the snapshot timestamp of each read-only transaction
+    private final ConcurrentHashMap<TransactionId, Long> snapshots;
+    // timestamp of the last commit
+    private long commitClock;
+    // the transactions whose scans skip locked tuples
+    private final ConcurrentHashMap<TransactionId, Permissions> skipLocked;
+
     /**
      * Creates a BufferPool that caches up to numPages pages.
      *
@@ -37,6 +72,27 @@ public class BufferPool {
         this.cache = new Cache(numPages);
         this.transactions = new HashMap<TransactionId, Set<PageId>> ();
         this.lockManager = new LockManager();
+        this.versions = new HashMap<PageId, LinkedList<PageVersion>> ();
+        this.snapshots = new ConcurrentHashMap<TransactionId, Long> ();
+        this.commitClock = 0;
+        this.skipLocked = new ConcurrentHashMap<TransactionId, Permissions> ();
+    }
+
+    /**
+     * Make tid a read-only transaction that reads the database as of now.
+     * Its getPage calls take no locks, and it may not ask for READ_WRITE.
+     *
+     * @param tid the ID of the transaction, before it reads any page
+     */
+    public void beginSnapshot(TransactionId tid) {
+        synchronized (this.versions) {
+            this.snapshots.put(tid, this.commitClock);
+        }
+    }
+
+    /** Return true if tid is a read-only transaction reading a snapshot */
+    public boolean isSnapshot(TransactionId tid) {
+        return this.snapshots.containsKey(tid);
     }
 
     /**
@@ -56,12 +112,126 @@ public class BufferPool {
      */
     public  Page getPage(TransactionId tid, PageId pid, Permissions perm)
             throws TransactionAbortedException, DbException, InterruptedException {
+        Long snapshot = this.snapshots.get(tid);
+        if (snapshot != null) {
+            if (perm == Permissions.READ_WRITE) {
+                throw new DbException("transaction " + tid.getId() + " is read-only");
+            }
+            return this.snapshotPage(snapshot, pid);
+        }
         try {
             this.lockManager.acquireLock(tid, pid, perm);
         } catch (DeadlockException e) {
             throw new TransactionAbortedException();
         }
+        return this.fetchPage(tid, pid);
+    }
+
+    /**
+     * Retrieve the specified page holding only an intention lock on it, for
+     * a caller that locks the tuples it uses with lockTuple. Changes to the
+     * page must be made while synchronized on it.
+     *
+     * @param tid the ID of the transaction requesting the page
+     * @param pid the ID of the requested page
+     * @param perm the permissions the tuples of the page will be locked with
+     */
+    public Page getPageForRows(TransactionId tid, PageId pid, Permissions perm)
+            throws TransactionAbortedException, DbException {
+        Long snapshot = this.snapshots.get(tid);
+        if (snapshot != null) {
+            if (perm == Permissions.READ_WRITE) {
+                throw new DbException("transaction " + tid.getId() + " is read-only");
+            }
+            return this.snapshotPage(snapshot, pid);
+        }
+        try {
+            this.lockManager.acquireIntentionLock(tid, pid, perm);
+        } catch (DeadlockException e) {
+            throw new TransactionAbortedException();
+        }
+        return this.fetchPage(tid, pid);
+    }
+
+    /**
+     * Lock tuple rid for tid with permissions perm. Snapshot readers need
+     * no locks. May block if the lock is held by another transaction.
+     */
+    public void lockTuple(TransactionId tid, RecordId rid, Permissions perm)
+            throws TransactionAbortedException, DbException {
+        if (this.snapshots.containsKey(tid)) {
+            if (perm == Permissions.READ_WRITE) {
+                throw new DbException("transaction " + tid.getId() + " is read-only");
+            }
+            return;
+        }
+        try {
+            this.lockManager.acquireRowLock(tid, rid, perm);
+        } catch (DeadlockException e) {
+            throw new TransactionAbortedException();
+        }
+    }
+
+    /**
+     * Lock tuple rid for tid with permissions perm if that does not have to
+     * wait for another transaction.
+     * @return true if tid holds the lock
+     */
+    public boolean tryLockTuple(TransactionId tid, RecordId rid, Permissions perm) {
+        return this.lockManager.tryAcquireRowLock(tid, rid, perm);
+    }
+
+    /**
+     * Set how long tid waits for each lock before it is aborted, in
+     * milliseconds: LockManager.WAIT_FOREVER (the default), LockManager.NO_WAIT,
+     * or a positive limit.
+     */
+    public void setLockWait(TransactionId tid, long millis) {
+        this.lockManager.setLockWait(tid, millis);
+    }
+
+    /** @return how long tid waits for each lock, in milliseconds */
+    public long getLockWait(TransactionId tid) {
+        return this.lockManager.getLockWait(tid);
+    }
 
+    /**
+     * Set the number of page locks a transaction may hold on one table
+     * before its table lock is escalated, see LockManager.
+     */
+    public void setEscalationThreshold(int threshold) {
+        this.lockManager.setEscalationThreshold(threshold);
+    }
+
+    /** @return the number of page locks on one table that triggers escalation */
+    public int getEscalationThreshold() {
+        return this.lockManager.getEscalationThreshold();
+    }
+
+    /**
+     * Make the scans of tid skip the tuples it cannot lock with perm right
+     * away, instead of waiting for them; READ_WRITE also locks the tuples
+     * it returns for writing. A null perm makes scans wait again.
+     */
+    public void setSkipLocked(TransactionId tid, Permissions perm) {
+        if (perm == null) {
+            this.skipLocked.remove(tid);
+        } else {
+            this.skipLocked.put(tid, perm);
+        }
+    }
+
+    /** @return the permissions the scans of tid skip locked tuples with, or null */
+    public Permissions getSkipLocked(TransactionId tid) {
+        return this.skipLocked.get(tid);
+    }
+
+    /**
+     * @return page pid from the cache, reading it in if needed. Writers of
+     *         different tuples share the cached page, so the lookup and the
+     *         load happen under the pool's monitor.
+     */
+    private synchronized Page fetchPage(TransactionId tid, PageId pid) {
         if (cache.containsKey(pid)) {
             Page page = this.cache.get(pid);
             this.insertTransactions(tid, pid);
@@ -75,7 +245,35 @@ public class BufferPool {
         }
     }
 
-    private void insertTransactions(TransactionId tid, PageId pid) {
+    /**
+     * @return a private copy of page pid as committed at snapshot. Pages
+     *         without kept images have not been written since before every
+     *         running snapshot, so their committed image is the before
+     *         image of the cached page, or else the page on disk.
+     */
+    private synchronized Page snapshotPage(long snapshot, PageId pid) throws DbException {
+        synchronized (this.versions) {
+            LinkedList<PageVersion> chain = this.versions.get(pid);
+            if (chain == null) {
+                if (this.cache.containsKey(pid)) {
+                    return this.cache.get(pid).getBeforeImage();
+                }
+                return Database.getCatalog().getDbFile(pid.getTableId()).readPage(pid);
+            }
+            for (PageVersion v : chain) {
+                if (v.writer == null && v.begin <= snapshot) {
+                    try {
+                        return new HeapPage((HeapPageId) pid, v.data);
+                    } catch (IOException e) {
+                        throw new DbException("cannot parse a kept image of " + pid);
+                    }
+                }
+            }
+            throw new DbException("no image of " + pid + " is visible at " + snapshot);
+        }
+    }
+
+    private synchronized void insertTransactions(TransactionId tid, PageId pid) {
         if(!this.transactions.containsKey(tid)) {
             this.transactions.put(tid, new HashSet<PageId> ());
         }
@@ -118,21 +316,133 @@ public class BufferPool {
      */
     public void transactionComplete(TransactionId tid, boolean commit)
             throws IOException {
+        if(this.snapshots.containsKey(tid)) {
+            synchronized (this.versions) {
+                this.snapshots.remove(tid);
+                Iterator<Map.Entry<PageId, LinkedList<PageVersion>>> it =
+                    this.versions.entrySet().iterator();
+                while (it.hasNext()) {
+                    if (this.prune(it.next().getValue())) {
+                        it.remove();
+                    }
+                }
+            }
+            return;
+        }
         if(commit) {
             this.flushPages(tid);
         } else {
             // "you should throw away any changes to pages that it made"
             this.rollBack(tid);
         }
+        this.publish(tid, commit);
 
-        this.transactions.remove(tid);
+        synchronized (this) {
+            this.transactions.remove(tid);
+        }
+        this.skipLocked.remove(tid);
         this.lockManager.releaseAllLocks(tid);
     }
 
-    public void rollBack(TransactionId tid) {
+    /**
+     * Stamp the images flushed by tid with a new commit timestamp, or drop
+     * them if tid aborted, and drop the images no snapshot can see any more.
+     */
+    private synchronized void publish(TransactionId tid, boolean commit) throws IOException {
         Set<PageId> pids = this.transactions.get(tid);
+        if(pids == null) return;
+        synchronized (this.versions) {
+            long ts = commit ? ++this.commitClock : 0;
+            for (PageId pid : pids) {
+                LinkedList<PageVersion> chain = this.versions.get(pid);
+                PageVersion v = chain == null ? null : pendingOf(chain, tid);
+                if (v == null) {
+                    // tid only read the page: every page it changed was
+                    // flushed, and so has an image pending
+                    continue;
+                }
+                Page page = this.cache.get(pid);
+                if (commit && page instanceof HeapPage) {
+                    // another transaction may have committed slots of the
+                    // page since it was flushed
+                    HeapPage hp = (HeapPage) page;
+                    byte[] image = hp.committedImage(tid);
+                    if (v != null && !Arrays.equals(v.data, image)) {
+                        v.data = image;
+                        Database.getCatalog().getDbFile(pid.getTableId())
+                            .writePage(new HeapPage((HeapPageId) pid, image));
+                    }
+                    hp.commitSlots(tid);
+                } else if (commit && page != null) {
+                    page.setBeforeImage();
+                }
+                chain.remove(v);
+                if (commit) {
+                    v.begin = ts;
+                    v.writer = null;
+                    chain.addFirst(v);
+                }
+                if (this.prune(chain)) {
+                    this.versions.remove(pid);
+                }
+            }
+        }
+    }
+
+    /** @return the image of a page flushed by tid but not committed yet, or null */
+    private static PageVersion pendingOf(LinkedList<PageVersion> chain, TransactionId tid) {
+        for (PageVersion v : chain) {
+            if (v.writer != null && v.writer.equals(tid)) {
+                return v;
+            }
+        }
+        return null;
+    }
+
+    /**
+     * Drop the committed images of a page older than the newest one visible
+     * to the oldest running snapshot. The caller holds the lock on versions.
+     *
+     * @return true if only the last committed image is left and every
+     *         snapshot can see it, so the chain is not needed any more
+     */
+    private boolean prune(LinkedList<PageVersion> chain) {
+        long horizon = Long.MAX_VALUE;
+        for (long snapshot : this.snapshots.values()) {
+            horizon = Math.min(horizon, snapshot);
+        }
+        ListIterator<PageVersion> it = chain.listIterator();
+        while (it.hasNext()) {
+            PageVersion v = it.next();
+            if (v.writer == null && v.begin <= horizon) {
+                // the images of writers that have not finished yet stay:
+                // publish rewrites the page if it differs from theirs
+                while (it.hasNext()) {
+                    if (it.next().writer == null) {
+                        it.remove();
+                    }
+                }
+                break;
+            }
+        }
+        return chain.size() == 1 && chain.getFirst().writer == null;
+    }
+
+    public synchronized void rollBack(TransactionId tid) {
+        Set<PageId> pids = this.transactions.get(tid);
+        if(pids == null) return;
+        // pages that other transactions also changed keep their changes
+        HashSet<PageId> discard = new HashSet<PageId> ();
+        for(PageId pid : pids) {
+            Page page = this.cache.get(pid);
+            if(page instanceof HeapPage && ((HeapPage) page).hasOtherWriters(tid)) {
+                ((HeapPage) page).rollbackSlots(tid);
+            } else {
+                discard.add(pid);
+            }
+        }
         // go through all the cache and remove all those pids from the cache
-        this.cache.removePids(pids);
+        this.cache.removePids(discard);
     }
     /**
      * Add a tuple to the specified table behalf of transaction tid.  Will
@@ -153,17 +463,14 @@ public class BufferPool {
         HeapFile hf = (HeapFile)Database.getCatalog().getDbFile(tableId);
         ArrayList<Page> pages = hf.insertTuple(tid, t);
 
-        if(!this.transactions.containsKey(tid)) {
-            this.transactions.put(tid, new HashSet<PageId> ());
-        }
-        Page page;
-        for(int i = 0; i < pages.size(); i++) {
-            page = pages.get(i);
-            page.markDirty(true, tid);
-            this.cache.put(page.getId(), page);
-            this.transactions.get(tid).add(page.getId());
+        synchronized (this) {
+            for(int i = 0; i < pages.size(); i++) {
+                Page page = pages.get(i);
+                page.markDirty(true, tid);
+                this.cache.put(page.getId(), page);
+                this.insertTransactions(tid, page.getId());
+            }
         }
-
     }
 
     /**
@@ -184,9 +491,11 @@ public class BufferPool {
         int tableId = t.getRecordId().getPageId().getTableId();
         HeapFile hf = (HeapFile)Database.getCatalog().getDbFile(tableId);
         Page pg = hf.deleteTuple(tid, t);
-        pg.markDirty(true, tid);
-        this.cache.put(pg.getId(), pg);
-        this.insertTransactions(tid, pg.getId());
+        synchronized (this) {
+            pg.markDirty(true, tid);
+            this.cache.put(pg.getId(), pg);
+            this.insertTransactions(tid, pg.getId());
+        }
     }
 
     /**
@@ -212,22 +521,51 @@ public class BufferPool {
     }
 
     /**
-     * Flushes a certain page to disk
+     * Flushes the changes of transaction writer to a certain page to disk.
+     * Changes other transactions made to slots of the page are not written.
      * @param pid an ID indicating the page to flush
      */
-    private synchronized  void flushPage(PageId pid) throws IOException {
+    private synchronized  void flushPage(PageId pid, TransactionId writer) throws IOException {
         Page page = this.cache.get(pid);
         assert page != null;
         // I need to get the HeapFile
         DbFile dbFile = Database.getCatalog().getDbFile(pid.getTableId());
-        dbFile.writePage(page);
-        page.markDirty(false, null);
+        boolean shared = page instanceof HeapPage && ((HeapPage) page).hasOtherWriters(writer);
+        Page image = page;
+        if (page instanceof HeapPage) {
+            image = new HeapPage((HeapPageId) pid, ((HeapPage) page).committedImage(writer));
+        }
+        synchronized (this.versions) {
+            // keep the committed image for snapshots until writer is done
+            LinkedList<PageVersion> chain = this.versions.get(pid);
+            if (chain == null) {
+                chain = new LinkedList<PageVersion> ();
+                chain.add(new PageVersion(page.getBeforeImage().getPageData(), 0, null));
+                this.versions.put(pid, chain);
+            }
+            PageVersion v = pendingOf(chain, writer);
+            if (v != null) {
+                v.data = image.getPageData();
+            } else {
+                chain.addFirst(new PageVersion(image.getPageData(), Long.MAX_VALUE, writer));
+            }
+            dbFile.writePage(image);
+        }
+        if (!shared) {
+            page.markDirty(false, null);
+        }
     }
 
     /** Write all pages of the specified transaction to disk.
+     * <p>
+     * Write-ahead logging: the slot records of tid are forced to the log
+     * first. A committing {@link Transaction} has already forced them, so
+     * this is normally free; either way the force waits outside the pool's
+     * monitor, which readers and other committers need meanwhile.
      */
-    public synchronized  void flushPages(TransactionId tid) throws IOException {
-        try {
+    public void flushPages(TransactionId tid) throws IOException {
+        Database.getLogFile().forceRecords(tid);
+        synchronized (this) {
             Set<PageId> pids = this.transactions.get(tid);
             if(pids == null) return;
 
@@ -235,13 +573,12 @@ public class BufferPool {
             PageId pid;
             while (it.hasNext()) {
                 pid = it.next();
-                if (this.cache.containsKey(pid) && this.cache.get(pid).isDirty() != null) {
-                    flushPage(pid);
+                Page page = this.cache.get(pid);
+                if (page != null && page.isDirty() != null
+                        && (!(page instanceof HeapPage) || ((HeapPage) page).wroteSlots(tid))) {
+                    flushPage(pid, tid);
                 }
             }
-        } catch (Exception e) {
-            System.out.println("exception caught");
-            e.printStackTrace();
         }
     }
 
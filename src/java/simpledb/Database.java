@@ -13,7 +13,8 @@ import java.io.*;
 public class Database {
 	private static Database _instance = new Database();
     private final Catalog _catalog;
-    private BufferPool _bufferpool; 
+    private BufferPool _bufferpool;
+    private MemoryManager _memorymanager;
 
     private final static String LOGFILENAME = "log";
     private LogFile _logfile;
@@ -21,6 +22,7 @@ public class Database {
     private Database() {
     	_catalog = new Catalog();
     	_bufferpool = new BufferPool(BufferPool.DEFAULT_PAGES);
+    	_memorymanager = new MemoryManager(MemoryManager.DEFAULT_BYTES);
     	try {
             _logfile = new LogFile(new File(LOGFILENAME));
         } catch(IOException e) {
@@ -46,6 +48,11 @@ public class Database {
         return _instance._catalog;
     }
 
+    /** Return the operator memory manager of the static Database instance*/
+    public static MemoryManager getMemoryManager() {
+        return _instance._memorymanager;
+    }
+
     /** Method used for testing -- create a new instance of the
         buffer pool and return it
     */
@@ -54,6 +61,14 @@ public class Database {
         return _instance._bufferpool;
     }
 
+    /** Method used for testing -- create a new memory manager that
+        hands out at most bytes of operator memory and return it
+    */
+    public static MemoryManager resetMemoryManager(long bytes) {
+        _instance._memorymanager = new MemoryManager(bytes);
+        return _instance._memorymanager;
+    }
+
     //reset the database, used for unit tests only.
     public static void reset() {
     	_instance = new Database();
@@ -0,0 +1,274 @@
+package simpledb;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+
+/**
+ * Computes several aggregates at once, grouped by any number of fields.
+ * <p>
+ * Each input tuple is mapped to its group with a single hash lookup (an
+ * {@link IntHashTable} for a single int group field, a HashMap over the
+ * composite key otherwise); the group's dense id then indexes flat per
+ * aggregate arrays of long accumulators holding the running state of every
+ * aggregate. Averages are only divided out in {@link #iterator}.
+ * <p>
+ * Output tuples hold the group fields in the order they were given, followed
+ * by one value per aggregate (a long sum and count, as four int fields, for
+ * SUM_COUNT; see {@link IntegerAggregator#setLong}). Aggregates
+ * over string fields only support COUNT and COUNT_DISTINCT. COUNT_DISTINCT
+ * and the percentiles keep a sketch per group instead of a long.
+ */
+public class GroupAggregator implements Aggregator {
+
+    private static final long serialVersionUID = 1L;
+
+    int[] gbFields;
+    int[] aggregateFields;
+    Op[] operators;
+    TupleDesc td;
+
+    // used when grouping by exactly one int field
+    IntHashTable intGroups;
+    // used otherwise; maps the group key to its id
+    HashMap<GroupKey, Integer> groups;
+    ArrayList<Field[]> keys; // group fields by group id
+    int numGroups;
+
+    // running state, indexed [aggregate][group id]: the MIN/MAX/SUM/COUNT
+    // value or the sum of an average, and the count of an average
+    long[][] values;
+    long[][] counts;
+    // sketches, indexed [aggregate][group id]; null for other aggregates
+    HyperLogLog[][] distinct;
+    QuantileSketch[][] quantiles;
+
+    /** The values of the group-by fields of a tuple, usable as a hash key. */
+    static class GroupKey {
+        final Field[] fields;
+        final int hash;
+
+        GroupKey(Field[] fields) {
+            this.fields = fields;
+            this.hash = Arrays.hashCode(fields);
+        }
+
+        public int hashCode() {
+            return this.hash;
+        }
+
+        public boolean equals(Object o) {
+            return o instanceof GroupKey && Arrays.equals(this.fields, ((GroupKey) o).fields);
+        }
+    }
+
+    /**
+     * Aggregate constructor
+     *
+     * @param gbfields
+     *            the 0-based indexes of the group-by fields in the tuple; empty
+     *            if there is no grouping
+     * @param gbfieldtypes
+     *            the types of the group-by fields
+     * @param afields
+     *            the 0-based indexes of the aggregated fields in the tuple, one
+     *            per aggregate
+     * @param afieldtypes
+     *            the types of the aggregated fields
+     * @param what
+     *            the aggregation operators, one per aggregate
+     * @throws IllegalArgumentException if an aggregate other than COUNT or
+     *             COUNT_DISTINCT is computed over a string field
+     */
+    public GroupAggregator(int[] gbfields, Type[] gbfieldtypes, int[] afields,
+            Type[] afieldtypes, Op[] what) {
+        this.gbFields = gbfields;
+        this.aggregateFields = afields;
+        this.operators = what;
+        ArrayList<Type> types = new ArrayList<Type>();
+        types.addAll(Arrays.asList(gbfieldtypes));
+        for (int a = 0; a < what.length; a++) {
+            if (afieldtypes[a] != Type.INT_TYPE && what[a] != Op.COUNT && what[a] != Op.COUNT_DISTINCT)
+                throw new IllegalArgumentException(what[a] + " is not supported over string fields");
+            types.add(Type.INT_TYPE);
+            if (what[a] == Op.SUM_COUNT)
+                types.addAll(Arrays.asList(Type.INT_TYPE, Type.INT_TYPE, Type.INT_TYPE));
+        }
+        this.td = new TupleDesc(types.toArray(new Type[types.size()]));
+
+        if (gbfields.length == 1 && gbfieldtypes[0] == Type.INT_TYPE) {
+            this.intGroups = new IntHashTable();
+        } else {
+            this.groups = new HashMap<GroupKey, Integer>();
+            this.keys = new ArrayList<Field[]>();
+        }
+        this.numGroups = 0;
+        this.values = new long[what.length][IntHashTable.MIN_CAPACITY];
+        this.counts = new long[what.length][IntHashTable.MIN_CAPACITY];
+        this.distinct = new HyperLogLog[what.length][];
+        this.quantiles = new QuantileSketch[what.length][];
+        for (int a = 0; a < what.length; a++) {
+            if (what[a] == Op.COUNT_DISTINCT)
+                this.distinct[a] = new HyperLogLog[IntHashTable.MIN_CAPACITY];
+            else if (what[a].quantile() >= 0)
+                this.quantiles[a] = new QuantileSketch[IntHashTable.MIN_CAPACITY];
+        }
+    }
+
+    public int numGroups() {
+        return this.numGroups;
+    }
+
+    /** @return the id of the group of tup, adding the group if it is new */
+    private int groupOf(Tuple tup) {
+        if (this.intGroups != null) {
+            int id = this.intGroups.findOrAdd(((IntField) tup.getField(this.gbFields[0])).getValue());
+            if (id == this.numGroups)
+                this.numGroups++;
+            return id;
+        }
+        Field[] key = new Field[this.gbFields.length];
+        for (int i = 0; i < key.length; i++)
+            key[i] = tup.getField(this.gbFields[i]);
+        GroupKey gk = new GroupKey(key);
+        Integer id = this.groups.get(gk);
+        if (id == null) {
+            id = this.numGroups++;
+            this.groups.put(gk, id);
+            this.keys.add(key);
+        }
+        return id;
+    }
+
+    /**
+     * Merge a new tuple into the aggregates of its group.
+     *
+     * @param tup
+     *            the Tuple containing the aggregate fields and group-by fields
+     */
+    public void mergeTupleIntoGroup(Tuple tup) {
+        int numGroups = this.numGroups;
+        int id = groupOf(tup);
+        boolean first = id == numGroups;
+        if (first && id == this.values[0].length) {
+            for (int a = 0; a < this.operators.length; a++) {
+                this.values[a] = grow(this.values[a]);
+                this.counts[a] = grow(this.counts[a]);
+                if (this.distinct[a] != null)
+                    this.distinct[a] = Arrays.copyOf(this.distinct[a], this.distinct[a].length * 2);
+                if (this.quantiles[a] != null)
+                    this.quantiles[a] = Arrays.copyOf(this.quantiles[a], this.quantiles[a].length * 2);
+            }
+        }
+        for (int a = 0; a < this.operators.length; a++) {
+            Op op = this.operators[a];
+            long[] values = this.values[a];
+            if (op == Op.COUNT) {
+                values[id] = first ? 1 : values[id] + 1;
+                continue;
+            }
+            if (op == Op.COUNT_DISTINCT) {
+                if (first)
+                    this.distinct[a][id] = new HyperLogLog();
+                this.distinct[a][id].add(tup.getField(this.aggregateFields[a]));
+                continue;
+            }
+            if (op == Op.SC_AVG) {
+                long sum = IntegerAggregator.getLong(tup, this.aggregateFields[a]);
+                long count = IntegerAggregator.getLong(tup, this.aggregateFields[a] + 2);
+                values[id] = first ? sum : values[id] + sum;
+                this.counts[a][id] = first ? count : this.counts[a][id] + count;
+                continue;
+            }
+            long value = ((IntField) tup.getField(this.aggregateFields[a])).getValue();
+            if (op == Op.AVG || op == Op.SUM_COUNT) {
+                long count = 1;
+                values[id] = first ? value : values[id] + value;
+                this.counts[a][id] = first ? count : this.counts[a][id] + count;
+            } else if (this.quantiles[a] != null) {
+                if (first)
+                    this.quantiles[a][id] = new QuantileSketch();
+                this.quantiles[a][id].add((int) value);
+            } else if (first) {
+                values[id] = value;
+            } else if (op == Op.SUM) {
+                values[id] += value;
+            } else if (op == Op.MIN) {
+                if (value < values[id]) values[id] = value;
+            } else if (op == Op.MAX) {
+                if (value > values[id]) values[id] = value;
+            }
+        }
+    }
+
+    private static long[] grow(long[] a) {
+        long[] b = new long[a.length * 2];
+        System.arraycopy(a, 0, b, 0, a.length);
+        return b;
+    }
+
+    /**
+     * Create a DbIterator over group aggregate results.
+     *
+     * @return a DbIterator whose tuples are the group fields followed by the
+     *         aggregate values, one tuple per group
+     */
+    public DbIterator iterator() {
+        return iterator(false);
+    }
+
+    /**
+     * Like {@link #iterator}, but every AVG is returned as a sum and a count,
+     * as if it were a SUM_COUNT, so that the groups can be merged with SC_AVG
+     * later.
+     */
+    DbIterator partialIterator() {
+        return iterator(true);
+    }
+
+    private DbIterator iterator(boolean partial) {
+        TupleDesc outTd = this.td;
+        if (partial) {
+            ArrayList<Type> types = new ArrayList<Type>();
+            for (int i = 0; i < this.gbFields.length; i++)
+                types.add(this.td.getFieldType(i));
+            for (Op op : this.operators) {
+                types.add(Type.INT_TYPE);
+                if (op == Op.AVG || op == Op.SUM_COUNT)
+                    types.addAll(Arrays.asList(Type.INT_TYPE, Type.INT_TYPE, Type.INT_TYPE));
+            }
+            outTd = new TupleDesc(types.toArray(new Type[types.size()]));
+        }
+        ArrayList<Tuple> tuples = new ArrayList<Tuple>();
+        for (int id = 0; id < this.numGroups; id++) {
+            Tuple t = new Tuple(outTd);
+            int i = 0;
+            if (this.intGroups != null) {
+                t.setField(i++, new IntField(this.intGroups.key(id)));
+            } else {
+                for (Field f : this.keys.get(id))
+                    t.setField(i++, f);
+            }
+            for (int a = 0; a < this.operators.length; a++) {
+                Op op = this.operators[a];
+                long value = this.values[a][id];
+                if (op == Op.SUM_COUNT || (partial && op == Op.AVG)) {
+                    IntegerAggregator.setLong(t, i, value);
+                    IntegerAggregator.setLong(t, i + 2, this.counts[a][id]);
+                    i += 4;
+                } else if (op == Op.AVG || op == Op.SC_AVG) {
+                    t.setField(i++, new IntField((int) (value / this.counts[a][id])));
+                } else if (this.distinct[a] != null) {
+                    t.setField(i++, IntegerAggregator.toIntField(this.distinct[a][id].estimate(), op));
+                } else if (this.quantiles[a] != null) {
+                    t.setField(i++, new IntField(this.quantiles[a][id].quantile(op.quantile())));
+                } else {
+                    t.setField(i++, IntegerAggregator.toIntField(value, op));
+                }
+            }
+            tuples.add(t);
+        }
+        return new TupleIterator(outTd, tuples);
+    }
+
+}
@@ -109,8 +109,11 @@ public class HeapFile implements DbFile {
 
     /**
      * Inserts the specified tuple to the file on behalf of transaction.
-     * This method will acquire a lock on the affected pages of the file, and
-     * may block until the lock can be acquired.
+     * This method will acquire an intention lock on the pages it looks at
+     * and an exclusive lock on the slot the tuple goes into, skipping slots
+     * other transactions hold locks on, so it does not wait for them. It does
+     * not wait for scans of the page either, which can therefore see the new
+     * tuple as a phantom when they run again (see {@link HeapFileIterator}).
      *
      * @param tid The transaction performing the update
      * @param t The tuple to add.  This tuple should be updated to reflect that
@@ -124,61 +127,70 @@ public class HeapFile implements DbFile {
         if(t == null)
             throw new DbException("tuple cannot be added");
         ArrayList<Page> dirtyPages = new ArrayList<Page> ();
-        HeapPage hp = null;
-        HeapPageId pid = null;
-        //System.out.println("numPages: " + this.numPages());
-
-        for(int i = 0; i < this.numPages(); i++) {
-            pid = new HeapPageId(this.id, i);
-            try {
-                hp = (HeapPage) Database.getBufferPool().getPage(tid, pid, Permissions.READ_WRITE);
-            } catch (InterruptedException e) {
-                e.printStackTrace();
+        BufferPool bp = Database.getBufferPool();
+
+        for(int i = 0; ; i++) {
+            synchronized(this) {
+                if(i == this.numPages()) {
+                    // extend the file with an empty page; the tuple stays in
+                    // the buffer pool until the transaction commits
+                    this.writePage(new HeapPage(new HeapPageId(this.id, i),
+                                                HeapPage.createEmptyPageData()));
+                }
             }
-
-            if(hp.getNumEmptySlots() > 0) {
-                hp.insertTuple(t);
+            HeapPageId pid = new HeapPageId(this.id, i);
+            HeapPage hp = (HeapPage) bp.getPageForRows(tid, pid, Permissions.READ_WRITE);
+            byte[] tuple = null;
+            synchronized(hp) {
+                if(hp.getNumEmptySlots() == 0)
+                    continue;
+                for(int slot : hp.emptySlots()) {
+                    if(bp.tryLockTuple(tid, new RecordId(pid, slot), Permissions.READ_WRITE)) {
+                        hp.insertTuple(t, slot);
+                        hp.markSlotDirty(slot, tid);
+                        tuple = hp.slotData(slot);
+                        break;
+                    }
+                }
+            }
+            if(tuple != null) {
+                // logged outside the page latch; the row lock keeps the slot ours
+                Database.getLogFile().logInsert(tid, t.getRecordId(), tuple);
                 dirtyPages.add(hp);
-                break;
-            } else {
-                //System.out.println("there is no more empty slots");
+                return dirtyPages;
             }
         }
-
-        if(dirtyPages.size() == 0) {
-            // you need to create a page here
-            pid = new HeapPageId(this.id, this.numPages());
-            hp = new HeapPage(pid, HeapPage.createEmptyPageData());
-            hp.insertTuple(t);
-            dirtyPages.add(hp);
-            this.writePage(hp);
-        }
-
-        return dirtyPages;
     }
 
     /**
      * Removes the specifed tuple from the file on behalf of the specified
      * transaction.
-     * This method will acquire a lock on the affected pages of the file, and
-     * may block until the lock can be acquired.
+     * This method will acquire an exclusive lock on the tuple, and an
+     * intention lock on its page, and may block until the lock can be
+     * acquired.
      *
      * @throws DbException if the tuple cannot be deleted or is not a member
      *   of the file
      */
     public Page deleteTuple(TransactionId tid, Tuple t) throws DbException,
             TransactionAbortedException {
-        // all you need to do is to get the right page, this is what you need to refer to below 
-        // public  Page getPage(TransactionId tid, PageId pid, Permissions perm)
-        PageId pid = t.getRecordId().getPageId();
-        HeapPage hp = null;
-        try {
-            hp = (HeapPage) Database.getBufferPool().getPage(tid, pid, Permissions.READ_WRITE);
+        RecordId rid = t.getRecordId();
+        if(rid == null)
+            throw new DbException("tuple is not stored in a table");
+        BufferPool bp = Database.getBufferPool();
+        bp.lockTuple(tid, rid, Permissions.READ_WRITE);
+        HeapPage hp = (HeapPage) bp.getPageForRows(tid, rid.getPageId(), Permissions.READ_WRITE);
+        byte[] tuple;
+        synchronized(hp) {
+            tuple = hp.slotData(rid.tupleno());
             hp.deleteTuple(t);
-        } catch (InterruptedException e) {
-            e.printStackTrace();
+            hp.markSlotDirty(rid.tupleno(), tid);
+        }
+        try {
+            Database.getLogFile().logDelete(tid, rid, tuple);
+        } catch (IOException e) {
+            throw new DbException("could not log the delete of " + rid + ": " + e.getMessage());
         }
-
         return hp;
     }
 
@@ -187,6 +199,17 @@ public class HeapFile implements DbFile {
         return (DbFileIterator)(new HeapFileIterator(tid, this.id, this.numPages(), this));
     }
 
+    /**
+     * Returns an iterator over the tuples stored in this file that satisfy
+     * all of predicates. The predicates are evaluated on each page before
+     * its tuples are decoded, so tuples that do not match are never built.
+     *
+     * @param predicates comparisons of a field with a constant
+     */
+    public DbFileIterator iterator(TransactionId tid, List<Predicate> predicates) {
+        return new HeapFileIterator(tid, this.id, this.numPages(), this, predicates);
+    }
+
 }
 
 
@@ -3,6 +3,25 @@ package simpledb;
 import java.io.*;
 import java.util.*;
 
+/**
+ * Iterates over the tuples of a HeapFile page by page. If it was given
+ * predicates, it only returns the tuples that satisfy all of them, testing
+ * them on each page before tuples are decoded (see
+ * {@link HeapPage#iterator(List)}).
+ * <p>
+ * Pages are read with an intention lock and their tuples with row locks,
+ * so a scan only waits for writers of the tuples it reads, or skips them
+ * (see {@link BufferPool#setSkipLocked}). Snapshot
+ * readers read private copies of the pages without any locks.
+ * <p>
+ * This is weaker isolation than locking whole pages: the row locks keep the
+ * tuples a scan returned from changing until its transaction ends, but no
+ * lock covers the free slots of a page or the end of the file, so other
+ * transactions can still insert into pages the scan has read. A second scan
+ * in the same transaction may then return phantom rows. Read-only
+ * transactions that need repeatable results should read a snapshot
+ * instead.
+ */
 public class HeapFileIterator implements DbFileIterator {
     TransactionId tid; // I don't really know why this is nessesary yet, but it is in the argument so...
     int tableId;
@@ -11,6 +30,7 @@ public class HeapFileIterator implements DbFileIterator {
     HeapFile hf;
     Iterator<Tuple> tuples;
     HeapPageId pid;
+    List<Predicate> predicates; // null to return every tuple
     // above is just a tuples of the current page,
     // so you have to renew it everytime you open another page
 
@@ -21,6 +41,46 @@ public class HeapFileIterator implements DbFileIterator {
         this.currPageNo = 0;
         this.hf = hf;
         this.tuples = null;
+        this.predicates = null;
+    }
+
+    HeapFileIterator(TransactionId tid, int tableId, int numPages, HeapFile hf,
+            List<Predicate> predicates) {
+        this(tid, tableId, numPages, hf);
+        this.predicates = predicates;
+    }
+
+    /** @return an iterator over the tuples of pg this iterator returns */
+    private Iterator<Tuple> pageTuples(HeapPage pg) {
+        if (this.predicates == null || this.predicates.isEmpty())
+            return pg.iterator();
+        return pg.iterator(this.predicates);
+    }
+
+    /** @return an iterator over the tuples of page pid this iterator returns */
+    private Iterator<Tuple> loadPage(HeapPageId pid)
+            throws DbException, TransactionAbortedException {
+        BufferPool bp = Database.getBufferPool();
+        if (bp.isSnapshot(tid))
+            return pageTuples((HeapPage) bp.getPageForRows(tid, pid, Permissions.READ_ONLY));
+        Permissions skip = bp.getSkipLocked(tid);
+        ArrayList<Integer> slots;
+        if (skip == null) {
+            HeapPage pg = (HeapPage) bp.getPageForRows(tid, pid, Permissions.READ_ONLY);
+            slots = pg.lockableSlots(tid);
+            for (int slot : slots)
+                bp.lockTuple(tid, new RecordId(pid, slot), Permissions.READ_ONLY);
+        } else {
+            // only lock the tuples that match now, skipping those others hold
+            HeapPage pg = (HeapPage) bp.getPageForRows(tid, pid, skip);
+            slots = new ArrayList<Integer>();
+            for (int slot : pg.matchingSlots(this.predicates))
+                if (bp.tryLockTuple(tid, new RecordId(pid, slot), skip))
+                    slots.add(slot);
+        }
+        // a writer that aborted meanwhile may have dropped the page
+        HeapPage pg = (HeapPage) bp.getPageForRows(tid, pid, Permissions.READ_ONLY);
+        return pg.tuples(slots, this.predicates).iterator();
     }
     /**
      * Opens the iterator
@@ -30,15 +90,7 @@ public class HeapFileIterator implements DbFileIterator {
             throws DbException, TransactionAbortedException
     {
         this.currPageNo = 0;
-        HeapPageId pid = new HeapPageId(this.tableId, this.currPageNo);
-        HeapPage pg = null;
-        try {
-            pg = (HeapPage) (Database.getBufferPool().getPage(tid, pid, Permissions.READ_ONLY));
-        } catch (InterruptedException e) {
-            e.printStackTrace();
-        }
-
-        this.tuples = pg.iterator();
+        this.tuples = loadPage(new HeapPageId(this.tableId, this.currPageNo));
     }
 
     /** @return true if there are more tuples available. */
@@ -54,15 +106,13 @@ public class HeapFileIterator implements DbFileIterator {
             return true;
         }
 
-        if(this.currPageNo + 1 < this.numPages) {
+        // skip pages without (matching) tuples
+        while(this.currPageNo + 1 < this.numPages) {
             this.currPageNo++;
             this.pid = new HeapPageId(this.hf.getId(), this.currPageNo);
-            try {
-                this.tuples = ((HeapPage) Database.getBufferPool().getPage(tid, pid, Permissions.READ_ONLY)).iterator();
-            } catch (InterruptedException e) {
-                e.printStackTrace();
-            }
-            return this.tuples.hasNext();
+            this.tuples = loadPage(this.pid);
+            if(this.tuples.hasNext())
+                return true;
         }
         return false;
     }
@@ -89,10 +139,7 @@ public class HeapFileIterator implements DbFileIterator {
     public void rewind() throws DbException, TransactionAbortedException
     {
         this.currPageNo = 0;
-        HeapPageId pid = new HeapPageId(this.tableId, this.currPageNo);
-        // creating random page with a page number 0
-        HeapPage pg = (HeapPage)this.hf.readPage((PageId)pid);
-        this.tuples = pg.iterator();
+        this.tuples = loadPage(new HeapPageId(this.tableId, this.currPageNo));
 
     }
 
@@ -6,6 +6,18 @@ import java.io.*;
 /**
  * Each instance of HeapPage stores data for one page of HeapFiles and 
  * implements the Page interface that is used by BufferPool.
+ * <p>
+ * Tuples are decoded from the page bytes the first time they are needed.
+ * {@link #iterator(List)} evaluates simple predicates on the bytes of a
+ * tuple that has not been decoded yet, so that only matching tuples are
+ * ever built.
+ * <p>
+ * Transactions that lock single tuples may write different slots of one
+ * page at the same time. The page then records the writer of each slot,
+ * so that a commit can install only that transaction's slots on top of the
+ * last committed image ({@link #committedImage}) and an abort can restore
+ * only its slots ({@link #rollbackSlots}). The page's monitor is the latch
+ * that keeps these writers, and readers, from seeing half-made changes.
  *
  * @see HeapFile
  * @see BufferPool
@@ -16,10 +28,13 @@ public class HeapPage implements Page {
     HeapPageId pid;
     TupleDesc td;
     byte header[];
-    Tuple tuples[];
+    Tuple tuples[]; // decoded tuples by slot; null if not decoded yet
     int numSlots;
+    byte[] data; // the bytes this page was read from
+    int[] fieldOffsets; // offset of each field within a tuple
 
     byte[] oldData;
+    TransactionId[] slotWriters; // uncommitted writer of each slot; null if none
     TransactionId tid;
     boolean isPageDirty;
     ArrayList<Tuple> tupleArrayList;
@@ -44,25 +59,17 @@ public class HeapPage implements Page {
         this.pid = id;
         this.td = Database.getCatalog().getTupleDesc(id.getTableId());
         this.numSlots = getNumTuples();
-        DataInputStream dis = new DataInputStream(new ByteArrayInputStream(data));
+        this.data = data;
 
         // allocate and read the header slots of this page
         header = new byte[getHeaderSize()];
+        System.arraycopy(data, 0, header, 0, header.length);
 
-        for (int i=0; i<header.length; i++)
-        {
-            header[i] = dis.readByte();
-        }
-
-        try{
-            // allocate and read the actual records of this page
-            tuples = new Tuple[numSlots];
-            for (int i=0; i<tuples.length; i++)
-                tuples[i] = readNextTuple(dis,i);
-        }catch(NoSuchElementException e){
-            e.printStackTrace();
-        }
-        dis.close();
+        // the records of this page are decoded by getTuple
+        tuples = new Tuple[numSlots];
+        fieldOffsets = new int[td.numFields()];
+        for (int j=1; j<fieldOffsets.length; j++)
+            fieldOffsets[j] = fieldOffsets[j-1] + td.getFieldType(j-1).getLen();
 
         setBeforeImage();
         this.tid = null;
@@ -114,24 +121,24 @@ public class HeapPage implements Page {
         return this.pid;
     }
 
+    /** @return the offset of the tuple in slot slotId within data */
+    private int slotOffset(int slotId) {
+        return header.length + slotId * td.getSize();
+    }
+
     /**
-     * Suck up tuples from the source file.
+     * @return the tuple in slot slotId, decoding it from the page bytes if
+     *         that has not happened yet, or null if the slot is empty
      */
-    private Tuple readNextTuple(DataInputStream dis, int slotId) throws NoSuchElementException {
-        // if associated bit is not set, read forward to the next tuple, and
-        // return null.
-        if (!isSlotUsed(slotId)) {
-            for (int i=0; i<td.getSize(); i++) {
-                try {
-                    dis.readByte();
-                } catch (IOException e) {
-                    throw new NoSuchElementException("error reading empty tuple");
-                }
-            }
+    private Tuple getTuple(int slotId) throws NoSuchElementException {
+        if (!isSlotUsed(slotId))
             return null;
-        }
+        if (tuples[slotId] != null)
+            return tuples[slotId];
 
         // read fields in the tuple
+        DataInputStream dis = new DataInputStream(new ByteArrayInputStream(
+                data, slotOffset(slotId), td.getSize()));
         Tuple t = new Tuple(td);
         RecordId rid = new RecordId(pid, slotId);
         t.setRecordId(rid);
@@ -145,9 +152,51 @@ public class HeapPage implements Page {
             throw new NoSuchElementException("parsing error!");
         }
 
+        tuples[slotId] = t;
         return t;
     }
 
+    /**
+     * @return true if the tuple in the used slot slotId satisfies p. An int
+     *         field of a tuple that is not decoded yet is compared right on
+     *         the page bytes; a string field is decoded on its own.
+     */
+    private boolean matches(int slotId, Predicate p) {
+        if (tuples[slotId] != null)
+            return p.filter(tuples[slotId]);
+        int off = slotOffset(slotId) + fieldOffsets[p.getField()];
+        Type type = td.getFieldType(p.getField());
+        if (type == Type.INT_TYPE && p.getOperand() instanceof IntField) {
+            int v = ((data[off] & 0xff) << 24) | ((data[off + 1] & 0xff) << 16)
+                    | ((data[off + 2] & 0xff) << 8) | (data[off + 3] & 0xff);
+            int c = ((IntField) p.getOperand()).getValue();
+            switch (p.getOp()) {
+            case EQUALS:
+            case LIKE:
+                return v == c;
+            case NOT_EQUALS:
+                return v != c;
+            case GREATER_THAN:
+                return v > c;
+            case GREATER_THAN_OR_EQ:
+                return v >= c;
+            case LESS_THAN:
+                return v < c;
+            case LESS_THAN_OR_EQ:
+                return v <= c;
+            }
+            return false;
+        }
+        try {
+            Field f = type.parse(new DataInputStream(
+                    new ByteArrayInputStream(data, off, type.getLen())));
+            return f.compare(p.getOp(), p.getOperand());
+        } catch (java.text.ParseException e) {
+            e.printStackTrace();
+            throw new NoSuchElementException("parsing error!");
+        }
+    }
+
     /**
      * Generates a byte array representing the contents of this page.
      * Used to serialize this page to disk.
@@ -190,6 +239,16 @@ public class HeapPage implements Page {
                 continue;
             }
 
+            // non-empty slot that was never decoded: its bytes are unchanged
+            if (tuples[i] == null) {
+                try {
+                    dos.write(data, slotOffset(i), td.getSize());
+                } catch (IOException e) {
+                    e.printStackTrace();
+                }
+                continue;
+            }
+
             // non-empty slot
             for (int j=0; j<td.numFields(); j++) {
                 Field f = tuples[i].getField(j);
@@ -244,7 +303,7 @@ public class HeapPage implements Page {
     public void deleteTuple(Tuple t) throws DbException {
         RecordId rid = t.getRecordId();
         int tupleNo = rid.tupleno();
-        if(rid.getPageId() != this.getId()) {
+        if(!this.getId().equals(rid.getPageId())) {
             throw new DbException("RecordId mismatch!");
         }
         if(!this.isSlotUsed(tupleNo)) {
@@ -266,16 +325,215 @@ public class HeapPage implements Page {
             throw new DbException("The page is full when you insert!");
         for(int i = 0; i < this.getNumTuples(); i++) {
             if(this.isSlotUsed(i) == false) {
-                RecordId rid = new RecordId(this.pid, i);
-                t.setRecordId(rid);
-                this.tuples[i] = t;
-                this.markSlotUsed(i, true);
+                this.insertTuple(t, i);
                 return;
             }
         }
         throw new DbException("The page is full when you insert! and you should not come here either");
     }
 
+    /**
+     * Adds the specified tuple to the empty slot slotId of the page.
+     * @throws DbException if the slot is in use.
+     */
+    public void insertTuple(Tuple t, int slotId) throws DbException {
+        if(this.isSlotUsed(slotId))
+            throw new DbException("Slot " + slotId + " is in use when you insert!");
+        t.setRecordId(new RecordId(this.pid, slotId));
+        this.tuples[slotId] = t;
+        this.markSlotUsed(slotId, true);
+    }
+
+    /**
+     * @return the bytes of the tuple in slot slotId as they are stored on
+     *         the page, or null if the slot is empty
+     */
+    public synchronized byte[] slotData(int slotId) {
+        if(!this.isSlotUsed(slotId))
+            return null;
+        int size = this.td.getSize();
+        if(this.tuples[slotId] == null)
+            return Arrays.copyOfRange(this.data, slotOffset(slotId), slotOffset(slotId) + size);
+        ByteArrayOutputStream baos = new ByteArrayOutputStream(size);
+        DataOutputStream dos = new DataOutputStream(baos);
+        try {
+            for(int j = 0; j < this.td.numFields(); j++)
+                this.tuples[slotId].getField(j).serialize(dos);
+        } catch (IOException e) {
+            // this really shouldn't happen
+            e.printStackTrace();
+        }
+        return baos.toByteArray();
+    }
+
+    /**
+     * Make slot slotId hold the tuple stored as tuple, or be empty if tuple
+     * is null. Used by LogFile to undo and redo logged slot changes.
+     * @return true if the slot changed
+     */
+    public synchronized boolean setSlot(int slotId, byte[] tuple) {
+        int off = slotOffset(slotId);
+        int size = this.td.getSize();
+        byte[] now = this.slotData(slotId);
+        if(tuple == null ? now == null : now != null && Arrays.equals(now, tuple))
+            return false;
+        this.markSlotUsed(slotId, tuple != null);
+        if(tuple != null)
+            System.arraycopy(tuple, 0, this.data, off, size);
+        else
+            Arrays.fill(this.data, off, off + size, (byte) 0);
+        this.tuples[slotId] = null;
+        this.tupleArrayList = null;
+        return true;
+    }
+
+    /** Record that transaction tid changed slot slotId. */
+    public void markSlotDirty(int slotId, TransactionId tid) {
+        if(this.slotWriters == null)
+            this.slotWriters = new TransactionId[this.numSlots];
+        this.slotWriters[slotId] = tid;
+    }
+
+    /** @return true if a transaction other than tid changed slot slotId */
+    private boolean writtenByOther(int slotId, TransactionId tid) {
+        TransactionId w = this.slotWriters == null ? null : this.slotWriters[slotId];
+        return w != null && !w.equals(tid);
+    }
+
+    /** @return true if a transaction other than tid changed a slot of this page */
+    public synchronized boolean hasOtherWriters(TransactionId tid) {
+        for(int i = 0; this.slotWriters != null && i < this.numSlots; i++) {
+            if(writtenByOther(i, tid))
+                return true;
+        }
+        return false;
+    }
+
+    /**
+     * @return true if tid changed a slot of this page, or if tid dirtied the
+     *         page without recording the writers of its slots
+     */
+    public synchronized boolean wroteSlots(TransactionId tid) {
+        if(this.slotWriters == null)
+            return this.isDirty() != null && this.isDirty().equals(tid);
+        for(int i = 0; i < this.numSlots; i++) {
+            if(this.slotWriters[i] != null && this.slotWriters[i].equals(tid))
+                return true;
+        }
+        return false;
+    }
+
+    /** @return the empty slots of this page */
+    public synchronized ArrayList<Integer> emptySlots() {
+        ArrayList<Integer> slots = new ArrayList<Integer>();
+        for(int i = 0; i < this.numSlots; i++) {
+            if(!this.isSlotUsed(i))
+                slots.add(i);
+        }
+        return slots;
+    }
+
+    /**
+     * @return the slots tid has to lock before reading this page tuple by
+     *         tuple: the used ones, and the ones other transactions changed,
+     *         whose committed contents may differ
+     */
+    public synchronized ArrayList<Integer> lockableSlots(TransactionId tid) {
+        ArrayList<Integer> slots = new ArrayList<Integer>();
+        for(int i = 0; i < this.numSlots; i++) {
+            if(this.isSlotUsed(i) || writtenByOther(i, tid))
+                slots.add(i);
+        }
+        return slots;
+    }
+
+    /**
+     * @return the used slots whose tuples, as they are now, satisfy all of
+     *         predicates (or all used slots if predicates is null)
+     */
+    public synchronized ArrayList<Integer> matchingSlots(List<Predicate> predicates) {
+        ArrayList<Integer> slots = new ArrayList<Integer>();
+        for(int i = 0; i < this.numSlots; i++) {
+            if(!this.isSlotUsed(i))
+                continue;
+            boolean match = true;
+            for(int j = 0; match && predicates != null && j < predicates.size(); j++)
+                match = matches(i, predicates.get(j));
+            if(match)
+                slots.add(i);
+        }
+        return slots;
+    }
+
+    /**
+     * @return the tuples in the used slots among slots that satisfy all of
+     *         predicates (or all of them if predicates is null)
+     */
+    public synchronized ArrayList<Tuple> tuples(List<Integer> slots, List<Predicate> predicates) {
+        ArrayList<Tuple> out = new ArrayList<Tuple>();
+        for(int i : slots) {
+            if(!this.isSlotUsed(i))
+                continue;
+            boolean match = true;
+            for(int j = 0; match && predicates != null && j < predicates.size(); j++)
+                match = matches(i, predicates.get(j));
+            if(match)
+                out.add(this.getTuple(i));
+        }
+        return out;
+    }
+
+    /**
+     * @return the bytes of this page with the changes of tid, and no other
+     *         uncommitted changes, on top of the before image
+     */
+    public synchronized byte[] committedImage(TransactionId tid) {
+        byte[] live = this.getPageData();
+        if(this.slotWriters == null)
+            return live;
+        byte[] image = this.oldData.clone();
+        int size = this.td.getSize();
+        for(int i = 0; i < this.numSlots; i++) {
+            if(this.slotWriters[i] == null || !this.slotWriters[i].equals(tid))
+                continue;
+            int bit = 1 << (i % 8);
+            image[i / 8] = (byte) ((image[i / 8] & ~bit) | (live[i / 8] & bit));
+            System.arraycopy(live, slotOffset(i), image, slotOffset(i), size);
+        }
+        return image;
+    }
+
+    /** Make the changes of the committed transaction tid part of the before image. */
+    public synchronized void commitSlots(TransactionId tid) {
+        this.oldData = this.committedImage(tid);
+        this.clearSlots(tid);
+    }
+
+    /** Undo the changes of the aborted transaction tid, leaving those of others. */
+    public synchronized void rollbackSlots(TransactionId tid) {
+        int size = this.td.getSize();
+        for(int i = 0; this.slotWriters != null && i < this.numSlots; i++) {
+            if(this.slotWriters[i] == null || !this.slotWriters[i].equals(tid))
+                continue;
+            this.markSlotUsed(i, (this.oldData[i / 8] & (1 << (i % 8))) != 0);
+            System.arraycopy(this.oldData, slotOffset(i), this.data, slotOffset(i), size);
+            this.tuples[i] = null;
+        }
+        this.tupleArrayList = null;
+        this.clearSlots(tid);
+    }
+
+    private void clearSlots(TransactionId tid) {
+        boolean any = false;
+        for(int i = 0; this.slotWriters != null && i < this.numSlots; i++) {
+            if(this.slotWriters[i] != null && this.slotWriters[i].equals(tid))
+                this.slotWriters[i] = null;
+            any |= this.slotWriters[i] != null;
+        }
+        if(!any)
+            this.slotWriters = null;
+    }
+
     /**
      * Marks this page as dirty/not dirty and record that transaction
      * that did the dirtying
@@ -351,7 +609,7 @@ public class HeapPage implements Page {
             this.tupleArrayList = new ArrayList<Tuple>();
             for (int i = 0; i < this.numSlots; i++) {
                 if (this.isSlotUsed(i)) {
-                    this.tupleArrayList.add(this.tuples[i]);
+                    this.tupleArrayList.add(this.getTuple(i));
                 }
             }
             return this.tupleArrayList.iterator();
@@ -360,13 +618,31 @@ public class HeapPage implements Page {
         }
     }
 
+    /**
+     * @return an iterator over the tuples on this page that satisfy all of
+     *         predicates. Only those tuples are decoded.
+     */
+    public Iterator<Tuple> iterator(List<Predicate> predicates) {
+        ArrayList<Tuple> matching = new ArrayList<Tuple>();
+        for (int i = 0; i < this.numSlots; i++) {
+            if (!this.isSlotUsed(i))
+                continue;
+            boolean match = true;
+            for (int j = 0; match && j < predicates.size(); j++)
+                match = matches(i, predicates.get(j));
+            if (match)
+                matching.add(this.getTuple(i));
+        }
+        return matching.iterator();
+    }
+
     public ArrayList<Tuple> arrayList() {
         if(this.tupleArrayList != null) {
             return this.tupleArrayList;
         } else {
             for(int i = 0; i < this.numSlots; i++) {
                 if(this.isSlotUsed(i)) {
-                    this.tupleArrayList.add(this.tuples[i]);
+                    this.tupleArrayList.add(this.getTuple(i));
                 }
             }
             return this.tupleArrayList;
@@ -0,0 +1,90 @@
+package simpledb;
+
+import java.io.Serializable;
+
+/**
+ * A HyperLogLog sketch that estimates the number of distinct values added to
+ * it, used for APPROX_COUNT_DISTINCT. It takes a fixed 2^PRECISION bytes no
+ * matter how many values are added, and the estimate has a standard error of
+ * about 1.04 / sqrt(2^PRECISION), i.e. 2.3%.
+ * <p>
+ * Sketches built over disjoint parts of the input can be combined with
+ * {@link #merge}, which gives the same sketch as adding all values to one.
+ */
+public class HyperLogLog implements Serializable {
+
+    private static final long serialVersionUID = 1L;
+
+    static final int PRECISION = 11;
+    static final int NUM_REGISTERS = 1 << PRECISION;
+
+    private byte[] registers;
+
+    /** Creates an empty sketch. */
+    public HyperLogLog() {
+        this.registers = new byte[NUM_REGISTERS];
+    }
+
+    /** @return a well mixed 64-bit hash of f */
+    static long hash64(Field f) {
+        long h;
+        if (f instanceof IntField) {
+            h = ((IntField) f).getValue();
+        } else {
+            // FNV-1a over the characters of the string
+            String s = ((StringField) f).getValue();
+            h = 0xcbf29ce484222325L;
+            for (int i = 0; i < s.length(); i++) {
+                h ^= s.charAt(i);
+                h *= 0x100000001b3L;
+            }
+        }
+        // splitmix64 finalizer
+        h += 0x9E3779B97F4A7C15L;
+        h = (h ^ (h >>> 30)) * 0xBF58476D1CE4E5B9L;
+        h = (h ^ (h >>> 27)) * 0x94D049BB133111EBL;
+        return h ^ (h >>> 31);
+    }
+
+    /** Add f to the sketch. */
+    public void add(Field f) {
+        long h = hash64(f);
+        int register = (int) (h >>> (64 - PRECISION));
+        // the guard bit bounds the rank when the remaining bits are all zero
+        long rest = (h << PRECISION) | (1L << (PRECISION - 1));
+        byte rank = (byte) (Long.numberOfLeadingZeros(rest) + 1);
+        if (rank > this.registers[register])
+            this.registers[register] = rank;
+    }
+
+    /** Add all values of other to this sketch. */
+    public void merge(HyperLogLog other) {
+        for (int i = 0; i < NUM_REGISTERS; i++) {
+            if (other.registers[i] > this.registers[i])
+                this.registers[i] = other.registers[i];
+        }
+    }
+
+    /** @return the estimated number of distinct values added */
+    public long estimate() {
+        double sum = 0;
+        int zeros = 0;
+        for (int i = 0; i < NUM_REGISTERS; i++) {
+            sum += Math.pow(2, -this.registers[i]);
+            if (this.registers[i] == 0)
+                zeros++;
+        }
+        double m = NUM_REGISTERS;
+        double estimate = 0.7213 / (1 + 1.079 / m) * m * m / sum;
+        if (estimate <= 2.5 * m && zeros > 0) {
+            // small cardinalities: linear counting is more accurate
+            estimate = m * Math.log(m / zeros);
+        }
+        return Math.round(estimate);
+    }
+
+    /** @return the size of this sketch in bytes */
+    public int sizeInBytes() {
+        return NUM_REGISTERS;
+    }
+}
@@ -0,0 +1,199 @@
+package simpledb;
+
+import java.io.Serializable;
+import java.util.Arrays;
+
+/**
+ * IntHashTable is an open-addressing hash table specialized for int keys, used
+ * by the hash join and the integer group-by in place of a
+ * HashMap&lt;Field, ...&gt; when the key column is an INT_TYPE.
+ * <p>
+ * Every distinct key gets a dense id (0, 1, 2, ... in insertion order) that
+ * callers can use to index their own per-key arrays, see {@link #findOrAdd}.
+ * The table can also hold rows: tuples added with {@link #addRow} are stored
+ * in one contiguous array and chained per key through a parallel int array,
+ * so neither the keys nor the rows need a boxed object or a list per bucket.
+ * <p>
+ * Lookups use linear probing over power-of-two sized arrays, and the table
+ * doubles once it is more than half full.
+ */
+public class IntHashTable implements Serializable {
+
+    private static final long serialVersionUID = 1L;
+
+    /** Returned by lookups when a key or row does not exist. */
+    public static final int NONE = -1;
+
+    static final int MIN_CAPACITY = 16;
+
+    // open-addressing slots; slotIds[i] == NONE marks an empty slot
+    private int[] slotKeys;
+    private int[] slotIds;
+    private int mask;
+    private int shift;
+
+    // per key id
+    private int[] keys;
+    private int[] firstRow;
+    private int[] lastRow;
+    private int numKeys;
+
+    // per row
+    private Tuple[] rows;
+    private int[] nextRow;
+    private int numRows;
+
+    /** Creates an empty table. */
+    public IntHashTable() {
+        this(MIN_CAPACITY);
+    }
+
+    /**
+     * Creates an empty table sized for about expectedKeys distinct keys.
+     */
+    public IntHashTable(int expectedKeys) {
+        int capacity = MIN_CAPACITY;
+        while (capacity < expectedKeys * 2)
+            capacity <<= 1;
+        this.slotKeys = new int[capacity];
+        this.slotIds = new int[capacity];
+        Arrays.fill(this.slotIds, NONE);
+        this.mask = capacity - 1;
+        this.shift = 32 - Integer.numberOfTrailingZeros(capacity);
+        this.keys = new int[capacity / 2];
+        this.firstRow = new int[capacity / 2];
+        this.lastRow = new int[capacity / 2];
+        this.numKeys = 0;
+        this.rows = new Tuple[MIN_CAPACITY];
+        this.nextRow = new int[MIN_CAPACITY];
+        this.numRows = 0;
+    }
+
+    private int slotOf(int key) {
+        // fibonacci hashing: the top bits of key * 2^32/phi spread runs of
+        // consecutive keys over the whole table
+        return (key * 0x9E3779B9) >>> this.shift;
+    }
+
+    /**
+     * @return the id of key, or {@link #NONE} if key is not in the table
+     */
+    public int find(int key) {
+        int slot = slotOf(key);
+        while (this.slotIds[slot] != NONE) {
+            if (this.slotKeys[slot] == key)
+                return this.slotIds[slot];
+            slot = (slot + 1) & this.mask;
+        }
+        return NONE;
+    }
+
+    /**
+     * @return the id of key, adding key to the table if it is not there yet.
+     *         Ids are assigned densely in insertion order.
+     */
+    public int findOrAdd(int key) {
+        int slot = slotOf(key);
+        while (this.slotIds[slot] != NONE) {
+            if (this.slotKeys[slot] == key)
+                return this.slotIds[slot];
+            slot = (slot + 1) & this.mask;
+        }
+        int id = this.numKeys++;
+        this.slotKeys[slot] = key;
+        this.slotIds[slot] = id;
+        if (id == this.keys.length) {
+            this.keys = grow(this.keys);
+            this.firstRow = grow(this.firstRow);
+            this.lastRow = grow(this.lastRow);
+        }
+        this.keys[id] = key;
+        this.firstRow[id] = NONE;
+        this.lastRow[id] = NONE;
+        if (this.numKeys * 2 > this.slotIds.length)
+            rehash();
+        return id;
+    }
+
+    private void rehash() {
+        int capacity = this.slotIds.length * 2;
+        this.slotKeys = new int[capacity];
+        this.slotIds = new int[capacity];
+        Arrays.fill(this.slotIds, NONE);
+        this.mask = capacity - 1;
+        this.shift = 32 - Integer.numberOfTrailingZeros(capacity);
+        for (int id = 0; id < this.numKeys; id++) {
+            int slot = slotOf(this.keys[id]);
+            while (this.slotIds[slot] != NONE)
+                slot = (slot + 1) & this.mask;
+            this.slotKeys[slot] = this.keys[id];
+            this.slotIds[slot] = id;
+        }
+    }
+
+    private static int[] grow(int[] a) {
+        int[] b = new int[a.length * 2];
+        System.arraycopy(a, 0, b, 0, a.length);
+        return b;
+    }
+
+    /** @return the number of distinct keys in the table */
+    public int numKeys() {
+        return this.numKeys;
+    }
+
+    /** @return the key with the given id */
+    public int key(int id) {
+        return this.keys[id];
+    }
+
+    /**
+     * Store t under key. Rows with the same key are returned by
+     * {@link #firstRow}/{@link #nextRow} in the order they were added.
+     *
+     * @return the id of key
+     */
+    public int addRow(int key, Tuple t) {
+        int id = findOrAdd(key);
+        int row = this.numRows++;
+        if (row == this.rows.length) {
+            Tuple[] newRows = new Tuple[this.rows.length * 2];
+            System.arraycopy(this.rows, 0, newRows, 0, this.rows.length);
+            this.rows = newRows;
+            this.nextRow = grow(this.nextRow);
+        }
+        this.rows[row] = t;
+        this.nextRow[row] = NONE;
+        if (this.lastRow[id] == NONE)
+            this.firstRow[id] = row;
+        else
+            this.nextRow[this.lastRow[id]] = row;
+        this.lastRow[id] = row;
+        return id;
+    }
+
+    /**
+     * @return the first row stored under key, or {@link #NONE} if there is none
+     */
+    public int firstRow(int key) {
+        int id = find(key);
+        return id == NONE ? NONE : this.firstRow[id];
+    }
+
+    /**
+     * @return the row after row with the same key, or {@link #NONE}
+     */
+    public int nextRow(int row) {
+        return this.nextRow[row];
+    }
+
+    /** @return the tuple stored in row */
+    public Tuple row(int row) {
+        return this.rows[row];
+    }
+
+    /** @return the number of rows stored in the table */
+    public int numRows() {
+        return this.numRows;
+    }
+}
@@ -1,10 +1,26 @@
 package simpledb;
 import java.util.HashMap;
 import java.util.ArrayList;
-import java.util.Map;
+import java.util.Arrays;
 
 /**
  * Knows how to compute some aggregate over a set of IntFields.
+ * <p>
+ * With grouping, SUM_COUNT produces (group, sum, count) tuples and SC_AVG
+ * averages such tuples (the sum at afield, the count at afield + 2), which is
+ * how partial averages are carried between aggregation passes. The sum and
+ * the count are longs, each stored as two int fields, high half first (see
+ * {@link #setLong} and {@link #getLong}), so that a partial sum past the int
+ * range survives until it is divided.
+ * <p>
+ * Every group gets a dense id that indexes flat arrays of primitive long
+ * accumulators, so merging a tuple neither boxes nor allocates. Averages are
+ * kept as a sum and a count and only divided in {@link #iterator}. Results
+ * that do not fit in an IntField raise an ArithmeticException instead of
+ * wrapping around.
+ * <p>
+ * COUNT_DISTINCT and the percentiles are approximated with a fixed-size
+ * {@link HyperLogLog} or {@link QuantileSketch} per group.
  */
 public class IntegerAggregator implements Aggregator {
 
@@ -16,16 +32,24 @@ public class IntegerAggregator implements Aggregator {
     Op operator;
     TupleDesc td;
 
-    HashMap<Field, Integer> opAggregator;
-    HashMap<Field, Integer> sumAggregator;
-    HashMap<Field, Integer> cntAggregator;
-    Integer sum;
-    Integer cnt;
-    Integer num;
+    // maps each group to a dense id that indexes the arrays below: intGroups
+    // when the group-by field is an int, groups otherwise
+    IntHashTable intGroups;
+    HashMap<Field, Integer> groups;
+    ArrayList<Field> keys; // group value by id, when groups is used
+    int numGroups;
+
+    // per group id: MIN/MAX/SUM/COUNT value, or the sum for the averages
+    long[] values;
+    // per group id: number of values averaged by AVG, SUM_COUNT and SC_AVG
+    long[] counts;
+    // per group id: the sketch of COUNT_DISTINCT or of a percentile
+    HyperLogLog[] distinct;
+    QuantileSketch[] quantiles;
 
     /**
      * Aggregate constructor
-     * 
+     *
      * @param gbfield
      *            the 0-based index of the group-by field in the tuple, or
      *            NO_GROUPING if there is no grouping
@@ -43,130 +67,219 @@ public class IntegerAggregator implements Aggregator {
         this.gbFieldType = gbfieldtype;
         this.aggregateField = afield;
         this.operator = what;
-        if(gbfield != NO_GROUPING) {
-            this.opAggregator = new HashMap<Field, Integer> ();
-            if(what == Aggregator.Op.AVG) {
-                this.cntAggregator = new HashMap<Field, Integer> ();
-                this.sumAggregator = new HashMap<Field, Integer> ();
-            }
-            this.td = new TupleDesc(new Type[]{gbfieldtype, Type.INT_TYPE});
+        if(gbfield != NO_GROUPING && gbfieldtype == Type.INT_TYPE) {
+            this.intGroups = new IntHashTable();
+            this.td = groupedTupleDesc(gbfieldtype, what);
+        } else if(gbfield != NO_GROUPING) {
+            this.groups = new HashMap<Field, Integer> ();
+            this.keys = new ArrayList<Field> ();
+            this.td = groupedTupleDesc(gbfieldtype, what);
+        } else {
+            this.td = new TupleDesc(new Type[]{Type.INT_TYPE});
+        }
+        this.numGroups = 0;
+        this.values = new long[IntHashTable.MIN_CAPACITY];
+        this.counts = new long[IntHashTable.MIN_CAPACITY];
+        if(what == Aggregator.Op.COUNT_DISTINCT) {
+            this.distinct = new HyperLogLog[IntHashTable.MIN_CAPACITY];
+        } else if(what.quantile() >= 0) {
+            this.quantiles = new QuantileSketch[IntHashTable.MIN_CAPACITY];
+        }
+    }
+
+    private static TupleDesc groupedTupleDesc(Type gbfieldtype, Op what) {
+        if(what == Aggregator.Op.SUM_COUNT) {
+            return new TupleDesc(new Type[]{gbfieldtype, Type.INT_TYPE, Type.INT_TYPE,
+                    Type.INT_TYPE, Type.INT_TYPE});
+        }
+        return new TupleDesc(new Type[]{gbfieldtype, Type.INT_TYPE});
+    }
+
+    /**
+     * @return the number of groups seen so far
+     */
+    public int numGroups() {
+        return this.gbField == NO_GROUPING ? 1 : this.numGroups;
+    }
+
+    /** @return the id of the group of tup, adding the group if it is new */
+    private int groupOf(Tuple tup) {
+        int id;
+        if(this.gbField == NO_GROUPING) {
+            id = 0;
+        } else if(this.intGroups != null) {
+            id = this.intGroups.findOrAdd(((IntField) tup.getField(this.gbField)).getValue());
         } else {
-            sum = 0;
-            cnt = 0;
-            if(what == Aggregator.Op.MIN) {
-                num = Integer.MAX_VALUE;
-            } else if(what == Aggregator.Op.MAX) {
-                num = Integer.MIN_VALUE;
+            Field key = tup.getField(this.gbField);
+            Integer known = this.groups.get(key);
+            if(known == null) {
+                known = this.numGroups;
+                this.groups.put(key, known);
+                this.keys.add(key);
             }
-            this.td = new TupleDesc(new Type[]{gbfieldtype});
+            id = known;
         }
+        if(id == this.numGroups) {
+            this.numGroups++;
+            if(id == this.values.length) {
+                this.values = grow(this.values);
+                this.counts = grow(this.counts);
+                if(this.distinct != null) {
+                    this.distinct = Arrays.copyOf(this.distinct, this.distinct.length * 2);
+                }
+                if(this.quantiles != null) {
+                    this.quantiles = Arrays.copyOf(this.quantiles, this.quantiles.length * 2);
+                }
+            }
+        }
+        return id;
     }
 
     /**
      * Merge a new tuple into the aggregate, grouping as indicated in the
      * constructor
-     * 
+     *
      * @param tup
      *            the Tuple containing an aggregate field and a group-by field
      */
     public void mergeTupleIntoGroup(Tuple tup) {
-
-        if(this.gbField == NO_GROUPING) {
-            Field appendField = tup.getField(this.aggregateField);
-            Integer value = Integer.valueOf(((IntField)(appendField)).getValue());
-            if(this.operator == Aggregator.Op.COUNT) {
-                num++;
-            } else if (this.operator == Aggregator.Op.AVG) {
-                cnt++;
-                sum += value;
-                num = sum/cnt;
-            } else if (this.operator == Aggregator.Op.MIN) {
-                if(num > value) num = value;
-            } else if (this.operator == Aggregator.Op.MAX) {
-                if(num < value) num = value;
-            } else if (this.operator == Aggregator.Op.SUM) {
-                num += value;
+        int numGroups = this.numGroups;
+        int id = groupOf(tup);
+        boolean first = id == numGroups;
+        long value = this.operator == Aggregator.Op.SC_AVG
+                ? getLong(tup, this.aggregateField)
+                : ((IntField) tup.getField(this.aggregateField)).getValue();
+        switch(this.operator) {
+        case COUNT:
+            this.values[id] = first ? 1 : this.values[id] + 1;
+            break;
+        case SUM:
+            this.values[id] = first ? value : this.values[id] + value;
+            break;
+        case MIN:
+            if(first || value < this.values[id]) this.values[id] = value;
+            break;
+        case MAX:
+            if(first || value > this.values[id]) this.values[id] = value;
+            break;
+        case AVG:
+        case SUM_COUNT:
+        case SC_AVG:
+            long count = this.operator == Aggregator.Op.SC_AVG
+                    ? getLong(tup, this.aggregateField + 2) : 1;
+            this.values[id] = first ? value : this.values[id] + value;
+            this.counts[id] = first ? count : this.counts[id] + count;
+            break;
+        case COUNT_DISTINCT:
+            if(first) {
+                this.distinct[id] = new HyperLogLog();
             }
-
-        } else {
-            Field tmpField = tup.getField(this.gbField);
-            Field appendField = tup.getField(this.aggregateField);
-            if (this.operator == Aggregator.Op.SUM) {
-                if (opAggregator.containsKey(tmpField)) {
-                    Integer tmp = opAggregator.get(tmpField) + Integer.valueOf(((IntField) (appendField)).getValue());
-                    opAggregator.put(tmpField, tmp);
-                } else {
-                    opAggregator.put(tmpField, Integer.valueOf(((IntField) (appendField)).getValue()));
-                }
-            } else if (this.operator == Aggregator.Op.MIN) {
-                if (opAggregator.containsKey(tmpField)) {
-                    if (Integer.valueOf(((IntField) (appendField)).getValue()) < opAggregator.get(tmpField)) {
-                        opAggregator.put(tmpField, Integer.valueOf(((IntField) (appendField)).getValue()));
-                    }
-
-                } else {
-                    opAggregator.put(tmpField, Integer.valueOf(((IntField) (appendField)).getValue()));
-                }
-            } else if (this.operator == Aggregator.Op.MAX) {
-                if (opAggregator.containsKey(tmpField)) {
-                    if (Integer.valueOf(((IntField) (appendField)).getValue()) > opAggregator.get(tmpField))
-                        opAggregator.put(tmpField, Integer.valueOf(((IntField) (appendField)).getValue()));
-                } else {
-                    opAggregator.put(tmpField, Integer.valueOf(((IntField) (appendField)).getValue()));
-                }
-            } else if (this.operator == Aggregator.Op.AVG) {
-                if (opAggregator.containsKey(tmpField)) {
-                    Integer cnt = cntAggregator.get(tmpField);
-                    Integer sum = sumAggregator.get(tmpField);
-                    Integer val = Integer.valueOf(((IntField)(appendField)).getValue());
-                    cntAggregator.put(tmpField, cnt + 1);
-                    sumAggregator.put(tmpField, sum + val);
-                    opAggregator.put(tmpField, (sum + val)/(cnt + 1));
-                } else {
-                    Integer val = Integer.valueOf(((IntField)(appendField)).getValue());
-                    opAggregator.put(tmpField, val);
-                    cntAggregator.put(tmpField, 1);
-                    sumAggregator.put(tmpField, val);
+            this.distinct[id].add(tup.getField(this.aggregateField));
+            break;
+        default:
+            if(this.quantiles != null) {
+                if(first) {
+                    this.quantiles[id] = new QuantileSketch();
                 }
-            } else if (this.operator == Aggregator.Op.COUNT) {
-                if(opAggregator.containsKey(tmpField)) {
-                    opAggregator.put(tmpField, opAggregator.get(tmpField) + 1);
-                } else {
-                    opAggregator.put(tmpField, 1);
-                }
-            } else {
-                assert false;
+                this.quantiles[id].add((int) value);
+                break;
             }
+            assert false;
         }
     }
 
+    private static long[] grow(long[] a) {
+        long[] b = new long[a.length * 2];
+        System.arraycopy(a, 0, b, 0, a.length);
+        return b;
+    }
+
+    /**
+     * @return value as an IntField
+     * @throws ArithmeticException if value does not fit in an int
+     */
+    static IntField toIntField(long value, Op op) {
+        if(value < Integer.MIN_VALUE || value > Integer.MAX_VALUE) {
+            throw new ArithmeticException(op + " result " + value + " does not fit in INT_TYPE");
+        }
+        return new IntField((int) value);
+    }
+
+    /**
+     * Store value in fields i (high half) and i + 1 (low half) of t.
+     */
+    static void setLong(Tuple t, int i, long value) {
+        t.setField(i, new IntField((int) (value >>> 32)));
+        t.setField(i + 1, new IntField((int) value));
+    }
+
+    /**
+     * @return the long stored by {@link #setLong} in fields i and i + 1 of t
+     */
+    static long getLong(Tuple t, int i) {
+        long high = ((IntField) t.getField(i)).getValue();
+        long low = ((IntField) t.getField(i + 1)).getValue();
+        return (high << 32) | (low & 0xffffffffL);
+    }
+
     /**
      * Create a DbIterator over group aggregate results.
-     * 
+     *
      * @return a DbIterator whose tuples are the pair (groupVal, aggregateVal)
      *         if using group, or a single (aggregateVal) if no grouping. The
      *         aggregateVal is determined by the type of aggregate specified in
      *         the constructor.
      */
     public DbIterator iterator() {
+        return iterator(false);
+    }
+
+    /**
+     * Like {@link #iterator}, but AVG groups are returned as (groupVal, sum,
+     * count) as if this aggregator computed SUM_COUNT, so that they can be
+     * merged with SC_AVG later.
+     */
+    DbIterator partialIterator() {
+        return iterator(this.operator == Aggregator.Op.AVG && this.gbField != NO_GROUPING);
+    }
+
+    private DbIterator iterator(boolean partial) {
         ArrayList<Tuple> tuples = new ArrayList<Tuple> ();
-        Tuple currTuple = null;
-        if(this.gbField == NO_GROUPING) {
-            currTuple = new Tuple(this.td);
-            currTuple.setField(0, new IntField(num.intValue()));
-            tuples.add(currTuple);
-            return new TupleIterator(td, tuples);
-        } else {
-            for (Map.Entry element : this.opAggregator.entrySet()) {
-                Field key = (Field) element.getKey();
-                Integer value = (Integer) element.getValue();
-                currTuple = new Tuple(this.td);
-                currTuple.setField(0, key);
-                currTuple.setField(1, new IntField(value.intValue()));
-                tuples.add(currTuple);
+        TupleDesc outTd = partial ? groupedTupleDesc(this.gbFieldType, Aggregator.Op.SUM_COUNT) : this.td;
+        if(this.gbField == NO_GROUPING && this.numGroups == 0) {
+            // an ungrouped aggregate over no tuples: only counts and sums are defined
+            if(this.operator == Aggregator.Op.COUNT || this.operator == Aggregator.Op.SUM
+                    || this.operator == Aggregator.Op.COUNT_DISTINCT) {
+                Tuple t = new Tuple(outTd);
+                t.setField(0, new IntField(0));
+                tuples.add(t);
+            }
+            return new TupleIterator(outTd, tuples);
+        }
+        for(int id = 0; id < this.numGroups; id++) {
+            Tuple currTuple = new Tuple(outTd);
+            int i = 0;
+            if(this.intGroups != null) {
+                currTuple.setField(i++, new IntField(this.intGroups.key(id)));
+            } else if(this.groups != null) {
+                currTuple.setField(i++, this.keys.get(id));
             }
-            return new TupleIterator(td, tuples);
+            if(partial || this.operator == Aggregator.Op.SUM_COUNT) {
+                setLong(currTuple, i, this.values[id]);
+                setLong(currTuple, i + 2, this.counts[id]);
+                i += 4;
+            } else if(this.operator == Aggregator.Op.AVG || this.operator == Aggregator.Op.SC_AVG) {
+                currTuple.setField(i++, new IntField((int) (this.values[id] / this.counts[id])));
+            } else if(this.distinct != null) {
+                currTuple.setField(i++, toIntField(this.distinct[id].estimate(), this.operator));
+            } else if(this.quantiles != null) {
+                currTuple.setField(i++, new IntField(this.quantiles[id].quantile(this.operator.quantile())));
+            } else {
+                currTuple.setField(i++, toIntField(this.values[id], this.operator));
+            }
+            tuples.add(currTuple);
         }
+        return new TupleIterator(outTd, tuples);
     }
 
 }
@@ -4,6 +4,16 @@ import java.util.*;
 
 /**
  * The Join operator implements the relational join operation.
+ * <p>
+ * Equality predicates are evaluated with a hash join on child1 that spills
+ * to disk when child1 does not fit in memory. All other predicates use a
+ * block nested loops join: child1 is read a block of pages at a time and
+ * child2 is rescanned once per block.
+ * <p>
+ * While the hash join builds on child1 it also fills a Bloom filter with the
+ * join keys. If child2 is a SeqScan (possibly below Filters) the Bloom filter
+ * is handed to that scan, which then drops the probe tuples that cannot have
+ * a match before they are filtered, partitioned or probed.
  */
 public class Join extends Operator {
 
@@ -12,9 +22,69 @@ public class Join extends Operator {
     JoinPredicate p;
     DbIterator child1;
     DbIterator child2;
-    ArrayList<Tuple> tuples; // this is a joined tuples, which is created when it is opened
-    int currIndex;
     TupleDesc td;
+
+    // default number of pages of child1 held in memory by the block nested loops join
+    public static final int DEFAULT_BLOCK_PAGES = 16;
+
+    // state of the block nested loops join
+    int blockPages;
+    ArrayList<Tuple> block; // the current block of child1 tuples
+    int blockIndex;
+    Tuple innerTuple; // current child2 tuple, matched against the whole block
+    boolean innerFresh; // child2 has not been scanned since it was opened
+
+    // number of partitions each input is split into when the build side spills
+    static final int NUM_PARTITIONS = 16;
+    // partitions are split again at most this many times before we give up and build in memory
+    static final int MAX_PARTITION_LEVEL = 3;
+
+    // state of the hash join, which streams its output instead of materializing it
+    boolean intKeys; // both join fields are ints, so intTable is used instead of hashTable
+    HashMap<Field, ArrayList<Tuple>> hashTable;
+    IntHashTable intTable;
+    long reserved; // bytes of the MemoryManager held by hashTable
+    DbIterator probe; // child2, or the probe side of the current partition
+    Tuple probeTuple;
+    ArrayList<Tuple> matches;
+    int matchIndex;
+    int matchRow; // next matching row of intTable
+    JoinPartition current;
+    LinkedList<JoinPartition> partitions; // spilled partitions that still have to be joined
+
+    // runtime join filter over the keys of child1, pushed into the scan of child2
+    BloomFilter bloom;
+    SeqScan filteredScan;
+
+    /**
+     * A pair of spill files holding the build and probe tuples that hash to
+     * the same partition.
+     */
+    static class JoinPartition {
+        SpillFile build;
+        SpillFile probe;
+        int level;
+
+        JoinPartition(SpillFile build, SpillFile probe, int level) {
+            this.build = build;
+            this.probe = probe;
+            this.level = level;
+        }
+
+        void delete() throws DbException {
+            DbException failure = null;
+            try {
+                this.build.delete();
+            } catch(DbException e) {
+                failure = e;
+            }
+            this.probe.delete();
+            if(failure != null) {
+                throw failure;
+            }
+        }
+    }
+
     /**
      * Constructor. Accepts to children to join and the predicate to join them
      * on
@@ -27,12 +97,34 @@ public class Join extends Operator {
      *            Iterator for the right(inner) relation to join
      */
     public Join(JoinPredicate p, DbIterator child1, DbIterator child2) {
+        this(p, child1, child2, DEFAULT_BLOCK_PAGES);
+    }
+
+    /**
+     * Constructor.
+     *
+     * @param p
+     *            The predicate to use to join the children
+     * @param child1
+     *            Iterator for the left(outer) relation to join
+     * @param child2
+     *            Iterator for the right(inner) relation to join
+     * @param blockPages
+     *            the number of pages worth of child1 tuples the block nested
+     *            loops join holds in memory per scan of child2
+     */
+    public Join(JoinPredicate p, DbIterator child1, DbIterator child2, int blockPages) {
         this.p = p;
         this.child1 = child1;
         this.child2 = child2;
-        this.tuples = null;
-        this.currIndex = 0;
+        this.blockPages = Math.max(1, blockPages);
+        this.block = new ArrayList<Tuple> ();
         this.td = null;
+        this.hashTable = new HashMap<Field, ArrayList<Tuple>> ();
+        this.intTable = new IntHashTable();
+        this.matchRow = IntHashTable.NONE;
+        this.reserved = 0;
+        this.partitions = new LinkedList<JoinPartition> ();
     }
 
     public JoinPredicate getJoinPredicate() {
@@ -72,153 +164,326 @@ public class Join extends Operator {
             TransactionAbortedException {
         super.open();
         // I need to create a tuple that are joined
-        if(this.tuples == null) {
-            if(this.p.getOperator() == Predicate.Op.EQUALS) {
-                hashJoin();
-            } else {
-                tupleJoin();
-            }
-
+        if(this.p.getOperator() == Predicate.Op.EQUALS) {
+            hashJoin();
         } else {
-            this.currIndex = 0;
+            blockJoin();
         }
     }
 
+    /**
+     * Builds the hash table on child1 and gets ready to probe it with child2.
+     * If child1 does not fit in the memory granted by the MemoryManager, both
+     * inputs are partitioned into spill files (Grace hash join) and joined
+     * one partition at a time by fetchNext.
+     * <p>
+     * When both join fields are ints the build side goes into an
+     * IntHashTable, which avoids boxing keys and allocating a list per key.
+     */
     private void hashJoin() throws DbException, NoSuchElementException, TransactionAbortedException {
-        // we know that for a fact that it only looks at one field
-        this.tuples = new ArrayList<Tuple> ();
-        this.currIndex = 0;
         child1.open();
         child2.open();
+        this.intKeys = child1.getTupleDesc().getFieldType(this.p.getField1()) == Type.INT_TYPE
+                && child2.getTupleDesc().getFieldType(this.p.getField2()) == Type.INT_TYPE;
+        this.probeTuple = null;
+        this.matches = null;
+        this.matchRow = IntHashTable.NONE;
+        this.filteredScan = probeScan(child2);
+        if(this.filteredScan != null) {
+            this.bloom = new BloomFilter(Math.max(1, JoinOptimizer.estimatePlanCardinality(child1)));
+            Database.getMemoryManager().forceReserve(this.bloom.sizeInBytes());
+        }
+        if(build(child1, false)) {
+            pushRuntimeFilter();
+            this.probe = child2;
+        } else {
+            partition(child1, child2, 0);
+            this.probe = null;
+        }
+    }
 
-        HashMap<Field, ArrayList<Tuple>> hashMap = new HashMap<Field, ArrayList<Tuple>> ();
+    /**
+     * @return the SeqScan that produces the tuples of probeIn with their
+     *         fields unchanged, or null if there is none we can filter
+     */
+    static SeqScan probeScan(DbIterator probeIn) {
+        if(probeIn instanceof SeqScan) {
+            return (SeqScan) probeIn;
+        }
+        if(probeIn instanceof Filter) {
+            return probeScan(((Filter) probeIn).getChildren()[0]);
+        }
+        return null;
+    }
+
+    /**
+     * Hands the Bloom filter, now that it holds every key of child1, to the
+     * scan below child2.
+     */
+    private void pushRuntimeFilter() {
+        if(this.filteredScan != null) {
+            this.filteredScan.setRuntimeFilter(this.p.getField2(), this.bloom);
+        }
+    }
+
+    private void dropRuntimeFilter() {
+        if(this.filteredScan != null) {
+            this.filteredScan.setRuntimeFilter(0, null);
+            this.filteredScan = null;
+        }
+        if(this.bloom != null) {
+            Database.getMemoryManager().release(this.bloom.sizeInBytes());
+            this.bloom = null;
+        }
+    }
+
+    /**
+     * Adds the tuples of in to the hash table, reserving memory for each one.
+     *
+     * @param force keep going even when the MemoryManager refuses to grant more memory
+     * @return true if all of in was added, false if we ran out of memory first
+     */
+    private boolean build(DbIterator in, boolean force) throws DbException, TransactionAbortedException {
+        MemoryManager mm = Database.getMemoryManager();
+        long tupleSize = MemoryManager.estimateSize(in.getTupleDesc());
         Tuple next;
         Field field;
-        while(child1.hasNext()) {
-            next = child1.next();
+        while(in.hasNext()) {
+            next = in.next();
+            boolean fits = mm.reserve(tupleSize);
+            if(!fits) {
+                mm.forceReserve(tupleSize);
+            }
+            this.reserved += tupleSize;
             field = next.getField(this.p.getField1());
-            if(!hashMap.containsKey(field)) {
-                hashMap.put(field, new ArrayList<Tuple> ());
+            if(this.bloom != null && in == this.child1) {
+                this.bloom.add(field);
             }
-            hashMap.get(field).add(next);
-        }
-        child1.close();
-
-        Tuple tuple2;
-        Tuple tuple1;
-        Tuple newTuple;
-        ArrayList<Tuple> match;
-        int j;
-        int tuple2NumFields;
-        while(child2.hasNext()) {
-            tuple2 = child2.next();
-            field = tuple2.getField(this.p.getField2());
-            if(hashMap.containsKey(field)) {
-                match = hashMap.get(field);
-                for(int x = 0; x < match.size(); x++) {
-                    tuple1 = match.get(x);
-                    newTuple = new Tuple(this.getTupleDesc());
-                    j = tuple1.getTupleDesc().numFields();
-                    tuple2NumFields = tuple2.getTupleDesc().numFields();
-                    for(int i = 0; i < j; i++) {
-                        newTuple.setField(i, tuple1.getField(i));
-                    }
-                    for(int i = 0; i < tuple2NumFields; i++) {
-                        newTuple.setField(j++, tuple2.getField(i));
-                    }
-                    this.tuples.add(newTuple);
+            if(this.intKeys) {
+                this.intTable.addRow(((IntField) field).getValue(), next);
+            } else {
+                ArrayList<Tuple> bucket = this.hashTable.get(field);
+                if(bucket == null) {
+                    bucket = new ArrayList<Tuple> ();
+                    this.hashTable.put(field, bucket);
                 }
+                bucket.add(next);
+            }
+            if(!fits && !force) {
+                return false;
             }
+        }
+        return true;
+    }
 
+    private void clearTable() {
+        if(this.reserved > 0) {
+            Database.getMemoryManager().release(this.reserved);
+            this.reserved = 0;
         }
+        this.hashTable = new HashMap<Field, ArrayList<Tuple>> ();
+        this.intTable = new IntHashTable();
+        this.matches = null;
+        this.matchRow = IntHashTable.NONE;
     }
-    private void tupleJoin() throws DbException, NoSuchElementException, TransactionAbortedException {
-        this.tuples = new ArrayList<Tuple>();
-        this.currIndex = 0;
 
-        child1.open();
-        child2.open();
+    /**
+     * Splits the build side (what is already in the hash table plus the rest
+     * of buildIn) and the whole probe side into NUM_PARTITIONS pairs of spill
+     * files, and queues the pairs that can produce output.
+     */
+    private void partition(DbIterator buildIn, DbIterator probeIn, int level)
+            throws DbException, TransactionAbortedException {
+        SpillFile[] buildParts = new SpillFile[NUM_PARTITIONS];
+        SpillFile[] probeParts = new SpillFile[NUM_PARTITIONS];
+        for(int i = 0; i < NUM_PARTITIONS; i++) {
+            buildParts[i] = new SpillFile(buildIn.getTupleDesc());
+            probeParts[i] = new SpillFile(probeIn.getTupleDesc());
+        }
 
-        ArrayList<Tuple> column = new ArrayList<Tuple> ();
-        while(child2.hasNext()) {
-            column.add(child2.next());
-        }
-        child2.close();
-
-        Tuple columnTuple;
-        Tuple rowTuple;
-        Tuple newTuple;
-        int j;
-        while(child1.hasNext()) {
-            rowTuple = child1.next();
-            for(int x = 0; x < column.size(); x++) {
-                columnTuple = column.get(x);
-                if(this.p.filter(rowTuple, columnTuple) == true) {
-                    newTuple = new Tuple(this.getTupleDesc());
-                    j = rowTuple.getTupleDesc().numFields();
-                    for(int i = 0; i < j; i++) {
-                        newTuple.setField(i, rowTuple.getField(i));
-                    }
-                    for(int i = 0; i < columnTuple.getTupleDesc().numFields(); i++) {
-                        newTuple.setField(j++, columnTuple.getField(i));
-                    }
-                    this.tuples.add(newTuple);
-                }
+        for(int row = 0; row < this.intTable.numRows(); row++) {
+            Tuple t = this.intTable.row(row);
+            buildParts[partitionOf(t.getField(this.p.getField1()), level)].add(t);
+        }
+        for(Map.Entry<Field, ArrayList<Tuple>> entry : this.hashTable.entrySet()) {
+            SpillFile part = buildParts[partitionOf(entry.getKey(), level)];
+            for(Tuple t : entry.getValue()) {
+                part.add(t);
             }
         }
+        clearTable();
 
-        child1.close();
+        Tuple next;
+        while(buildIn.hasNext()) {
+            next = buildIn.next();
+            if(this.bloom != null && buildIn == this.child1) {
+                this.bloom.add(next.getField(this.p.getField1()));
+            }
+            buildParts[partitionOf(next.getField(this.p.getField1()), level)].add(next);
+        }
+        if(buildIn == this.child1) {
+            pushRuntimeFilter();
+        }
+        while(probeIn.hasNext()) {
+            next = probeIn.next();
+            probeParts[partitionOf(next.getField(this.p.getField2()), level)].add(next);
+        }
+
+        for(int i = 0; i < NUM_PARTITIONS; i++) {
+            JoinPartition jp = new JoinPartition(buildParts[i], probeParts[i], level);
+            if(buildParts[i].size() == 0 || probeParts[i].size() == 0) {
+                jp.delete(); // an equi-join partition with an empty side has no output
+            } else {
+                this.partitions.add(jp);
+            }
+        }
     }
-    // this does the block join one block at a time
-    /*
+
+    /**
+     * Hashes f to a partition. The level is mixed into the hash so that a
+     * partition which is split again spreads over all of the new partitions.
+     */
+    static int partitionOf(Field f, int level) {
+        int h = f.hashCode() + level * 0x9E3779B9;
+        h ^= h >>> 16;
+        h *= 0x85EBCA6B;
+        h ^= h >>> 13;
+        return (h & 0x7fffffff) % NUM_PARTITIONS;
+    }
+
+    /**
+     * Loads the build side of the next queued partition into the hash table
+     * and makes its probe side the current probe input. Partitions whose
+     * build side still does not fit are split again.
+     *
+     * @return false if there are no partitions left
+     */
+    private boolean nextPartition() throws DbException, TransactionAbortedException {
+        clearTable();
+        if(this.current != null) {
+            this.current.delete();
+            this.current = null;
+        }
+        this.probe = null;
+        while(!this.partitions.isEmpty()) {
+            JoinPartition jp = this.partitions.removeFirst();
+            jp.build.open();
+            if(build(jp.build, jp.level >= MAX_PARTITION_LEVEL)) {
+                jp.probe.open();
+                this.current = jp;
+                this.probe = jp.probe;
+                return true;
+            }
+            // skewed partition: split it again with a different hash
+            jp.probe.open();
+            partition(jp.build, jp.probe, jp.level + 1);
+            jp.delete();
+        }
+        return false;
+    }
+
+    private Tuple mergeTuples(Tuple tuple1, Tuple tuple2) {
+        Tuple newTuple = new Tuple(this.getTupleDesc());
+        int j = tuple1.getTupleDesc().numFields();
+        int tuple2NumFields = tuple2.getTupleDesc().numFields();
+        for(int i = 0; i < j; i++) {
+            newTuple.setField(i, tuple1.getField(i));
+        }
+        for(int i = 0; i < tuple2NumFields; i++) {
+            newTuple.setField(j++, tuple2.getField(i));
+        }
+        return newTuple;
+    }
+
     private void blockJoin() throws DbException, NoSuchElementException, TransactionAbortedException {
-        HeapPage rowBlock;
-        HeapPage colBlock;
-        Tuple rowTuple;
-        Tuple colTuple;
-        Tuple newTuple;
-        ArrayList<Tuple> rowList;
-        ArrayList<Tuple> colList;
-        int j;
-        this.tuples = new ArrayList<Tuple>();
-        this.currIndex = 0;
-
-        HeapFileIterator hfchild1 = (HeapFileIterator)child1;
-        HeapFileIterator hfchild2 = (HeapFileIterator)child2;
-
-        while(hfchild1.hasNextPage()) {
-            rowBlock = hfchild1.getNextPage();
-            while(hfchild2.hasNextPage()) {
-                colBlock = hfchild2.getNextPage();
-                rowList = rowBlock.arrayList();
-                colList = colBlock.arrayList();
-                for(int x = 0; x < rowList.size(); x++) {
-                    rowTuple = rowList.get(x);
-                    for(int y = 0; y < colList.size(); y++) {
-                        colTuple = colList.get(y);
-                        if(this.p.filter(rowTuple, colTuple) == true) {
-                            newTuple = new Tuple(this.getTupleDesc());
-                            j = rowTuple.getTupleDesc().numFields();
-                            for(int i = 0; i < j; i++) {
-                                newTuple.setField(i, rowTuple.getField(i));
-                            }
-                            for(int i = 0; i < colTuple.getTupleDesc().numFields(); i++) {
-                                newTuple.setField(j++, colTuple.getField(i));
-                            }
-                            this.tuples.add(newTuple);
-                        }
+        child1.open();
+        child2.open();
+        this.block.clear();
+        this.blockIndex = 0;
+        this.innerTuple = null;
+        this.innerFresh = true;
+    }
+
+    /**
+     * @return the number of child1 tuples in a block of blockPages pages
+     */
+    int blockSize() {
+        int tupleSize = child1.getTupleDesc().getSize();
+        int tuplesPerPage = (BufferPool.PAGE_SIZE * 8) / (tupleSize * 8 + 1);
+        return Math.max(1, tuplesPerPage) * this.blockPages;
+    }
+
+    /**
+     * Reads the next block of child1 and rewinds child2 so that it can be
+     * scanned against the new block.
+     *
+     * @return false if child1 is exhausted
+     */
+    private boolean nextBlock() throws DbException, TransactionAbortedException {
+        this.block.clear();
+        int size = blockSize();
+        while(this.block.size() < size && child1.hasNext()) {
+            this.block.add(child1.next());
+        }
+        if(this.block.isEmpty()) {
+            return false;
+        }
+        if(!this.innerFresh) {
+            child2.rewind();
+        }
+        this.innerFresh = false;
+        return true;
+    }
+
+    private Tuple fetchNextBlocked() throws TransactionAbortedException, DbException {
+        while(true) {
+            if(this.innerTuple != null) {
+                while(this.blockIndex < this.block.size()) {
+                    Tuple outer = this.block.get(this.blockIndex++);
+                    if(this.p.filter(outer, this.innerTuple)) {
+                        return mergeTuples(outer, this.innerTuple);
                     }
                 }
+                this.innerTuple = null;
+            }
+            if(!this.block.isEmpty() && child2.hasNext()) {
+                this.innerTuple = child2.next();
+                this.blockIndex = 0;
+            } else if(!nextBlock()) {
+                return null;
             }
         }
-        this.child1.close();
-        this.child2.close();
     }
-     */
 
     public void close() {
         super.close();
-        this.currIndex = 0;
+        this.block.clear();
+        this.innerTuple = null;
+        clearTable();
+        // delete every partition, and report the first failure only once
+        // everything else is closed
+        DbException failure = null;
+        if(this.current != null) {
+            this.partitions.addFirst(this.current);
+            this.current = null;
+        }
+        while(!this.partitions.isEmpty()) {
+            try {
+                this.partitions.removeFirst().delete();
+            } catch(DbException e) {
+                if(failure == null) {
+                    failure = e;
+                }
+            }
+        }
+        this.probe = null;
+        this.probeTuple = null;
+        dropRuntimeFilter();
+        this.child1.close();
+        this.child2.close();
+        if(failure != null) {
+            throw new RuntimeException(failure);
+        }
     }
 
     public void rewind() throws DbException, TransactionAbortedException {
@@ -245,11 +510,35 @@ public class Join extends Operator {
      * @see JoinPredicate#filter
      */
     protected Tuple fetchNext() throws TransactionAbortedException, DbException {
-        if(this.currIndex >= this.tuples.size())
-            return null;
-        Tuple tuple = this.tuples.get(this.currIndex);
-        this.currIndex++;
-        return tuple;
+        if(this.p.getOperator() == Predicate.Op.EQUALS) {
+            return fetchNextHashed();
+        }
+        return fetchNextBlocked();
+    }
+
+    private Tuple fetchNextHashed() throws TransactionAbortedException, DbException {
+        while(true) {
+            if(this.matchRow != IntHashTable.NONE) {
+                Tuple match = this.intTable.row(this.matchRow);
+                this.matchRow = this.intTable.nextRow(this.matchRow);
+                return mergeTuples(match, this.probeTuple);
+            }
+            if(this.matches != null && this.matchIndex < this.matches.size()) {
+                return mergeTuples(this.matches.get(this.matchIndex++), this.probeTuple);
+            }
+            if(this.probe != null && this.probe.hasNext()) {
+                this.probeTuple = this.probe.next();
+                Field field = this.probeTuple.getField(this.p.getField2());
+                if(this.intKeys) {
+                    this.matchRow = this.intTable.firstRow(((IntField) field).getValue());
+                } else {
+                    this.matches = this.hashTable.get(field);
+                    this.matchIndex = 0;
+                }
+            } else if(!nextPartition()) {
+                return null;
+            }
+        }
     }
 
     @Override
@@ -33,7 +33,15 @@ public class JoinOptimizer {
      * there is insufficient information to determine which plan should be the
      * inner/outer here -- because DbIterator's don't provide any cardinality
      * estimates, and stats only has information about the base tables. For this
-     * reason, the plan1
+     * reason, plan1 is always the outer (left) input, and it is up to
+     * {@link #orderJoins} to pick which side that is.
+     * <p>
+     * The join algorithm is picked by comparing rough cost estimates (see
+     * {@link #estimatePlanCardinality}): a hash join for equality, a nested
+     * loops join otherwise, or a {@link SortMergeJoin} when sorting the inputs
+     * (if they are not sorted already) and merging them is cheaper. For an
+     * inequality the merge reads plan1 once per block of plan2 that fits in
+     * the memory granted by the {@link MemoryManager}.
      * 
      * @param lj
      *            The join being considered
@@ -68,12 +76,101 @@ public class JoinOptimizer {
 
         JoinPredicate p = new JoinPredicate(t1id, lj.p, t2id);
 
-        j = new Join(p,plan1,plan2);
+        int card1 = estimatePlanCardinality(plan1);
+        int card2 = estimatePlanCardinality(plan2);
+        boolean sorted1 = SortMergeJoin.isSortedOn(plan1, t1id);
+        boolean sorted2 = SortMergeJoin.isSortedOn(plan2, t2id);
+        double joinCost = lj.p == Predicate.Op.EQUALS ? estimateHashJoinCost(card1, card2)
+                : estimateNestedLoopJoinCost(card1, card2);
+
+        int blocks = lj.p == Predicate.Op.EQUALS ? 1
+                : estimateBlocks(card2, plan2.getTupleDesc());
+        if (SortMergeJoin.supports(lj.p)
+                && estimateSortMergeJoinCost(card1, card2, sorted1, sorted2, blocks) < joinCost) {
+            j = new SortMergeJoin(p, plan1, plan2, sorted1, sorted2);
+        } else {
+            j = new Join(p,plan1,plan2);
+        }
 
         return j;
 
     }
 
+    /** Relative cost of inserting a tuple into a hash table compared to probing it. */
+    static final double HASH_BUILD_COST = 2.0;
+
+    /**
+     * Estimate the number of tuples produced by a (physical) plan. Uses the
+     * cardinality estimate of an Operator if it has one, the table statistics
+     * or the file size for a SeqScan, and otherwise the estimate of the
+     * largest child.
+     */
+    static int estimatePlanCardinality(DbIterator plan) {
+        if (plan instanceof Operator) {
+            Operator op = (Operator) plan;
+            if (op.getEstimatedCardinality() > 0)
+                return op.getEstimatedCardinality();
+            int card = 0;
+            for (DbIterator child : op.getChildren()) {
+                card = Math.max(card, estimatePlanCardinality(child));
+            }
+            return card;
+        }
+        if (plan instanceof SeqScan) {
+            String name = ((SeqScan) plan).getTableName();
+            TableStats stats = TableStats.getTableStats(name);
+            if (stats != null && stats.totalTuples() > 0)
+                return stats.totalTuples();
+            DbFile f = Database.getCatalog().getDbFile(Database.getCatalog().getTableId(name));
+            if (f instanceof HeapFile) {
+                int tuplesPerPage = (BufferPool.PAGE_SIZE * 8) / (f.getTupleDesc().getSize() * 8 + 1);
+                return ((HeapFile) f).numPages() * tuplesPerPage;
+            }
+        }
+        return 0;
+    }
+
+    /** @return the estimated number of comparisons to sort card tuples */
+    static double estimateSortCost(int card) {
+        if (card <= 1)
+            return 0;
+        return card * (Math.log(card) / Math.log(2));
+    }
+
+    /** @return the estimated cost of a hash join that builds on card1 tuples */
+    static double estimateHashJoinCost(int card1, int card2) {
+        return HASH_BUILD_COST * card1 + card2;
+    }
+
+    /** @return the estimated cost of evaluating the predicate on every pair of tuples */
+    static double estimateNestedLoopJoinCost(int card1, int card2) {
+        return (double) card1 * card2;
+    }
+
+    /**
+     * @return the estimated number of blocks of card tuples of schema td that
+     *         fit in the memory currently available
+     */
+    static int estimateBlocks(int card, TupleDesc td) {
+        long available = Math.max(1, Database.getMemoryManager().available());
+        double bytes = (double) card * MemoryManager.estimateSize(td);
+        return Math.max(1, (int) Math.ceil(bytes / available));
+    }
+
+    /**
+     * @return the estimated cost of a {@link SortMergeJoin}, including sorting
+     *         unsorted inputs and reading child1 once per block of child2
+     */
+    static double estimateSortMergeJoinCost(int card1, int card2,
+            boolean sorted1, boolean sorted2, int blocks) {
+        double cost = (double) card1 * blocks + card2;
+        if (!sorted1)
+            cost += estimateSortCost(card1);
+        if (!sorted2)
+            cost += estimateSortCost(card2);
+        return cost;
+    }
+
     /**
      * Estimate the cost of a join.
      * 
@@ -1,278 +1,752 @@
 package simpledb;
 
-import java.io.*;
 import java.util.*;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.Condition;
+import java.util.concurrent.locks.ReentrantLock;
 
 /**
  * Manages locks on PageIds held by TransactionIds.
  * S-locks and X-locks are represented as Permissions.READ_ONLY and Permisions.READ_WRITE, respectively
  *
- * All the field read/write operations are protected by this
+ * Locking is multi-granular: before a page is locked in S or X mode, its
+ * table is locked in the intention mode IS or IX (see LockMode). Once a
+ * transaction holds escalationThreshold page locks on one table, the
+ * table lock is escalated to S (if it only read) or X, provided that can be
+ * granted right away, and the page locks on that table are released. A
+ * transaction whose table lock covers a page request, such as a large scan
+ * after escalation, does not touch the lock table at all.
+ *
+ * Below pages, tuples can be locked one by one: acquireRowLock locks the
+ * table and the page in an intention mode and the RecordId in S or X mode,
+ * so that transactions writing different tuples of one page do not
+ * conflict. Row locks count towards escalation like page locks do.
+ *
+ * Every page or table that is locked or waited for has a LockEntry with its
+ * holders and a FIFO queue of the requests that wait for it. A request that
+ * cannot be granted blocks on its own condition variable; whenever locks are
+ * released the queue is granted from its head for as long as the head is
+ * compatible with the holders, and exactly the granted requests are
+ * signalled. Upgrades to a stronger mode wait ahead of new requests, so that
+ * a transaction already holding a lock is not starved by later ones.
+ *
+ * Each waiting request knows the transactions it waits for: the holders it
+ * conflicts with and the conflicting requests queued ahead of it. These
+ * edges form a waits-for graph that is updated whenever a queue changes.
+ * A new wait that closes a cycle is a deadlock; the youngest transaction
+ * on the cycle (the one with the largest id) withdraws its request and
+ * gets a DeadlockException, which aborts it.
+ *
+ * Each transaction also has a lock wait: by default it waits as long as it
+ * takes, but it can be given a limit in milliseconds, or NO_WAIT to fail
+ * right away instead of queueing. A request that is not granted in time is
+ * withdrawn with a LockTimeoutException.
+ *
+ * The lock table is split into NUM_SHARDS shards by hash, each with its own
+ * latch, so that lock traffic on different pages does not contend and
+ * releasing the many locks of a committing transaction only holds one
+ * shard latch at a time. The locks a transaction holds are also recorded in
+ * a TxLocks that only the transaction's own thread touches. The waits-for
+ * graph spans all shards and is guarded by the waiting map; a shard latch
+ * may be held while taking that lock, never the other way around.
  */
 public class LockManager {
 
-    final int LOCK_WAIT = 10;       // milliseconds
-    HashMap<PageId, HashSet<TransactionId>> rLocks;
-    HashMap<PageId, TransactionId> wLocks;
-    HashMap<TransactionId, HashSet<PageId>> rLockReverseIndex;
-    HashMap<TransactionId, HashSet<PageId>> wLockReverseIndex;
+    /** The lock table key of a whole table. Pages and tuples are keyed by their PageId and RecordId. */
+    static final class TableKey {
+        final int tableId;
+
+        TableKey(int tableId) {
+            this.tableId = tableId;
+        }
+
+        public int hashCode() {
+            return tableId * 0x9E3779B9;
+        }
+
+        public boolean equals(Object o) {
+            return o instanceof TableKey && ((TableKey) o).tableId == tableId;
+        }
+
+        public String toString() {
+            return "Table " + tableId;
+        }
+    }
+
+    /** A request of a transaction for a lock on one page or table. */
+    static class LockRequest {
+        final TransactionId tid;
+        final Object key;
+        final LockMode mode; // for an upgrade, the join of the held and the requested mode
+        final boolean upgrade; // tid already holds a weaker lock on key
+        final Condition granted;
+        // guarded by the latch of the shard of key
+        boolean isGranted;
+        boolean isVictim; // withdrawn to break a deadlock
+        long deadlockStart; // System.nanoTime() when the deadlock was found
+        // the transactions this request waits for; guarded by waiting
+        HashSet<TransactionId> waitsFor = new HashSet<TransactionId>();
+
+        LockRequest(TransactionId tid, Object key, LockMode mode, boolean upgrade, Condition granted) {
+            this.tid = tid;
+            this.key = key;
+            this.mode = mode;
+            this.upgrade = upgrade;
+            this.granted = granted;
+            this.isGranted = false;
+        }
+    }
+
+    /** The holders of the lock on one page or table and the requests waiting for it. */
+    static class LockEntry {
+        final HashMap<TransactionId, LockMode> holders = new HashMap<TransactionId, LockMode>();
+        final LinkedList<LockRequest> waiters = new LinkedList<LockRequest>();
+
+        /** @return true if tid already holds a lock at least as strong as mode */
+        boolean holds(TransactionId tid, LockMode mode) {
+            LockMode m = holders.get(tid);
+            return m != null && m.covers(mode);
+        }
+
+        /** @return true if mode could be granted to tid given the current holders */
+        boolean compatible(TransactionId tid, LockMode mode) {
+            for(Map.Entry<TransactionId, LockMode> h : holders.entrySet()) {
+                if(!h.getKey().equals(tid) && !mode.compatibleWith(h.getValue())) {
+                    return false;
+                }
+            }
+            return true;
+        }
+
+        boolean isFree() {
+            return holders.isEmpty() && waiters.isEmpty();
+        }
+    }
+
+    /** One partition of the lock table, with its own latch. */
+    static class Shard {
+        final ReentrantLock latch = new ReentrantLock();
+        final HashMap<Object, LockEntry> table = new HashMap<Object, LockEntry>();
+    }
+
+    /** The locks held by one transaction, only used by its own thread. */
+    static class TxLocks {
+        final HashMap<Integer, LockMode> tables = new HashMap<Integer, LockMode>();
+        final HashMap<Integer, HashSet<PageId>> pages = new HashMap<Integer, HashSet<PageId>>();
+        final HashMap<Integer, HashSet<RecordId>> rows = new HashMap<Integer, HashSet<RecordId>>();
+    }
+
+    static final int NUM_SHARDS = 64; // a power of two
+
+    /** The default number of page locks on one table that triggers escalation. */
+    public static final int DEFAULT_ESCALATION_THRESHOLD = 512;
+
+    /** The lock wait of a transaction that waits until its locks are granted. */
+    public static final long WAIT_FOREVER = -1;
+
+    /** The lock wait of a transaction whose requests fail if they would wait. */
+    public static final long NO_WAIT = 0;
+
+    final Shard[] shards;
+    final ConcurrentHashMap<TransactionId, TxLocks> held;
+    // the request each blocked transaction waits on; guards the waits-for graph
+    final HashMap<TransactionId, LockRequest> waiting;
+    // lock wait of each transaction that does not wait forever, in milliseconds
+    final ConcurrentHashMap<TransactionId, Long> lockWaits;
+
+    // deadlock metrics
+    private final AtomicLong deadlocks = new AtomicLong();
+    private final AtomicLong deadlockNanos = new AtomicLong();
+    private final AtomicLong escalations = new AtomicLong();
+    private final AtomicLong timeouts = new AtomicLong();
+
+    private volatile int escalationThreshold = DEFAULT_ESCALATION_THRESHOLD;
 
     /**
      * Sets up the lock manager to keep track of page-level locks for transactions
      * Should initialize state required for the lock table data structure(s)
      */
     public LockManager() {
-        rLocks = new HashMap<PageId, HashSet<TransactionId>> ();
-        wLocks = new HashMap<PageId, TransactionId> ();
-        rLockReverseIndex = new HashMap<TransactionId, HashSet<PageId>> ();
-        wLockReverseIndex = new HashMap<TransactionId, HashSet<PageId>> ();
+        shards = new Shard[NUM_SHARDS];
+        for(int i = 0; i < NUM_SHARDS; i++) {
+            shards[i] = new Shard();
+        }
+        held = new ConcurrentHashMap<TransactionId, TxLocks> ();
+        waiting = new HashMap<TransactionId, LockRequest> ();
+        lockWaits = new ConcurrentHashMap<TransactionId, Long> ();
+    }
+
+    /**
+     * Set how long tid waits for each lock until it is released, in
+     * milliseconds: WAIT_FOREVER, NO_WAIT or a positive limit.
+     */
+    public void setLockWait(TransactionId tid, long millis) {
+        if(millis < 0) {
+            lockWaits.remove(tid);
+        } else {
+            lockWaits.put(tid, millis);
+        }
+    }
+
+    /** @return how long tid waits for each lock, in milliseconds, or WAIT_FOREVER */
+    public long getLockWait(TransactionId tid) {
+        Long millis = lockWaits.get(tid);
+        return millis == null ? WAIT_FOREVER : millis;
+    }
+
+    /** @return the number of lock requests that failed because of their lock wait */
+    public long getTimeoutCount() {
+        return timeouts.get();
     }
 
     /**
-     * Tries to acquire a lock on page pid for transaction tid, with permissions perm.
-     * If cannot acquire the lock, waits for a timeout period, then tries again.
+     * Set the number of page locks a transaction may hold on one table
+     * before the lock manager tries to escalate to a table lock.
+     */
+    public void setEscalationThreshold(int threshold) {
+        if(threshold < 1) {
+            throw new IllegalArgumentException("escalation threshold " + threshold);
+        }
+        escalationThreshold = threshold;
+    }
+
+    public int getEscalationThreshold() {
+        return escalationThreshold;
+    }
+
+    /** @return the shard of the lock table that key belongs to */
+    private Shard shardOf(Object key) {
+        int h = key.hashCode();
+        h ^= h >>> 16;
+        return shards[h & (NUM_SHARDS - 1)];
+    }
+
+    /** @return the number of deadlocks detected and broken so far */
+    public long getDeadlockCount() {
+        return deadlocks.get();
+    }
+
+    /**
+     * @return the total time, in nanoseconds, from detecting each deadlock
+     *         to its victim having withdrawn its request
+     */
+    public long getDeadlockResolutionNanos() {
+        return deadlockNanos.get();
+    }
+
+    /** @return the number of times page locks were escalated to a table lock */
+    public long getEscalationCount() {
+        return escalations.get();
+    }
+
+    /**
+     * Acquires a lock on page pid for transaction tid, with permissions perm.
+     * The table of the page is locked in the matching intention mode first,
+     * unless tid already holds a table lock that covers the page lock, in
+     * which case nothing more is locked.
+     * If a lock cannot be granted right away, or other requests are already
+     * waiting for it, the request is queued and the calling thread blocks
+     * until the request reaches the head of the queue and is compatible with
+     * the holders of the lock.
      * This method does not return until the lock is granted, or an exception is thrown
      *
-     * In Exercise 5, checking for deadlock will be added in this method
-     * Note that a transaction should throw a DeadlockException in this method to
-     * signal that it should be aborted.
-     *
-     * @throws DeadlockException after on cycle-based deadlock
+     * @throws DeadlockException if waiting would deadlock and tid is chosen
+     *         as the victim, or if the waiting thread is interrupted; the
+     *         request is withdrawn
+     * @throws LockTimeoutException if the lock is not granted within the
+     *         lock wait of tid; the request is withdrawn
      */
     public boolean acquireLock(TransactionId tid, PageId pid, Permissions perm)
             throws DeadlockException {
-        int cnt = 0;
-        while(!lock(tid, pid, perm)) { // keep trying to get the lock
-            synchronized(this) {
-                // you don't have the lock yet
-                // possibly some code here for Exercise 5, deadlock detection
-            }
-
-            try {
-                // couldn't get lock, wait for some time, then try again
-                Thread.sleep(LOCK_WAIT);
-            } catch (InterruptedException e) { // do nothing
-            }
-
+        TxLocks tx = txLocks(tid);
+        if(lockTable(tid, tx, pid.getTableId(), perm)) {
+            acquire(tid, pid, LockMode.forPage(perm));
+            addLock(tid, tx, pid.getTableId(), tx.pages, pid);
         }
+        return true;
+    }
 
-        synchronized(this) {
-            // for Exercise 5, might need some cleanup on deadlock detection data structure
+    /**
+     * Acquires an intention lock (IS or IX, for perm) on page pid and its
+     * table, which lets tid lock tuples of the page with acquireRowLock.
+     *
+     * @return the mode tid holds on the page, or null if its table lock
+     *         already covers every tuple of the table with perm
+     * @throws DeadlockException as acquireLock does
+     */
+    public LockMode acquireIntentionLock(TransactionId tid, PageId pid, Permissions perm)
+            throws DeadlockException {
+        TxLocks tx = txLocks(tid);
+        if(!lockTable(tid, tx, pid.getTableId(), perm)) {
+            return null;
         }
+        LockMode mode = acquire(tid, pid, LockMode.intentionFor(perm));
+        addLock(tid, tx, pid.getTableId(), tx.pages, pid);
+        return mode;
+    }
 
+    /**
+     * Acquires a lock on tuple rid for tid, with permissions perm, after an
+     * intention lock on its page and table. Waits as acquireLock does.
+     *
+     * @throws DeadlockException as acquireLock does
+     */
+    public boolean acquireRowLock(TransactionId tid, RecordId rid, Permissions perm)
+            throws DeadlockException {
+        LockMode pageMode = acquireIntentionLock(tid, rid.getPageId(), perm);
+        if(pageMode == null || pageMode.covers(LockMode.forPage(perm))) {
+            return true;
+        }
+        acquire(tid, rid, LockMode.forPage(perm));
+        TxLocks tx = txLocks(tid);
+        addLock(tid, tx, rid.getPageId().getTableId(), tx.rows, rid);
         return true;
     }
 
     /**
-     * Release all locks corresponding to TransactionId tid.
-     * This method is used by BufferPool.transactionComplete()
+     * Acquires a lock on tuple rid for tid, with permissions perm, if that
+     * can be done without waiting, as when picking a free slot to insert
+     * into or skipping locked tuples in a scan. The caller holds an
+     * intention lock for perm on the page of rid.
+     *
+     * @return true if tid holds the lock
      */
-    public synchronized void releaseAllLocks(TransactionId tid) {
-        if(rLockReverseIndex.containsKey(tid)) {
-            HashSet<PageId> pageIds = rLockReverseIndex.get(tid);
-            rLockReverseIndex.remove(tid); // removing the reverse index here
-            Iterator<PageId> it = pageIds.iterator();
-            while(it.hasNext()) {
-                PageId next = it.next();
-                HashSet<TransactionId> tids = rLocks.get(next);
-                tids.remove(tid);
-                // removing the readLocks below
-                if(tids.size() > 0) {
-                    rLocks.put(next, tids);
-                } else {
-                    rLocks.remove(next);
-                }
-            }
+    public boolean tryAcquireRowLock(TransactionId tid, RecordId rid, Permissions perm) {
+        TxLocks tx = txLocks(tid);
+        Integer table = rid.getPageId().getTableId();
+        LockMode mode = LockMode.forPage(perm);
+        LockMode tableMode = tx.tables.get(table);
+        if(tableMode != null && tableMode.covers(mode)) {
+            return true;
         }
-
-        if(wLockReverseIndex.containsKey(tid)) {
-            HashSet<PageId> pageIds = wLockReverseIndex.get(tid);
-            wLockReverseIndex.remove(tid);
-            Iterator<PageId> it = pageIds.iterator();
-            while(it.hasNext()) {
-                PageId next = it.next();
-                if(wLocks.containsKey(next)) {
-                    wLocks.remove(next);
-                } else {
-                    System.out.println("locks not found here");
+        Shard sh = shardOf(rid);
+        sh.latch.lock();
+        try {
+            LockEntry e = sh.table.get(rid);
+            if(e == null) {
+                e = new LockEntry();
+                sh.table.put(rid, e);
+            }
+            LockMode current = e.holders.get(tid);
+            if(current == null || !current.covers(mode)) {
+                if(current != null) {
+                    mode = current.join(mode);
+                }
+                if(!e.compatible(tid, mode) || !(current != null || e.waiters.isEmpty())) {
+                    if(e.isFree()) {
+                        sh.table.remove(rid);
+                    }
+                    return false;
                 }
+                e.holders.put(tid, mode);
             }
+        } finally {
+            sh.latch.unlock();
         }
+        addLock(tid, tx, table, tx.rows, rid);
+        return true;
+    }
 
+    /** @return the locks of tid, which only the calling thread uses */
+    private TxLocks txLocks(TransactionId tid) {
+        TxLocks tx = held.get(tid);
+        if(tx == null) {
+            tx = new TxLocks();
+            held.put(tid, tx);
+        }
+        return tx;
     }
 
-    /** Return true if the specified transaction has a lock on the specified page */
-    public synchronized boolean holdsLock(TransactionId tid, PageId p) {
-        if(rLocks.containsKey(p) && rLocks.get(p).contains(tid)) {
-            return true;
-        } else if(wLocks.containsKey(p) && wLocks.get(p) == tid) {
-            return true;
-        } else {
+    /**
+     * Lock table in the intention mode for perm, unless tid's table lock
+     * already covers perm on the whole table.
+     *
+     * @return false if nothing below the table needs to be locked
+     */
+    private boolean lockTable(TransactionId tid, TxLocks tx, Integer table, Permissions perm)
+            throws DeadlockException {
+        LockMode tableMode = tx.tables.get(table);
+        if(tableMode != null && tableMode.covers(LockMode.forPage(perm))) {
             return false;
         }
+        LockMode intention = LockMode.intentionFor(perm);
+        if(tableMode == null || !tableMode.covers(intention)) {
+            tx.tables.put(table, acquire(tid, new TableKey(table), intention));
+        }
+        return true;
     }
 
     /**
-     * Answers the question: is this transaction "locked out" of acquiring lock on this page with this perm?
-     * Returns false if this tid/pid/perm lock combo can be achieved (i.e., not locked out), true otherwise.
-     *
-     * Logic:
-     *
-     * if perm == READ_ONLY
-     *  if tid is holding any sort of lock on pid, then the tid can acquire the lock (return false).
-     *
-     *  if another tid is holding a READ lock on pid, then the tid can acquire the lock (return false).
-     *  if another tid is holding a WRITE lock on pid, then tid can not currently
-     *  acquire the lock (return true).
-     *
-     * else
-     *   if tid is THE ONLY ONE holding a READ lock on pid, then tid can acquire the lock (return false).
-     *   if tid is holding a WRITE lock on pid, then the tid already has the lock (return false).
-     *
-     *   if another tid is holding any sort of lock on pid, then the tid cannot currenty acquire the lock (return true).
+     * Record that tid holds a lock on key below table, in the page or row
+     * locks of tx, and try to escalate once there are enough of them.
      */
-    private synchronized boolean locked(TransactionId tid, PageId pid, Permissions perm) {
-        if(perm == Permissions.READ_ONLY) {
+    private <K> void addLock(TransactionId tid, TxLocks tx, Integer table,
+            HashMap<Integer, HashSet<K>> locks, K key) {
+        HashSet<K> keys = locks.get(table);
+        if(keys == null) {
+            keys = new HashSet<K> ();
+            locks.put(table, keys);
+        }
+        if(keys.add(key) && keys.size() % escalationThreshold == 0) {
+            escalate(tid, tx, table);
+        }
+    }
 
-            if(!wLocks.containsKey(pid) || wLocks.get(pid) == tid) {
-                return false;
-            } else { // wLocks.containsKey(pid) && wLocks.get(pid) != tid
-                return true;
+    /**
+     * Acquire a lock in mode on key for tid, waiting if necessary.
+     *
+     * @return the mode tid holds on key afterwards
+     */
+    private LockMode acquire(TransactionId tid, Object key, LockMode mode)
+            throws DeadlockException {
+        Shard sh = shardOf(key);
+        LockRequest r;
+        sh.latch.lock();
+        try {
+            LockEntry e = sh.table.get(key);
+            if(e == null) {
+                e = new LockEntry();
+                sh.table.put(key, e);
             }
-        } else {
-
-            // let's see if it is fine from the writeLock perspective
-            if (wLocks.containsKey(pid) && wLocks.get(pid) != tid) {
-                return true;
+            LockMode current = e.holders.get(tid);
+            if(current != null && current.covers(mode)) {
+                return current;
+            }
+            boolean upgrade = current != null;
+            if(upgrade) {
+                mode = current.join(mode);
+            }
+            if(e.compatible(tid, mode) && (upgrade || e.waiters.isEmpty())) {
+                e.holders.put(tid, mode);
+                return mode;
+            }
+            if(getLockWait(tid) == NO_WAIT) {
+                if(e.isFree()) {
+                    sh.table.remove(key);
+                }
+                timeouts.incrementAndGet();
+                throw new LockTimeoutException();
+            }
+            r = new LockRequest(tid, key, mode, upgrade, sh.latch.newCondition());
+            if(upgrade) {
+                // behind other upgrades, ahead of everything else
+                int i = 0;
+                while(i < e.waiters.size() && e.waiters.get(i).upgrade) {
+                    i++;
+                }
+                e.waiters.add(i, r);
             } else {
-                // let's see if it is fine from the readLock perspective
-                if(!rLocks.containsKey(pid)) {
-                    return false;
-                } else {
-                    // rLock.containsKey(pid) == true
-                    if(rLocks.get(pid).contains(tid) && rLocks.get(pid).size() == 1) {
-                        return false;
-                    } else {
-                        return true;
+                e.waiters.addLast(r);
+            }
+            synchronized(waiting) {
+                waiting.put(tid, r);
+            }
+            updateEdges(e);
+        } finally {
+            sh.latch.unlock();
+        }
+
+        breakDeadlocks(r);
+        long wait = getLockWait(tid);
+        long deadline = System.nanoTime() + wait * 1000000L;
+        sh.latch.lock();
+        try {
+            while(!r.isGranted && !r.isVictim) {
+                try {
+                    if(wait == WAIT_FOREVER) {
+                        r.granted.await();
+                    } else if(r.granted.awaitNanos(deadline - System.nanoTime()) <= 0
+                            && !r.isGranted && !r.isVictim) {
+                        withdraw(sh, r);
+                        timeouts.incrementAndGet();
+                        throw new LockTimeoutException();
                     }
+                } catch (InterruptedException ex) {
+                    if(r.isGranted || r.isVictim) {
+                        Thread.currentThread().interrupt();
+                        break;
+                    }
+                    withdraw(sh, r);
+                    Thread.currentThread().interrupt();
+                    throw new DeadlockException();
                 }
             }
+            if(r.isVictim) {
+                deadlockNanos.addAndGet(System.nanoTime() - r.deadlockStart);
+                throw new DeadlockException();
+            }
+        } finally {
+            sh.latch.unlock();
         }
+        return mode;
     }
 
     /**
-     * Releases whatever lock this transaction has on this page
-     * Should update lock table data structure(s)
-     *
-     * Note that you do not need to "wake up" another transaction that is waiting for a lock on this page,
-     * since that transaction will be "sleeping" and will wake up and check if the page is available on its own
-     * However, if you decide to change the fact that a thread is sleeping in acquireLock(), you would have to wake it up here
+     * Replace the page and row locks of tid on table by an S lock on the table if tid
+     * only holds IS on it, or by an X lock otherwise. Escalation never
+     * waits: if the table lock cannot be granted right away the page locks
+     * are kept, and escalation is tried again after escalationThreshold
+     * more pages.
      */
-    public synchronized void releaseLock(TransactionId tid, PageId pid) {
-        if(wLocks.containsKey(pid)) {
-            assert wLocks.get(pid) == tid && wLockReverseIndex.containsKey(tid);
-            wLocks.remove(pid);
-            wLockReverseIndex.get(tid).remove(pid);
-            if(wLockReverseIndex.get(tid).size() == 0) {
-                wLockReverseIndex.remove(tid);
+    private void escalate(TransactionId tid, TxLocks tx, Integer table) {
+        LockMode mode = tx.tables.get(table) == LockMode.IS ? LockMode.S : LockMode.X;
+        TableKey key = new TableKey(table);
+        Shard sh = shardOf(key);
+        sh.latch.lock();
+        try {
+            LockEntry e = sh.table.get(key);
+            if(!e.compatible(tid, mode)) {
+                return;
             }
+            e.holders.put(tid, mode);
+            if(!e.waiters.isEmpty()) {
+                updateEdges(e);
+            }
+        } finally {
+            sh.latch.unlock();
         }
-
-        if(rLocks.containsKey(pid)) {
-            assert rLocks.get(pid).contains(tid) && rLockReverseIndex.containsKey(tid);
-            rLocks.get(pid).remove(tid);
-            if(rLocks.get(pid).size() == 0) {
-                rLocks.remove(pid);
+        escalations.incrementAndGet();
+        tx.tables.put(table, mode);
+        HashSet<RecordId> rids = tx.rows.remove(table);
+        if(rids != null) {
+            for(RecordId rid : rids) {
+                release(tid, rid);
             }
-            rLockReverseIndex.get(tid).remove(pid);
-            if(rLockReverseIndex.get(tid).size() == 0) {
-                rLockReverseIndex.remove(tid);
+        }
+        HashSet<PageId> pids = tx.pages.remove(table);
+        if(pids != null) {
+            for(PageId pid : pids) {
+                release(tid, pid);
             }
         }
-
     }
 
     /**
-     * Attempt to lock the given PageId with the given Permissions for this TransactionId
-     * Should update the lock table data structure(s) if successful
-     *
-     * Returns true if the lock attempt was successful, false otherwise
+     * Grant the requests at the head of the queue of key for as long as they
+     * are compatible with the holders, waking up their threads, and drop
+     * the entry once nobody holds or waits for it. The caller holds the
+     * latch of sh.
      */
-    private synchronized boolean lock(TransactionId tid, PageId pid, Permissions perm) {
-
-        if(locked(tid, pid, perm)) {
-            return false; // this transaction cannot get the lock on this page; it is "locked out"
+    private void grantWaiters(Shard sh, Object key, LockEntry e) {
+        while(!e.waiters.isEmpty()) {
+            LockRequest r = e.waiters.getFirst();
+            if(!e.compatible(r.tid, r.mode)) {
+                break;
+            }
+            e.waiters.removeFirst();
+            synchronized(waiting) {
+                waiting.remove(r.tid);
+            }
+            e.holders.put(r.tid, r.mode);
+            r.isGranted = true;
+            r.granted.signal();
         }
+        if(e.isFree()) {
+            sh.table.remove(key);
+        } else {
+            updateEdges(e);
+        }
+    }
 
-        // Else, this transaction is able to get the lock, update lock table
-        if(perm == Permissions.READ_ONLY) {
-            if(rLocks.containsKey(pid)) {
-                HashSet<TransactionId> tids = rLocks.get(pid);
-                if(tids.add(tid)) {
-                    rLocks.put(pid, tids);
+    /**
+     * Recompute the waits-for edges of the requests queued on e: each waits
+     * for the conflicting holders and for the conflicting requests ahead of
+     * it. The caller holds the shard latch.
+     */
+    private void updateEdges(LockEntry e) {
+        ArrayList<HashSet<TransactionId>> edges = new ArrayList<HashSet<TransactionId>>();
+        int i = 0;
+        for(LockRequest r : e.waiters) {
+            HashSet<TransactionId> waitsFor = new HashSet<TransactionId>();
+            for(Map.Entry<TransactionId, LockMode> h : e.holders.entrySet()) {
+                if(!h.getKey().equals(r.tid) && !r.mode.compatibleWith(h.getValue())) {
+                    waitsFor.add(h.getKey());
                 }
-            } else {
-                HashSet<TransactionId> tids = (new HashSet<TransactionId>());
-                if(tids.add(tid)) {
-                    rLocks.put(pid, tids);
+            }
+            for(int j = 0; j < i; j++) {
+                LockRequest q = e.waiters.get(j);
+                if(!q.tid.equals(r.tid) && !q.mode.compatibleWith(r.mode)) {
+                    waitsFor.add(q.tid);
                 }
             }
+            edges.add(waitsFor);
+            i++;
+        }
+        synchronized(waiting) {
+            i = 0;
+            for(LockRequest r : e.waiters) {
+                r.waitsFor = edges.get(i++);
+            }
+        }
+    }
 
-            if(rLockReverseIndex.containsKey(tid)) {
-                HashSet<PageId> pids = rLockReverseIndex.get(tid);
-                if(pids.add(pid)) {
-                    rLockReverseIndex.put(tid, pids);
-                }
-            } else {
-                HashSet<PageId> pids = (new HashSet<PageId> ());
-                if(pids.add(pid)) {
-                    rLockReverseIndex.put(tid, pids);
-                }
+    /**
+     * @return the transactions of a cycle in the waits-for graph through
+     *         r.tid, or null if there is none. The caller holds the lock on
+     *         waiting.
+     */
+    private ArrayList<TransactionId> findCycle(LockRequest r) {
+        ArrayList<TransactionId> path = new ArrayList<TransactionId>();
+        path.add(r.tid);
+        if(findCycle(r.tid, r, path, new HashSet<TransactionId>())) {
+            return path;
+        }
+        return null;
+    }
+
+    private boolean findCycle(TransactionId start, LockRequest r,
+            ArrayList<TransactionId> path, HashSet<TransactionId> visited) {
+        for(TransactionId next : r.waitsFor) {
+            if(next.equals(start)) {
+                return true;
             }
-        } else {
-            // perm == READ_WRITE
-            if(rLocks.containsKey(pid)) {
-                HashSet<TransactionId> tids = rLocks.get(pid);
-                if(tids.add(tid)) {
-                    rLocks.put(pid, tids);
-                }
-            } else {
-                HashSet<TransactionId> tids = (new HashSet<TransactionId>());
-                if(tids.add(tid)) {
-                    rLocks.put(pid, tids);
-                }
+            LockRequest q = waiting.get(next);
+            if(q == null || !visited.add(next)) {
+                continue;
+            }
+            path.add(next);
+            if(findCycle(start, q, path, visited)) {
+                return true;
             }
+            path.remove(path.size() - 1);
+        }
+        return false;
+    }
 
-            if(rLockReverseIndex.containsKey(tid)) {
-                HashSet<PageId> pids = rLockReverseIndex.get(tid);
-                if(pids.add(pid)) {
-                    rLockReverseIndex.put(tid, pids);
+    /**
+     * Break every deadlock that the new wait of r closed by withdrawing the
+     * request of the youngest transaction on the cycle. If that is r itself
+     * it is marked as a victim and the caller throws. The caller holds no
+     * shard latch, since the victim may wait in any shard.
+     */
+    private void breakDeadlocks(LockRequest r) {
+        while(true) {
+            long start = System.nanoTime();
+            LockRequest victim;
+            synchronized(waiting) {
+                if(waiting.get(r.tid) != r) {
+                    return; // granted or withdrawn meanwhile
                 }
-            } else {
-                HashSet<PageId> pids = (new HashSet<PageId> ());
-                if(pids.add(pid)) {
-                    rLockReverseIndex.put(tid, pids);
+                ArrayList<TransactionId> cycle = findCycle(r);
+                if(cycle == null) {
+                    return;
+                }
+                TransactionId youngest = cycle.get(0);
+                for(TransactionId t : cycle) {
+                    if(t.getId() > youngest.getId()) {
+                        youngest = t;
+                    }
+                }
+                victim = waiting.get(youngest);
+            }
+            Shard sh = shardOf(victim.key);
+            sh.latch.lock();
+            try {
+                // the victim may have been granted since the cycle was found
+                if(!victim.isGranted && !victim.isVictim) {
+                    deadlocks.incrementAndGet();
+                    victim.deadlockStart = start;
+                    victim.isVictim = true;
+                    withdraw(sh, victim);
+                    victim.granted.signal();
                 }
+            } finally {
+                sh.latch.unlock();
             }
+        }
+    }
 
-            if(wLocks.containsKey(pid)) {
-                assert(wLocks.get(pid) == tid);
-            } else {
-                wLocks.put(pid, tid);
+    /**
+     * Remove the waiting request r from its queue and grant the requests
+     * that no longer wait for it. The caller holds the latch of sh.
+     */
+    private void withdraw(Shard sh, LockRequest r) {
+        synchronized(waiting) {
+            waiting.remove(r.tid);
+        }
+        LockEntry e = sh.table.get(r.key);
+        e.waiters.remove(r);
+        grantWaiters(sh, r.key, e);
+    }
+
+    /** Drop the lock of tid on key and grant waiting requests. */
+    private void release(TransactionId tid, Object key) {
+        Shard sh = shardOf(key);
+        sh.latch.lock();
+        try {
+            LockEntry e = sh.table.get(key);
+            if(e == null) {
+                return;
             }
+            e.holders.remove(tid);
+            grantWaiters(sh, key, e);
+        } finally {
+            sh.latch.unlock();
+        }
+    }
 
-            if(wLockReverseIndex.containsKey(tid)) {
-                HashSet<PageId> pids = wLockReverseIndex.get(tid);
-                if(pids.add(pid)) {
-                    wLockReverseIndex.put(tid, pids);
-                }
-            } else {
-                HashSet<PageId> pids = new HashSet<PageId> ();
-                if(pids.add(pid)) {
-                    wLockReverseIndex.put(tid, pids);
-                }
+    /**
+     * Release all locks corresponding to TransactionId tid.
+     * This method is used by BufferPool.transactionComplete()
+     */
+    public void releaseAllLocks(TransactionId tid) {
+        lockWaits.remove(tid);
+        TxLocks tx = held.remove(tid);
+        if(tx == null) {
+            return;
+        }
+        for(HashSet<RecordId> rids : tx.rows.values()) {
+            for(RecordId rid : rids) {
+                release(tid, rid);
             }
         }
-        return true;
+        for(HashSet<PageId> pids : tx.pages.values()) {
+            for(PageId pid : pids) {
+                release(tid, pid);
+            }
+        }
+        for(Integer table : tx.tables.keySet()) {
+            release(tid, new TableKey(table));
+        }
+    }
+
+    /**
+     * Return true if the specified transaction has a lock on the specified
+     * page, either an S, SIX or X lock on the page itself or on its table
+     */
+    public boolean holdsLock(TransactionId tid, PageId p) {
+        return holds(tid, p, LockMode.S) || holds(tid, new TableKey(p.getTableId()), LockMode.S);
+    }
+
+    private boolean holds(TransactionId tid, Object key, LockMode mode) {
+        Shard sh = shardOf(key);
+        sh.latch.lock();
+        try {
+            LockEntry e = sh.table.get(key);
+            return e != null && e.holds(tid, mode);
+        } finally {
+            sh.latch.unlock();
+        }
+    }
+
+    /**
+     * Releases whatever lock this transaction has on this page
+     * Should update lock table data structure(s)
+     *
+     * Requests waiting for the page that become compatible are granted and
+     * their threads woken up. A lock on the page's table is kept until the
+     * transaction completes.
+     */
+    public void releaseLock(TransactionId tid, PageId pid) {
+        TxLocks tx = held.get(tid);
+        if(tx == null) {
+            return;
+        }
+        HashSet<PageId> pids = tx.pages.get(pid.getTableId());
+        if(pids == null || !pids.remove(pid)) {
+            return;
+        }
+        release(tid, pid);
     }
-}
\ No newline at end of file
+}
@@ -0,0 +1,74 @@
+package simpledb;
+
+/**
+ * Class representing the modes of a lock in LockManager's multi-granularity
+ * locking. Pages are locked in S or X mode; the table of a page is locked in
+ * the intention mode IS or IX first, or in S, SIX or X mode when the whole
+ * table is locked at once.
+ * Private constructor with one static object per mode.
+ */
+public class LockMode {
+    final int level;
+    private final String name;
+
+    private LockMode(int level, String name) {
+        this.level = level;
+        this.name = name;
+    }
+
+    public String toString() {
+        return name;
+    }
+
+    public static final LockMode IS = new LockMode(0, "IS");
+    public static final LockMode IX = new LockMode(1, "IX");
+    public static final LockMode S = new LockMode(2, "S");
+    public static final LockMode SIX = new LockMode(3, "SIX");
+    public static final LockMode X = new LockMode(4, "X");
+
+    private static final LockMode[] MODES = { IS, IX, S, SIX, X };
+
+    private static final boolean[][] COMPATIBLE = {
+        //   IS     IX     S      SIX    X
+        {  true,  true,  true,  true, false }, // IS
+        {  true,  true, false, false, false }, // IX
+        {  true, false,  true, false, false }, // S
+        {  true, false, false, false, false }, // SIX
+        { false, false, false, false, false }, // X
+    };
+
+    // index of the weakest mode at least as strong as both
+    private static final int[][] JOIN = {
+        // IS IX  S SIX X
+        {  0, 1, 2, 3, 4 }, // IS
+        {  1, 1, 3, 3, 4 }, // IX
+        {  2, 3, 2, 3, 4 }, // S
+        {  3, 3, 3, 3, 4 }, // SIX
+        {  4, 4, 4, 4, 4 }, // X
+    };
+
+    /** @return true if this mode and m can be held by two transactions at once */
+    public boolean compatibleWith(LockMode m) {
+        return COMPATIBLE[level][m.level];
+    }
+
+    /** @return the weakest mode that grants both this mode and m */
+    public LockMode join(LockMode m) {
+        return MODES[JOIN[level][m.level]];
+    }
+
+    /** @return true if holding this mode implies holding m */
+    public boolean covers(LockMode m) {
+        return JOIN[level][m.level] == level;
+    }
+
+    /** @return the mode of a page lock with permissions perm */
+    public static LockMode forPage(Permissions perm) {
+        return perm == Permissions.READ_WRITE ? X : S;
+    }
+
+    /** @return the intention mode to hold on a table before locking one of its pages with perm */
+    public static LockMode intentionFor(Permissions perm) {
+        return perm == Permissions.READ_WRITE ? IX : IS;
+    }
+}
@@ -0,0 +1,13 @@
+package simpledb;
+
+/**
+ * Exception that is thrown when a lock cannot be granted within the lock
+ * wait of the requesting transaction. Like a deadlock, it aborts the
+ * transaction.
+ */
+public class LockTimeoutException extends DeadlockException {
+    private static final long serialVersionUID = 1L;
+
+    public LockTimeoutException() {
+    }
+}
@@ -3,7 +3,10 @@ package simpledb;
 
 import java.io.*;
 import java.util.*;
-import java.lang.reflect.*;
+import java.nio.ByteBuffer;
+import java.nio.channels.Channels;
+import java.nio.channels.ClosedChannelException;
+import java.nio.channels.FileChannel;
 
 /**
 LogFile implements the recovery subsystem of SimpleDb.  This class is
@@ -32,6 +35,20 @@ must not be declared synchronized and must begin with a block like:
        }
     }
 </pre>
+
+<p> Commits use group commit: logCommit appends its record under the
+LogFile monitor, but waits for it to reach disk outside of it, on
+commitLock.  A log writer thread forces the log once for every commit
+that is waiting at the time, so concurrent commits share an fsync.
+Nothing holds commitLock while taking the LogFile monitor.
+
+<p> Records are appended to an in-memory log buffer, which is written
+to the file when it fills up or when the log is forced, so the log
+is written in large sequential writes.  Pages carry no LSN: before a
+transaction's pages are written, {@link #forceRecords} forces the log
+up to its last slot record.  Every record has a log sequence number (LSN): the
+position of its first byte in the log, counting from the start of the
+log before any truncation, so LSNs only grow.
 */
 
 /**
@@ -45,21 +62,29 @@ last written checkpoint, or -1 if there are no checkpoints
 <li> All additional data in the log consists of log records.  Log
 records are variable length.
 
-<li> Each log record begins with an integer type and a long integer
+<li> Each log record begins with a byte type and a long integer
 transaction id.
 
 <li> Each log record ends with a long integer file offset representing
 the position in the log file where the record began.
 
-<li> There are five record types: ABORT, COMMIT, UPDATE, BEGIN, and
-CHECKPOINT
+<li> There are seven record types: ABORT, COMMIT, UPDATE, BEGIN,
+CHECKPOINT, INSERT and DELETE
 
 <li> ABORT, COMMIT, and BEGIN records contain no additional data
 
 <li>UPDATE RECORDS consist of two entries, a before image and an
 after image.  These images are serialized Page objects, and can be
 accessed with the LogFile.readPageData() and LogFile.writePageData()
-methods.  See LogFile.print() for an example.
+methods.  See LogFile.print() for an example.  A page image is a byte
+tag for the class of the page, the integers of its serialized PageId,
+and the length and bytes of its data.
+
+<li> INSERT and DELETE records describe the change of one tuple slot
+of a heap page: the integer table id, page number and slot, followed
+by the integer length and the bytes of the tuple inserted or deleted.
+They are what HeapFile logs, and what rollback() and recover() undo
+and redo; UPDATE records are only kept for logWrite().
 
 <li> CHECKPOINT records consist of active transactions at the time
 the checkpoint was taken and their first log record on disk.  The format
@@ -82,8 +107,16 @@ public class LogFile {
     static final int UPDATE_RECORD = 3;
     static final int BEGIN_RECORD = 4;
     static final int CHECKPOINT_RECORD = 5;
+    static final int INSERT_RECORD = 6;
+    static final int DELETE_RECORD = 7;
     static final long NO_CHECKPOINT_ID = -1;
 
+    // tags of the page classes of page images
+    static final int HEAP_PAGE = 1;
+
+    /** Size of the in-memory log buffer, in bytes. */
+    static final int LOG_BUFFER_SIZE = 1 << 16;
+
     static int INT_SIZE = 4;
     static int LONG_SIZE = 8;
 
@@ -92,6 +125,29 @@ public class LogFile {
     int totalRecords = 0; // for PatchTest
 
     HashMap<Long,Long> tidToFirstLogRecord = new HashMap<Long,Long>();
+    // LSN just past the last slot record of each transaction
+    HashMap<Long,Long> tidToLastLsn = new HashMap<Long,Long>();
+
+    /** Default for {@link #setMaxCommitDelay}, in milliseconds. */
+    public static final long DEFAULT_MAX_COMMIT_DELAY = 1;
+    // how long the log writer waits for an idle log before it exits
+    static final long WRITER_IDLE_MILLIS = 1000;
+
+    LogBuffer out; // appends records to raf, guarded by this
+    long lsnBase = 0; // LSN of offset 0 of the log file, guarded by this
+    // file offset just past the last complete record read by readSlotRecords
+    long recordsEnd = 0;
+
+    // group commit state, guarded by commitLock
+    private final Object commitLock = new Object();
+    private long requested = 0; // a committer waits for the log up to this LSN
+    private long forced = 0; // the log is on disk up to this LSN
+    private int waiting = 0; // committers waiting for a force
+    private IOException forceError = null;
+    private Thread writer = null;
+    private boolean stopped = false;
+    private volatile long maxCommitDelay = DEFAULT_MAX_COMMIT_DELAY;
+    private long forceCount = 0;
 
     /** Constructor.
         Initialize and back the log file with the specified file.
@@ -107,6 +163,8 @@ public class LogFile {
     public LogFile(File f) throws IOException {
 	this.logFile = f;
         raf = new RandomAccessFile(f, "rw");
+        out = new LogBuffer(raf.getChannel(), raf.length(),
+                ByteBuffer.allocateDirect(LOG_BUFFER_SIZE));
         recoveryUndecided = true;
 
         // install shutdown hook to force cleanup on close
@@ -127,23 +185,134 @@ public class LogFile {
         totalRecords++;
         if(recoveryUndecided){
             recoveryUndecided = false;
-            raf.seek(0);
             raf.setLength(0);
-            raf.writeLong(NO_CHECKPOINT_ID);
-            raf.seek(raf.length());
-            currentOffset = raf.getFilePointer();
+            out.reset(raf.getChannel(), 0);
+            out.putLong(NO_CHECKPOINT_ID);
+            currentOffset = out.position();
+        }
+    }
+
+    /**
+     * Buffer of records being appended to a log file. Records are put in a
+     * byte buffer and written with one positional write whenever it fills
+     * up or is flushed.
+     */
+    static class LogBuffer {
+        private final ByteBuffer buf;
+        private FileChannel ch;
+        private long start; // file offset of the first byte in buf
+
+        LogBuffer(FileChannel ch, long start, ByteBuffer buf) {
+            this.ch = ch;
+            this.start = start;
+            this.buf = buf;
+        }
+
+        /** Drop what is buffered and append to ch from offset start on. */
+        void reset(FileChannel ch, long start) {
+            this.ch = ch;
+            this.start = start;
+            buf.clear();
+        }
+
+        /** @return the file offset the next byte put will be written at */
+        long position() {
+            return start + buf.position();
+        }
+
+        /** @return the file offset up to which the buffer has been written */
+        long written() {
+            return start;
+        }
+
+        void putByte(int b) throws IOException {
+            if (!buf.hasRemaining())
+                flush();
+            buf.put((byte) b);
+        }
+
+        void putInt(int i) throws IOException {
+            if (buf.remaining() < INT_SIZE)
+                flush();
+            buf.putInt(i);
+        }
+
+        void putLong(long l) throws IOException {
+            if (buf.remaining() < LONG_SIZE)
+                flush();
+            buf.putLong(l);
+        }
+
+        void put(byte[] b) throws IOException {
+            int off = 0;
+            while (off < b.length) {
+                if (!buf.hasRemaining())
+                    flush();
+                int n = Math.min(buf.remaining(), b.length - off);
+                buf.put(b, off, n);
+                off += n;
+            }
+        }
+
+        /** Write the buffered bytes to the file. */
+        void flush() throws IOException {
+            buf.flip();
+            while (buf.hasRemaining())
+                start += ch.write(buf, start);
+            buf.clear();
         }
     }
 
     public int getTotalRecords() {
         return totalRecords;
     }
+
+    /**
+     * Set how long the log writer may hold back a force so that commits of
+     * other live transactions join it, in milliseconds. 0 forces as soon as
+     * a commit waits; commits that arrive during a force still share the
+     * next one.
+     */
+    public void setMaxCommitDelay(long millis) {
+        if (millis < 0)
+            throw new IllegalArgumentException("negative commit delay " + millis);
+        maxCommitDelay = millis;
+    }
+
+    public long getMaxCommitDelay() {
+        return maxCommitDelay;
+    }
+
+    /** @return the LSN the next record will get */
+    public synchronized long getCurrentLsn() {
+        return lsnBase + out.position();
+    }
+
+    /** @return the LSN up to which the log has been written to the file */
+    public synchronized long getFlushedLsn() {
+        return lsnBase + out.written();
+    }
+
+    /** @return the LSN up to which the log has been forced to disk */
+    public long getForcedLsn() {
+        synchronized (commitLock) {
+            return forced;
+        }
+    }
+
+    /** @return the number of times the log has been forced to disk */
+    public long getForceCount() {
+        synchronized (commitLock) {
+            return forceCount;
+        }
+    }
     
     /** Write an abort record to the log for the specified tid, force
         the log to disk, and perform a rollback
         @param tid The aborting transaction.
+        @return The LSN of the abort record
     */
-    public void logAbort(TransactionId tid) throws IOException {
+    public long logAbort(TransactionId tid) throws IOException {
         // must have buffer pool lock before proceeding, since this
         // calls rollback
 
@@ -158,12 +327,15 @@ public class LogFile {
                 // live transactions (needs tidToFirstLogRecord)
                 rollback(tid);
 
-                raf.writeInt(ABORT_RECORD);
-                raf.writeLong(tid.getId());
-                raf.writeLong(currentOffset);
-                currentOffset = raf.getFilePointer();
+                long lsn = lsnBase + currentOffset;
+                out.putByte(ABORT_RECORD);
+                out.putLong(tid.getId());
+                out.putLong(currentOffset);
+                currentOffset = out.position();
                 force();
                 tidToFirstLogRecord.remove(tid.getId());
+                tidToLastLsn.remove(tid.getId());
+                return lsn;
             }
         }
     }
@@ -172,18 +344,245 @@ public class LogFile {
         and force the log to disk.
 
         @param tid The committing transaction.
+        @return The LSN of the commit record
     */
-    public synchronized void logCommit(TransactionId tid) throws IOException {
+    public long logCommit(TransactionId tid) throws IOException {
+        long lsn, end;
+        synchronized (this) {
+            preAppend();
+            Debug.log("COMMIT " + tid.getId());
+            //should we verify that this is a live transaction?
+
+            lsn = lsnBase + currentOffset;
+            out.putByte(COMMIT_RECORD);
+            out.putLong(tid.getId());
+            out.putLong(currentOffset);
+            currentOffset = out.position();
+            tidToFirstLogRecord.remove(tid.getId());
+            tidToLastLsn.remove(tid.getId());
+            end = lsnBase + currentOffset;
+        }
+        awaitForce(end);
+        return lsn;
+    }
+
+    /** Wait until the log writer has forced the log up to lsn. */
+    private void awaitForce(long lsn) throws IOException {
+        synchronized (commitLock) {
+            if (lsn > requested)
+                requested = lsn;
+            if (writer == null && !stopped) {
+                writer = new LogWriter();
+                writer.start();
+            }
+            waiting++;
+            commitLock.notifyAll();
+            try {
+                while (forced < lsn && forceError == null && !stopped)
+                    commitLock.wait();
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                throw new InterruptedIOException("interrupted waiting for the log");
+            } finally {
+                waiting--;
+            }
+            if (forced < lsn) {
+                if (forceError != null)
+                    throw new IOException("log force failed", forceError);
+                throw new IOException("log shut down before commit was forced");
+            }
+        }
+    }
+
+    /** Record that the log is on disk up to lsn. */
+    private void forced(long lsn) {
+        synchronized (commitLock) {
+            forceCount++;
+            if (lsn > forced)
+                forced = lsn;
+            commitLock.notifyAll();
+        }
+    }
+
+    /**
+     * Thread that forces the log for waiting committers, one force per
+     * batch. It exits once the log has been idle for WRITER_IDLE_MILLIS,
+     * and awaitForce starts a new one.
+     */
+    private class LogWriter extends Thread {
+        LogWriter() {
+            super("LogWriter");
+            setDaemon(true);
+        }
+
+        public void run() {
+            while (awaitBatch()) {
+                long lsn;
+                FileChannel ch;
+                try {
+                    synchronized (LogFile.this) {
+                        out.flush();
+                        lsn = lsnBase + out.position();
+                        ch = raf.getChannel();
+                    }
+                    ch.force(true);
+                } catch (ClosedChannelException e) {
+                    // logTruncate replaced the file; force the new one
+                    continue;
+                } catch (IOException e) {
+                    synchronized (commitLock) {
+                        forceError = e;
+                        commitLock.notifyAll();
+                    }
+                    continue;
+                }
+                forced(lsn);
+            }
+        }
+
+        /**
+         * Wait for a committer, then for up to the commit delay while other
+         * live transactions may still join the batch.
+         * @return false if the writer should exit
+         */
+        private boolean awaitBatch() {
+            try {
+                synchronized (commitLock) {
+                    long idleSince = System.currentTimeMillis();
+                    while (requested <= forced || forceError != null) {
+                        long idle = System.currentTimeMillis() - idleSince;
+                        if (stopped || idle >= WRITER_IDLE_MILLIS) {
+                            writer = null;
+                            return false;
+                        }
+                        commitLock.wait(WRITER_IDLE_MILLIS - idle);
+                    }
+                }
+                long delay = maxCommitDelay;
+                if (delay == 0)
+                    return true;
+                int live;
+                synchronized (LogFile.this) {
+                    live = tidToFirstLogRecord.size();
+                }
+                synchronized (commitLock) {
+                    long deadline = System.currentTimeMillis() + delay;
+                    int goal = waiting + live;
+                    long left;
+                    while (waiting < goal && !stopped
+                            && (left = deadline - System.currentTimeMillis()) > 0)
+                        commitLock.wait(left);
+                }
+                return true;
+            } catch (InterruptedException e) {
+                synchronized (commitLock) {
+                    writer = null;
+                }
+                return false;
+            }
+        }
+    }
+
+    /** Write an INSERT record for the tuple tid put into the empty
+        slot rid.
+        @param tid The transaction performing the insert
+        @param rid The slot the tuple was put in
+        @param tuple The bytes of the tuple, as stored on its page
+        @return The LSN of the insert record
+    */
+    public long logInsert(TransactionId tid, RecordId rid, byte[] tuple)
+        throws IOException {
+        return logSlot(INSERT_RECORD, tid, rid, tuple);
+    }
+
+    /** Write a DELETE record for the tuple tid removed from slot rid.
+        @param tid The transaction performing the delete
+        @param rid The slot the tuple was removed from
+        @param tuple The bytes of the tuple, as stored on its page
+        @return The LSN of the delete record
+    */
+    public long logDelete(TransactionId tid, RecordId rid, byte[] tuple)
+        throws IOException {
+        return logSlot(DELETE_RECORD, tid, rid, tuple);
+    }
+
+    private synchronized long logSlot(int type, TransactionId tid,
+                                      RecordId rid, byte[] tuple)
+        throws IOException {
         preAppend();
-        Debug.log("COMMIT " + tid.getId());
-        //should we verify that this is a live transaction?
+        long lsn = lsnBase + currentOffset;
+        out.putByte(type);
+        out.putLong(tid.getId());
+        writeSlotData(out, rid, tuple);
+        out.putLong(currentOffset);
+        currentOffset = out.position();
+        tidToLastLsn.put(tid.getId(), lsnBase + currentOffset);
+        return lsn;
+    }
+
+    void writeSlotData(LogBuffer out, RecordId rid, byte[] tuple)
+        throws IOException {
+        PageId pid = rid.getPageId();
+        out.putInt(pid.getTableId());
+        out.putInt(pid.pageNumber());
+        out.putInt(rid.tupleno());
+        out.putInt(tuple.length);
+        out.put(tuple);
+    }
+
+    /** A slot change read back from the log. */
+    static class SlotRecord {
+        final int type;
+        final long tid;
+        final HeapPageId pid;
+        final int slot;
+        final byte[] tuple;
+
+        SlotRecord(int type, long tid, DataInput in) throws IOException {
+            this.type = type;
+            this.tid = tid;
+            this.pid = new HeapPageId(in.readInt(), in.readInt());
+            this.slot = in.readInt();
+            this.tuple = new byte[in.readInt()];
+            in.readFully(this.tuple);
+        }
 
-        raf.writeInt(COMMIT_RECORD);
-        raf.writeLong(tid.getId());
-        raf.writeLong(currentOffset);
-        currentOffset = raf.getFilePointer();
-        force();
-        tidToFirstLogRecord.remove(tid.getId());
+        /** Apply this change to its page, or take it back if undo is set. */
+        void apply(HashMap<PageId,HeapPage> pages, HashSet<PageId> changed,
+                   boolean undo) throws IOException {
+            HeapPage page = pages.get(pid);
+            if (page == null) {
+                HeapFile hf = (HeapFile) Database.getCatalog().getDbFile(pid.getTableId());
+                if (pid.pageNumber() < hf.numPages())
+                    page = (HeapPage) hf.readPage(pid);
+                else
+                    page = new HeapPage(pid, HeapPage.createEmptyPageData());
+                pages.put(pid, page);
+            }
+            boolean insert = (type == INSERT_RECORD) != undo;
+            if (page.setSlot(slot, insert ? tuple : null))
+                changed.add(pid);
+        }
+    }
+
+    /**
+     * Force the log up to the last slot record of tid, so that pages with
+     * its changes can be written (write-ahead logging). Concurrent callers
+     * share forces with committers.
+     */
+    public void forceRecords(TransactionId tid) throws IOException {
+        if (Thread.holdsLock(this)) {
+            // e.g. a checkpoint; the log writer would wait for our monitor
+            if (tidToLastLsn.remove(tid.getId()) != null)
+                force();
+            return;
+        }
+        Long last;
+        synchronized (this) {
+            last = tidToLastLsn.remove(tid.getId());
+        }
+        if (last != null)
+            awaitForce(last);
     }
 
     /** Write an UPDATE record to disk for the specified tid and page
@@ -193,11 +592,14 @@ public class LogFile {
         @param after The after image of the page
 
         @see simpledb.Page#getBeforeImage
+        @deprecated Log the changed slots with logInsert and logDelete;
+        rollback() and recover() do not replay page images.
     */
-    public  synchronized void logWrite(TransactionId tid, Page before,
-                                       Page after)
+    @Deprecated
+    public synchronized long logWrite(TransactionId tid, Page before,
+                                      Page after)
         throws IOException  {
-        Debug.log("WRITE, offset = " + raf.getFilePointer());
+        Debug.log("WRITE, offset = " + out.position());
         preAppend();
         /* update record conists of
 
@@ -207,99 +609,70 @@ public class LogFile {
            after page data
            start offset
         */
-        raf.writeInt(UPDATE_RECORD);
-        raf.writeLong(tid.getId());
+        long lsn = lsnBase + currentOffset;
+        out.putByte(UPDATE_RECORD);
+        out.putLong(tid.getId());
 
-        writePageData(raf,before);
-        writePageData(raf,after);
-        raf.writeLong(currentOffset);
-        currentOffset = raf.getFilePointer();
+        writePageData(out,before);
+        writePageData(out,after);
+        out.putLong(currentOffset);
+        currentOffset = out.position();
 
         Debug.log("WRITE OFFSET = " + currentOffset);
+        return lsn;
     }
 
-    void writePageData(RandomAccessFile raf, Page p) throws IOException{
+    void writePageData(LogBuffer out, Page p) throws IOException{
         PageId pid = p.getId();
         int pageInfo[] = pid.serialize();
 
         //page data is:
-        // page class name
-        // id class name
-        // id class bytes
-        // id class data
-        // page class bytes
-        // page class data
-
-        String pageClassName = p.getClass().getName();
-        String idClassName = pid.getClass().getName();
-
-        raf.writeUTF(pageClassName);
-        raf.writeUTF(idClassName);
-
-        raf.writeInt(pageInfo.length);
+        // page class tag
+        // id ints count
+        // id ints
+        // page data length
+        // page data
+
+        out.putByte(pageTag(p));
+        out.putByte(pageInfo.length);
         for (int i = 0; i < pageInfo.length; i++) {
-            raf.writeInt(pageInfo[i]);
+            out.putInt(pageInfo[i]);
         }
         byte[] pageData = p.getPageData();
-        raf.writeInt(pageData.length);
-        raf.write(pageData);
-        //        Debug.log ("WROTE PAGE DATA, CLASS = " + pageClassName + ", table = " +  pid.getTableId() + ", page = " + pid.pageno());
+        out.putInt(pageData.length);
+        out.put(pageData);
     }
 
-    Page readPageData(RandomAccessFile raf) throws IOException {
-        PageId pid;
-        Page newPage = null;
-
-        String pageClassName = raf.readUTF();
-        String idClassName = raf.readUTF();
-
-        try {
-            Class<?> idClass = Class.forName(idClassName);
-            Class<?> pageClass = Class.forName(pageClassName);
-
-            Constructor<?>[] idConsts = idClass.getDeclaredConstructors();
-            int numIdArgs = raf.readInt();
-            Object idArgs[] = new Object[numIdArgs];
-            for (int i = 0; i<numIdArgs;i++) {
-                idArgs[i] = new Integer(raf.readInt());
-            }
-            pid = (PageId)idConsts[0].newInstance(idArgs);
-
-            Constructor<?>[] pageConsts = pageClass.getDeclaredConstructors();
-            int pageSize = raf.readInt();
-
-            byte[] pageData = new byte[pageSize];
-            raf.read(pageData); //read before image
-
-            Object[] pageArgs = new Object[2];
-            pageArgs[0] = pid;
-            pageArgs[1] = pageData;
-
-            newPage = (Page)pageConsts[0].newInstance(pageArgs);
+    /** @return the tag of the class of page p in page images */
+    static int pageTag(Page p) throws IOException {
+        if (p instanceof HeapPage)
+            return HEAP_PAGE;
+        throw new IOException("cannot log pages of " + p.getClass().getName());
+    }
 
-            //            Debug.log("READ PAGE OF TYPE " + pageClassName + ", table = " + newPage.getId().getTableId() + ", page = " + newPage.getId().pageno());
-        } catch (ClassNotFoundException e){
-            e.printStackTrace();
-            throw new IOException();
-        } catch (InstantiationException e) {
-            e.printStackTrace();
-            throw new IOException();
-        } catch (IllegalAccessException e) {
-            e.printStackTrace();
-            throw new IOException();
-        } catch (InvocationTargetException e) {
-            e.printStackTrace();
-            throw new IOException();
+    Page readPageData(DataInput in) throws IOException {
+        int tag = in.readByte();
+        int numIdArgs = in.readByte();
+        int[] idArgs = new int[numIdArgs];
+        for (int i = 0; i < numIdArgs; i++) {
+            idArgs[i] = in.readInt();
+        }
+        byte[] pageData = new byte[in.readInt()];
+        in.readFully(pageData);
+
+        switch (tag) {
+        case HEAP_PAGE:
+            return new HeapPage(new HeapPageId(idArgs[0], idArgs[1]), pageData);
+        default:
+            throw new IOException("unknown page tag " + tag);
         }
-        return newPage;
-
     }
 
     /** Write a BEGIN record for the specified transaction
         @param tid The transaction that is beginning
-
+        @return The LSN of the begin record
     */
-    public synchronized  void logXactionBegin(TransactionId tid)
+    public synchronized long logXactionBegin(TransactionId tid)
         throws IOException {
         Debug.log("BEGIN");
         if(tidToFirstLogRecord.get(tid.getId()) != null){
@@ -307,13 +680,15 @@ public class LogFile {
             throw new IOException("double logXactionBegin()");
         }
         preAppend();
-        raf.writeInt(BEGIN_RECORD);
-        raf.writeLong(tid.getId());
-        raf.writeLong(currentOffset);
+        long lsn = lsnBase + currentOffset;
+        out.putByte(BEGIN_RECORD);
+        out.putLong(tid.getId());
+        out.putLong(currentOffset);
         tidToFirstLogRecord.put(tid.getId(), currentOffset);
-        currentOffset = raf.getFilePointer();
+        currentOffset = out.position();
 
         Debug.log("BEGIN OFFSET = " + currentOffset);
+        return lsn;
     }
 
     /** Checkpoint the log and write a checkpoint record. */
@@ -323,33 +698,32 @@ public class LogFile {
             synchronized (this) {
                 //Debug.log("CHECKPOINT, offset = " + raf.getFilePointer());
                 preAppend();
-                long startCpOffset, endCpOffset;
+                long startCpOffset;
                 Set<Long> keys = tidToFirstLogRecord.keySet();
                 Iterator<Long> els = keys.iterator();
                 force();
                 Database.getBufferPool().flushAllPages();
-                startCpOffset = raf.getFilePointer();
-                raf.writeInt(CHECKPOINT_RECORD);
-                raf.writeLong(-1); //no tid , but leave space for convenience
+                startCpOffset = out.position();
+                out.putByte(CHECKPOINT_RECORD);
+                out.putLong(-1); //no tid , but leave space for convenience
 
                 //write list of outstanding transactions
-                raf.writeInt(keys.size());
+                out.putInt(keys.size());
                 while (els.hasNext()) {
                     Long key = els.next();
                     Debug.log("WRITING CHECKPOINT TRANSACTION ID: " + key);
-                    raf.writeLong(key);
+                    out.putLong(key);
                     //Debug.log("WRITING CHECKPOINT TRANSACTION OFFSET: " + tidToFirstLogRecord.get(key));
-                    raf.writeLong(tidToFirstLogRecord.get(key));
+                    out.putLong(tidToFirstLogRecord.get(key));
                 }
+                out.putLong(currentOffset);
+                currentOffset = out.position();
 
                 //once the CP is written, make sure the CP location at the
                 // beginning of the log file is updated
-                endCpOffset = raf.getFilePointer();
+                out.flush();
                 raf.seek(0);
                 raf.writeLong(startCpOffset);
-                raf.seek(endCpOffset);
-                raf.writeLong(currentOffset);
-                currentOffset = raf.getFilePointer();
                 //Debug.log("CP OFFSET = " + currentOffset);
             }
         }
@@ -361,6 +735,7 @@ public class LogFile {
         consumption */
     public synchronized void logTruncate() throws IOException {
         preAppend();
+        out.flush();
         raf.seek(0);
         long cpLoc = raf.readLong();
 
@@ -368,7 +743,7 @@ public class LogFile {
 
         if (cpLoc != -1L) {
             raf.seek(cpLoc);
-            int cpType = raf.readInt();
+            int cpType = raf.readByte();
             @SuppressWarnings("unused")
             long cpTid = raf.readLong();
 
@@ -391,39 +766,46 @@ public class LogFile {
         // we can truncate everything before minLogRecord
         File newFile = new File("logtmp" + System.currentTimeMillis());
         RandomAccessFile logNew = new RandomAccessFile(newFile, "rw");
-        logNew.seek(0);
-        logNew.writeLong((cpLoc - minLogRecord) + LONG_SIZE);
+        LogBuffer newOut = new LogBuffer(logNew.getChannel(), 0,
+                ByteBuffer.allocate(LOG_BUFFER_SIZE));
+        newOut.putLong((cpLoc - minLogRecord) + LONG_SIZE);
 
-        raf.seek(minLogRecord);
+        DataInputStream in = new DataInputStream(new BufferedInputStream(
+                Channels.newInputStream(raf.getChannel().position(minLogRecord))));
 
         //have to rewrite log records since offsets are different after truncation
         while (true) {
             try {
-                int type = raf.readInt();
-                long record_tid = raf.readLong();
-                long newStart = logNew.getFilePointer();
+                int type = in.readByte();
+                long record_tid = in.readLong();
+                long newStart = newOut.position();
 
                 Debug.log("NEW START = " + newStart);
 
-                logNew.writeInt(type);
-                logNew.writeLong(record_tid);
+                newOut.putByte(type);
+                newOut.putLong(record_tid);
 
                 switch (type) {
                 case UPDATE_RECORD:
-                    Page before = readPageData(raf);
-                    Page after = readPageData(raf);
+                    Page before = readPageData(in);
+                    Page after = readPageData(in);
 
-                    writePageData(logNew, before);
-                    writePageData(logNew, after);
+                    writePageData(newOut, before);
+                    writePageData(newOut, after);
+                    break;
+                case INSERT_RECORD:
+                case DELETE_RECORD:
+                    SlotRecord r = new SlotRecord(type, record_tid, in);
+                    writeSlotData(newOut, new RecordId(r.pid, r.slot), r.tuple);
                     break;
                 case CHECKPOINT_RECORD:
-                    int numXactions = raf.readInt();
-                    logNew.writeInt(numXactions);
+                    int numXactions = in.readInt();
+                    newOut.putInt(numXactions);
                     while (numXactions-- > 0) {
-                        long xid = raf.readLong();
-                        long xoffset = raf.readLong();
-                        logNew.writeLong(xid);
-                        logNew.writeLong((xoffset - minLogRecord) + LONG_SIZE);
+                        long xid = in.readLong();
+                        long xoffset = in.readLong();
+                        newOut.putLong(xid);
+                        newOut.putLong((xoffset - minLogRecord) + LONG_SIZE);
                     }
                     break;
                 case BEGIN_RECORD:
@@ -432,13 +814,15 @@ public class LogFile {
                 }
 
                 //all xactions finish with a pointer
-                logNew.writeLong(newStart);
-                raf.readLong();
+                newOut.putLong(newStart);
+                in.readLong();
 
             } catch (EOFException e) {
                 break;
             }
         }
+        newOut.flush();
+        logNew.close();
 
         Debug.log("TRUNCATING LOG;  WAS " + raf.length() + " BYTES ; NEW START : " + minLogRecord + " NEW LENGTH: " + (raf.length() - minLogRecord));
 
@@ -446,10 +830,12 @@ public class LogFile {
         logFile.delete();
         newFile.renameTo(logFile);
         raf = new RandomAccessFile(logFile, "rw");
-        raf.seek(raf.length());
         newFile.delete();
 
-        currentOffset = raf.getFilePointer();
+        // records keep their LSNs at their new offsets
+        lsnBase += minLogRecord - LONG_SIZE;
+        out.reset(raf.getChannel(), raf.length());
+        currentOffset = out.position();
         //print();
     }
 
@@ -466,9 +852,109 @@ public class LogFile {
         synchronized (Database.getBufferPool()) {
             synchronized(this) {
                 preAppend();
-                // some code goes here
+                Long first = tidToFirstLogRecord.get(tid.getId());
+                if (first == null)
+                    return;
+                // only pages tid flushed before aborting hold its changes,
+                // but undoing a change that never reached disk is harmless
+                ArrayList<SlotRecord> records = readSlotRecords(first, null);
+                HashMap<PageId,HeapPage> pages = new HashMap<PageId,HeapPage>();
+                HashSet<PageId> changed = new HashSet<PageId>();
+                for (int i = records.size() - 1; i >= 0; i--) {
+                    SlotRecord r = records.get(i);
+                    if (r.tid == tid.getId())
+                        r.apply(pages, changed, true);
+                }
+                writePages(pages, changed);
+            }
+        }
+    }
+
+    /** An input stream that counts the bytes read through it. */
+    static class CountingInputStream extends FilterInputStream {
+        long count = 0;
+
+        CountingInputStream(InputStream in) {
+            super(in);
+        }
+
+        public int read() throws IOException {
+            int b = super.read();
+            if (b >= 0)
+                count++;
+            return b;
+        }
+
+        public int read(byte[] b, int off, int len) throws IOException {
+            int n = super.read(b, off, len);
+            if (n > 0)
+                count += n;
+            return n;
+        }
+
+        public long skip(long n) throws IOException {
+            long skipped = super.skip(n);
+            count += skipped;
+            return skipped;
+        }
+    }
+
+    /**
+     * Read the slot records in the log from file offset from on, and put
+     * the type of the COMMIT or ABORT record of each transaction that has
+     * one into outcomes, if it is not null. Reading stops at the end of the
+     * log or at a record cut short by a crash; {@link #recordsEnd} is set to
+     * the offset just past the last complete record.
+     */
+    ArrayList<SlotRecord> readSlotRecords(long from, HashMap<Long,Integer> outcomes)
+        throws IOException {
+        out.flush();
+        ArrayList<SlotRecord> records = new ArrayList<SlotRecord>();
+        CountingInputStream counter = new CountingInputStream(new BufferedInputStream(
+                Channels.newInputStream(raf.getChannel().position(from))));
+        DataInputStream in = new DataInputStream(counter);
+        recordsEnd = from;
+        while (true) {
+            try {
+                int type = in.readByte();
+                long tid = in.readLong();
+                switch (type) {
+                case UPDATE_RECORD:
+                    readPageData(in);
+                    readPageData(in);
+                    break;
+                case CHECKPOINT_RECORD:
+                    int numXactions = in.readInt();
+                    while (numXactions-- > 0) {
+                        in.readLong();
+                        in.readLong();
+                    }
+                    break;
+                case INSERT_RECORD:
+                case DELETE_RECORD:
+                    records.add(new SlotRecord(type, tid, in));
+                    break;
+                case COMMIT_RECORD:
+                case ABORT_RECORD:
+                    if (outcomes != null)
+                        outcomes.put(tid, type);
+                    break;
+                }
+                in.readLong();
+                recordsEnd = from + counter.count;
+            } catch (EOFException e) {
+                break;
             }
         }
+        return records;
+    }
+
+    /** Write the changed pages to disk. */
+    private void writePages(HashMap<PageId,HeapPage> pages, HashSet<PageId> changed)
+        throws IOException {
+        for (PageId pid : changed) {
+            Database.getCatalog().getDbFile(pid.getTableId()).writePage(pages.get(pid));
+        }
     }
 
     /** Shutdown the logging system, writing out whatever state
@@ -478,6 +964,10 @@ public class LogFile {
     public synchronized void shutdown() {
         try {
             logCheckpoint();  //simple way to shutdown is to write a checkpoint record
+            synchronized (commitLock) {
+                stopped = true;
+                commitLock.notifyAll();
+            }
             raf.close();
         } catch (IOException e) {
             System.out.println("ERROR SHUTTING DOWN -- IGNORING.");
@@ -493,7 +983,53 @@ public class LogFile {
         synchronized (Database.getBufferPool()) {
             synchronized (this) {
                 recoveryUndecided = false;
-                // some code goes here
+                if (raf.length() < LONG_SIZE) {
+                    raf.setLength(0);
+                    out.reset(raf.getChannel(), 0);
+                    out.putLong(NO_CHECKPOINT_ID);
+                }
+                HashMap<Long,Integer> outcomes = new HashMap<Long,Integer>();
+                ArrayList<SlotRecord> records = readSlotRecords(LONG_SIZE, outcomes);
+                // drop a record torn by the crash, and append after the
+                // last complete one
+                if (raf.length() > recordsEnd)
+                    raf.setLength(recordsEnd);
+                out.reset(raf.getChannel(), recordsEnd);
+                HashMap<PageId,HeapPage> pages = new HashMap<PageId,HeapPage>();
+                HashSet<PageId> changed = new HashSet<PageId>();
+
+                // redo the changes of committed transactions, oldest first;
+                // aborted ones were undone by their rollback
+                for (SlotRecord r : records) {
+                    if (Integer.valueOf(COMMIT_RECORD).equals(outcomes.get(r.tid)))
+                        r.apply(pages, changed, false);
+                }
+                // undo those of transactions that never finished, newest first
+                LinkedHashSet<Long> losers = new LinkedHashSet<Long>();
+                for (int i = records.size() - 1; i >= 0; i--) {
+                    SlotRecord r = records.get(i);
+                    if (!outcomes.containsKey(r.tid)) {
+                        r.apply(pages, changed, true);
+                        losers.add(r.tid);
+                    }
+                }
+                writePages(pages, changed);
+                for (PageId pid : pages.keySet())
+                    Database.getBufferPool().discardPage(pid);
+
+                // abort the losers, so that a later recovery does not undo
+                // them again over the changes of later transactions
+                currentOffset = out.position();
+                for (Long tid : losers) {
+                    totalRecords++;
+                    out.putByte(ABORT_RECORD);
+                    out.putLong(tid);
+                    out.putLong(currentOffset);
+                    currentOffset = out.position();
+                }
+                tidToFirstLogRecord.clear();
+                tidToLastLsn.clear();
+                force();
             }
          }
     }
@@ -504,7 +1040,9 @@ public class LogFile {
     }
 
     public  synchronized void force() throws IOException {
+        out.flush();
         raf.getChannel().force(true);
+        forced(lsnBase + out.position());
     }
 
 }
@@ -2,6 +2,7 @@ package simpledb;
 import java.util.Map;
 import java.util.Vector;
 import java.util.HashMap;
+import java.util.HashSet;
 import java.util.Iterator;
 import java.io.File;
 import java.util.ArrayList;
@@ -12,9 +13,9 @@ import java.util.NoSuchElementException;
  * the parser and is ready to be processed by the optimizer.
  * <p>
  * A LogicalPlan consits of a collection of table scan nodes, join
- * nodes, filter nodes, a select list, and a group by field.
- * LogicalPlans can only represent queries with one aggregation field
- * and one group by field.
+ * nodes, filter nodes, a select list, and a list of group by fields.
+ * All aggregates of a query are computed together by a single
+ * {@link Aggregate}.
  * <p>
  * LogicalPlans can be converted to physical (optimized) plans using
  * the {@link #physicalPlan} method, which uses the
@@ -29,12 +30,13 @@ public class LogicalPlan {
     private HashMap<String,Integer> tableMap;
 
     private Vector<LogicalSelectListNode> selectList;
-    private String groupByField = null;
+    private Vector<String> groupByFields = new Vector<String>();
     private boolean hasAgg = false;
-    private String aggOp;
-    private String aggField;
-    private boolean oByAsc, hasOrderBy = false;
-    private String oByField;
+    private Vector<String> aggOps = new Vector<String>();
+    private Vector<String> aggFields = new Vector<String>();
+    private Vector<String> oByFields = new Vector<String>();
+    private Vector<Boolean> oByAsc = new Vector<Boolean>();
+    private int limit = -1;
     private String query;
 //    private Query owner;
 
@@ -186,34 +188,63 @@ public class LogicalPlan {
     }
     
     /** Add an aggregate over the field with the specified grouping to
-        the query.  SimpleDb only supports a single aggregate
-        expression and GROUP BY field.
+        the query.
         @param op the aggregation operator
         @param afield the field to aggregate over
-        @param gfield the field to group by
+        @param gfield the field to group by, or null
      * @throws ParsingException 
     */
     public void addAggregate(String op, String afield, String gfield) throws ParsingException {
-        afield=disambiguateName(afield);
-        if (gfield!=null)
-            gfield=disambiguateName(gfield);
-        aggOp = op;
-        aggField = afield;
-        groupByField = gfield;
+        addAggregate(new String[] {op}, new String[] {afield},
+                gfield == null ? new String[0] : new String[] {gfield});
+    }
+
+    /** Add a list of aggregates, grouped by the specified fields, to the
+        query.  All of them are computed in one pass by a single Aggregate.
+        @param ops the aggregation operators
+        @param afields the fields to aggregate over, one per operator
+        @param gfields the fields to group by; empty if there is no grouping
+     * @throws ParsingException 
+    */
+    public void addAggregate(String[] ops, String[] afields, String[] gfields) throws ParsingException {
+        if (ops.length != afields.length)
+            throw new ParsingException("Need one aggregate operator per aggregate field");
+        aggOps.clear();
+        aggFields.clear();
+        groupByFields.clear();
+        for (int i = 0; i < ops.length; i++) {
+            aggOps.addElement(ops[i]);
+            aggFields.addElement(disambiguateName(afields[i]));
+        }
+        for (String gfield : gfields)
+            groupByFields.addElement(disambiguateName(gfield));
         hasAgg = true;
     }
 
-    /** Add an ORDER BY expression in the specified order on the specified field.  SimpleDb only supports
-        a single ORDER BY field.
+    /** Add an ORDER BY expression in the specified order on the specified field.  Each call adds
+        a less significant sort field than the previous ones, so tuples equal on the earlier fields
+        are ordered by this one.
         @param field the field to order by
         @param asc true if should be ordered in ascending order, false for descending order
      * @throws ParsingException 
     */
     public void addOrderBy(String field, boolean asc) throws ParsingException {
         field=disambiguateName(field);
-        oByField = field;
-        oByAsc = asc;
-        hasOrderBy = true;
+        oByFields.addElement(field);
+        oByAsc.addElement(asc);
+    }
+
+    /** Limit the result to its first limit tuples, as in a LIMIT clause.  Combined with an
+        ORDER BY this is planned as a {@link TopN}, which does not sort the whole input.
+        @param limit the maximum number of tuples, or -1 for no limit
+    */
+    public void setLimit(int limit) {
+        this.limit = limit;
+    }
+
+    /** @return the maximum number of tuples returned, or -1 if there is no LIMIT */
+    public int getLimit() {
+        return limit;
     }
 
     /** Given a name of a field, try to figure out what table it belongs to by looking
@@ -258,6 +289,16 @@ public class LogicalPlan {
 
     }
 
+    /** @return the position of the aggregate op(fname) among the aggregates
+        of the query, or -1 if it is not one of them */
+    private int aggregateIndex(String op, String fname) {
+        for (int i = 0; i < aggOps.size(); i++) {
+            if (aggOps.elementAt(i).equalsIgnoreCase(op) && aggFields.elementAt(i).equals(fname))
+                return i;
+        }
+        return -1;
+    }
+
     /** Convert the aggregate operator name s into an Aggregator.op operation.
      *  @throws ParsingException if s is not a valid operator name 
      */
@@ -268,6 +309,12 @@ public class LogicalPlan {
         if (s.equals("COUNT")) return Aggregator.Op.COUNT;
         if (s.equals("MIN")) return Aggregator.Op.MIN;
         if (s.equals("MAX")) return Aggregator.Op.MAX;
+        if (s.equals("COUNT_DISTINCT")) return Aggregator.Op.COUNT_DISTINCT;
+        if (s.equals("MEDIAN")) return Aggregator.Op.MEDIAN;
+        if (s.equals("P25")) return Aggregator.Op.P25;
+        if (s.equals("P75")) return Aggregator.Op.P75;
+        if (s.equals("P90")) return Aggregator.Op.P90;
+        if (s.equals("P99")) return Aggregator.Op.P99;
         throw new ParsingException("Unknown predicate " + s);
     }
 
@@ -336,7 +383,12 @@ public class LogicalPlan {
             } catch (NoSuchElementException e) {
                 throw new ParsingException("Unknown field " + lf.fieldQuantifiedName);
             }
-            subplanMap.put(lf.tableAlias, new Filter(p, subplan));
+            if (subplan instanceof SeqScan) {
+                // evaluated on the page bytes, before tuples are built
+                ((SeqScan) subplan).addPredicate(p);
+            } else {
+                subplanMap.put(lf.tableAlias, new Filter(p, subplan));
+            }
 
             TableStats s = statsMap.get(Database.getCatalog().getTableName(this.getTableId(lf.tableAlias)));
             
@@ -346,6 +398,28 @@ public class LogicalPlan {
             //s.addSelectivityFactor(estimateFilterSelectivity(lf,statsMap));
         }
 //        System.out.println("got out of the second while loop");
+
+        // only scan the fields that are used above the scans
+        HashSet<String> required = requiredFields();
+        if (required != null) {
+            for (LogicalScanNode table : tables) {
+                SeqScan ss = (SeqScan) subplanMap.get(table.alias);
+                TupleDesc td = ss.getTupleDesc();
+                ArrayList<Integer> fields = new ArrayList<Integer>();
+                for (int i = 0; i < td.numFields(); i++) {
+                    String name = td.getFieldName(i);
+                    name = name.substring(name.lastIndexOf('.') + 1);
+                    if (required.contains(table.alias + "." + name))
+                        fields.add(i);
+                }
+                if (fields.size() > 0 && fields.size() < td.numFields()) {
+                    int[] out = new int[fields.size()];
+                    for (int i = 0; i < out.length; i++)
+                        out[i] = fields.get(i);
+                    ss.setOutputFields(out);
+                }
+            }
+        }
         
         JoinOptimizer jo = new JoinOptimizer(this,joins);
 
@@ -420,7 +494,11 @@ public class LogicalPlan {
         for (int i = 0; i < selectList.size(); i++) {
             LogicalSelectListNode si = selectList.elementAt(i);
             if (si.aggOp != null) {
-                outFields.add(groupByField!=null?1:0);
+                int agg = aggregateIndex(si.aggOp, si.fname);
+                if (agg < 0) {
+                    throw new ParsingException("Aggregate " + si.aggOp + "(" + si.fname + ") in SELECT list is not computed");
+                }
+                outFields.add(groupByFields.size() + agg);
                 TupleDesc td = node.getTupleDesc();
 //                int  id;
                 try {
@@ -432,16 +510,17 @@ public class LogicalPlan {
                 outTypes.add(Type.INT_TYPE);  //the type of all aggregate functions is INT
 
             } else if (hasAgg) {
-                    if (groupByField == null) {
+                    int gb = groupByFields.indexOf(si.fname);
+                    if (gb < 0) {
                         throw new ParsingException("Field " + si.fname + " does not appear in GROUP BY list");
                     }
-                    outFields.add(0);
+                    outFields.add(gb);
                     TupleDesc td = node.getTupleDesc();
                     int  id;
                     try {
-                        id = td.fieldNameToIndex(groupByField);
+                        id = td.fieldNameToIndex(si.fname);
                     } catch (NoSuchElementException e) {
-                        throw new ParsingException("Unknown field " +  groupByField + " in GROUP BY statement");
+                        throw new ParsingException("Unknown field " +  si.fname + " in GROUP BY statement");
                     }
                     outTypes.add(td.getFieldType(id));
             } else if (si.fname.equals("null.*")) {
@@ -470,10 +549,16 @@ public class LogicalPlan {
             TupleDesc td = node.getTupleDesc();
             Aggregate aggNode;
             try {
-                aggNode = new Aggregate(node,
-                                        td.fieldNameToIndex(aggField),
-                                        groupByField == null?Aggregator.NO_GROUPING:td.fieldNameToIndex(groupByField),
-                                getAggOp(aggOp));
+                int[] gfields = new int[groupByFields.size()];
+                for (int i = 0; i < gfields.length; i++)
+                    gfields[i] = td.fieldNameToIndex(groupByFields.elementAt(i));
+                int[] afields = new int[aggFields.size()];
+                Aggregator.Op[] aops = new Aggregator.Op[aggOps.size()];
+                for (int i = 0; i < afields.length; i++) {
+                    afields[i] = td.fieldNameToIndex(aggFields.elementAt(i));
+                    aops[i] = getAggOp(aggOps.elementAt(i));
+                }
+                aggNode = new Aggregate(node, gfields, afields, aops);
             } catch (NoSuchElementException e) {
                 throw new simpledb.ParsingException(e);
             } catch (IllegalArgumentException e) {
@@ -482,13 +567,59 @@ public class LogicalPlan {
             node = aggNode;
         }
 
-        if (hasOrderBy) {
-            node = new OrderBy(node.getTupleDesc().fieldNameToIndex(oByField), oByAsc, node);
+        if (oByFields.size() > 0) {
+            int[] ofields = new int[oByFields.size()];
+            boolean[] asc = new boolean[ofields.length];
+            for (int i = 0; i < ofields.length; i++) {
+                ofields[i] = node.getTupleDesc().fieldNameToIndex(oByFields.elementAt(i));
+                asc[i] = oByAsc.elementAt(i);
+            }
+            if (limit >= 0)
+                node = new TopN(ofields, asc, limit, node);
+            else
+                node = new OrderBy(ofields, asc, node);
+        } else if (limit >= 0) {
+            node = new Limit(limit, node);
         }
 
         return new Project(outFields, outTypes, node);
     }
 
+    /**
+     * @return the qualified names (alias.field) of the fields of the scanned
+     *         tables that the select list, joins, grouping, aggregates or
+     *         ORDER BY use, or null if all fields are needed (SELECT *).
+     *         Fields only used by filters are not included, since filters are
+     *         evaluated inside the scans. Also null if some name is not
+     *         qualified with the alias of a scanned table, so that a field
+     *         is never pruned because of how it was named.
+     */
+    private HashSet<String> requiredFields() {
+        HashSet<String> required = new HashSet<String>();
+        for (LogicalSelectListNode si : selectList) {
+            if (si.fname.endsWith(".*"))
+                return null;
+            required.add(si.fname);
+        }
+        for (LogicalJoinNode lj : joins) {
+            required.add(lj.f1QuantifiedName);
+            // the field of a subquery is pruned when the subquery is planned
+            if (!(lj instanceof LogicalSubplanJoinNode))
+                required.add(lj.f2QuantifiedName);
+        }
+        required.addAll(groupByFields);
+        required.addAll(aggFields);
+        required.addAll(oByFields);
+        HashSet<String> aliases = new HashSet<String>();
+        for (LogicalScanNode table : tables)
+            aliases.add(table.alias);
+        for (String name : required) {
+            if (name.indexOf('.') < 0 || !aliases.contains(name.substring(0, name.lastIndexOf('.'))))
+                return null;
+        }
+        return required;
+    }
+
     public static void main(String argv[]) {
         // construct a 3-column table schema
         Type types[] = new Type[]{ Type.INT_TYPE, Type.INT_TYPE, Type.INT_TYPE };
@@ -0,0 +1,81 @@
+package simpledb;
+
+/**
+ * MemoryManager hands out the working memory that query operators use for
+ * their in-memory state (hash tables, sort buffers, and so on).
+ * <p>
+ * Operators reserve memory before they grow their state and release it when
+ * they are closed. When a reservation is refused, the operator is expected to
+ * fall back to an out-of-core strategy (e.g. spilling to a {@link SpillFile})
+ * instead of growing without bound.
+ * <p>
+ * Sizes are estimates; see {@link #estimateSize(TupleDesc)}.
+ */
+public class MemoryManager {
+
+    /** Default number of bytes available to the operators of running queries. */
+    public static final long DEFAULT_BYTES = 16 * 1024 * 1024;
+
+    /** Rough per-tuple and per-field cost of the Java objects holding a tuple. */
+    static final int TUPLE_OVERHEAD = 32;
+    static final int FIELD_OVERHEAD = 16;
+
+    private final long capacity;
+    private long used;
+
+    /**
+     * Creates a MemoryManager that hands out at most capacity bytes at a time.
+     *
+     * @param capacity maximum number of bytes reserved at any one time
+     */
+    public MemoryManager(long capacity) {
+        this.capacity = capacity;
+        this.used = 0;
+    }
+
+    /**
+     * Try to reserve bytes of working memory.
+     *
+     * @return true if the reservation was granted, false if it would exceed
+     *         the capacity (nothing is reserved in that case)
+     */
+    public synchronized boolean reserve(long bytes) {
+        if (this.used + bytes > this.capacity)
+            return false;
+        this.used += bytes;
+        return true;
+    }
+
+    /**
+     * Reserve bytes of working memory even if this exceeds the capacity. Used
+     * when an operator has no cheaper way left to make progress.
+     */
+    public synchronized void forceReserve(long bytes) {
+        this.used += bytes;
+    }
+
+    /** Give back bytes previously handed out by {@link #reserve}. */
+    public synchronized void release(long bytes) {
+        this.used -= bytes;
+        if (this.used < 0)
+            this.used = 0;
+    }
+
+    /** @return the number of bytes that can still be reserved */
+    public synchronized long available() {
+        return Math.max(0, this.capacity - this.used);
+    }
+
+    /** @return the total number of bytes this manager hands out */
+    public long getCapacity() {
+        return this.capacity;
+    }
+
+    /**
+     * @return an estimate of the heap space used by one in-memory tuple of
+     *         the given schema
+     */
+    public static long estimateSize(TupleDesc td) {
+        return td.getSize() + TUPLE_OVERHEAD + FIELD_OVERHEAD * td.numFields();
+    }
+}
@@ -3,7 +3,23 @@ package simpledb;
 import java.util.*;
 
 /**
- * OrderBy is an operator that implements a relational ORDER BY.
+ * OrderBy is an operator that implements a relational ORDER BY on one or
+ * more fields, each ascending or descending.
+ * <p>
+ * Tuples are sorted in memory as long as the {@link MemoryManager} grants
+ * room for them. Otherwise OrderBy runs an external merge sort: whenever a
+ * reservation is refused the tuples read so far are sorted and written to a
+ * {@link SpillFile} as a run, and once the child is exhausted the runs (and
+ * the last, in-memory one) are merged with a heap while fetchNext streams
+ * the output. At most MAX_MERGE_WIDTH runs are merged at once; more runs are
+ * first merged into longer ones. Tuples that went through a run lose their
+ * RecordId.
+ * <p>
+ * Tuples are compared with a {@link TupleComparator} specialized on the
+ * types of the sort fields. A sort on a single int field sorts normalized
+ * long keys instead of tuples. Inputs of at least
+ * {@link #getParallelThreshold} tuples are sorted on all cores with
+ * Arrays.parallelSort.
  */
 public class OrderBy extends Operator {
 
@@ -11,10 +27,22 @@ public class OrderBy extends Operator {
     private DbIterator child;
     private TupleDesc td;
     private ArrayList<Tuple> childTups = new ArrayList<Tuple>();
-    private int orderByField;
-    private String orderByFieldName;
+    private int[] orderByFields;
+    private boolean[] asc;
+    private TupleComparator cmp;
     private Iterator<Tuple> it;
-    private boolean asc;
+
+    // the maximum number of runs merged in one pass
+    static final int MAX_MERGE_WIDTH = 64;
+
+    /** Default number of tuples from which a sort runs in parallel */
+    public static final int DEFAULT_PARALLEL_THRESHOLD = 1 << 16;
+    private static volatile int parallelThreshold = DEFAULT_PARALLEL_THRESHOLD;
+
+    private long reserved; // bytes of the MemoryManager held by childTups
+    private ArrayList<SpillFile> runs = new ArrayList<SpillFile>();
+    private DbIterator lastRun; // childTups, when merging with spilled runs
+    private RunMerger merger;
 
     /**
      * Creates a new OrderBy node over the tuples from the iterator.
@@ -27,28 +55,74 @@ public class OrderBy extends Operator {
      *            the tuples to sort.
      */
     public OrderBy(int orderbyField, boolean asc, DbIterator child) {
+        this(new int[] { orderbyField }, new boolean[] { asc }, child);
+    }
+
+    /**
+     * Creates a new OrderBy node that sorts on several fields: tuples are
+     * ordered by the first field, tuples equal on it by the second, and so
+     * on.
+     * 
+     * @param orderbyFields
+     *            the fields to which the sort is applied, most significant
+     *            first.
+     * @param asc
+     *            for each field, true if its sort order is ascending.
+     * @param child
+     *            the tuples to sort.
+     */
+    public OrderBy(int[] orderbyFields, boolean[] asc, DbIterator child) {
         this.child = child;
         td = child.getTupleDesc();
-        this.orderByField = orderbyField;
-        this.orderByFieldName = td.getFieldName(orderbyField);
+        this.orderByFields = orderbyFields;
         this.asc = asc;
+        this.cmp = new TupleComparator(orderbyFields, asc, td);
     }
     
+    /** @return true if the sort on the first field is ascending */
     public boolean isASC()
     {
-	return this.asc;
+	return this.asc[0];
     }
     
+    /** @return the first field of the sort */
     public int getOrderByField()
     {
-        return this.orderByField;
+        return this.orderByFields[0];
     }
     
+    /** @return the name of the first field of the sort */
     public String getOrderFieldName()
     {
-	return this.orderByFieldName;
+	return td.getFieldName(this.orderByFields[0]);
+    }
+
+    /** @return the fields of the sort, most significant first */
+    public int[] getOrderByFields()
+    {
+        return this.orderByFields;
+    }
+
+    /** @return for each field of the sort, true if it is ascending */
+    public boolean[] getAscending()
+    {
+        return this.asc;
     }
     
+    /**
+     * Set the number of tuples from which OrderBy sorts (runs of) its input
+     * with several threads; smaller inputs are sorted on the calling thread,
+     * where starting the parallel sort would cost more than it saves.
+     */
+    public static void setParallelThreshold(int tuples) {
+        parallelThreshold = tuples;
+    }
+
+    /** @return the number of tuples from which sorts run in parallel */
+    public static int getParallelThreshold() {
+        return parallelThreshold;
+    }
+
     public TupleDesc getTupleDesc() {
         return td;
     }
@@ -56,21 +130,155 @@ public class OrderBy extends Operator {
     public void open() throws DbException, NoSuchElementException,
             TransactionAbortedException {
         child.open();
-        // load all the tuples in a collection, and sort it
-        while (child.hasNext())
+        // load all the tuples in a collection, and sort it, spilling sorted
+        // runs whenever we run out of memory
+        discard();
+        MemoryManager mm = Database.getMemoryManager();
+        long tupleSize = MemoryManager.estimateSize(td);
+        while (child.hasNext()) {
             childTups.add((Tuple) child.next());
-        Collections.sort(childTups, new TupleComparator(orderByField, asc));
-        it = childTups.iterator();
+            boolean fits = mm.reserve(tupleSize);
+            if (!fits)
+                mm.forceReserve(tupleSize);
+            reserved += tupleSize;
+            if (!fits)
+                spillRun();
+        }
+        sort(childTups);
+        if (runs.isEmpty()) {
+            it = childTups.iterator();
+        } else {
+            while (runs.size() >= MAX_MERGE_WIDTH)
+                mergeRuns();
+            lastRun = new TupleIterator(td, childTups);
+            startMerge();
+        }
         super.open();
     }
 
+    /**
+     * Sort tuples in place, keeping equal tuples in their order. With a
+     * single int sort field, each tuple is represented by a long holding the
+     * (sign-preserving, and for descending sorts inverted) key in its high
+     * half and the tuple's position in its low half, so that sorting the
+     * longs as primitives sorts the tuples without calling a comparator.
+     * From getParallelThreshold() tuples on, the keys or the tuples are
+     * sorted with Arrays.parallelSort, which is stable as well.
+     */
+    private void sort(ArrayList<Tuple> tuples) {
+        int n = tuples.size();
+        boolean parallel = n >= parallelThreshold;
+        if (orderByFields.length != 1
+                || td.getFieldType(orderByFields[0]) != Type.INT_TYPE) {
+            if (!parallel) {
+                Collections.sort(tuples, cmp);
+                return;
+            }
+            Tuple[] sorted = tuples.toArray(new Tuple[n]);
+            Arrays.parallelSort(sorted, cmp);
+            for (int i = 0; i < n; i++)
+                tuples.set(i, sorted[i]);
+            return;
+        }
+        long[] keys = new long[n];
+        for (int i = 0; i < n; i++) {
+            int key = ((IntField) tuples.get(i).getField(orderByFields[0])).getValue();
+            if (!asc[0])
+                key = ~key;
+            keys[i] = ((long) key << 32) | i;
+        }
+        if (parallel)
+            Arrays.parallelSort(keys);
+        else
+            Arrays.sort(keys);
+        Tuple[] sorted = new Tuple[n];
+        for (int i = 0; i < n; i++)
+            sorted[i] = tuples.get((int) keys[i]);
+        for (int i = 0; i < n; i++)
+            tuples.set(i, sorted[i]);
+    }
+
+    /** Sort childTups and write them out as a new run. */
+    private void spillRun() throws DbException {
+        sort(childTups);
+        SpillFile run = new SpillFile(td);
+        for (Tuple t : childTups)
+            run.add(t);
+        runs.add(run);
+        childTups.clear();
+        Database.getMemoryManager().release(reserved);
+        reserved = 0;
+    }
+
+    /** Merge the first MAX_MERGE_WIDTH runs into one run at the end. */
+    private void mergeRuns() throws DbException,
+            TransactionAbortedException {
+        ArrayList<DbIterator> inputs = new ArrayList<DbIterator>();
+        for (int i = 0; i < MAX_MERGE_WIDTH; i++) {
+            SpillFile run = runs.remove(0);
+            run.open();
+            inputs.add(run);
+        }
+        SpillFile merged = new SpillFile(td);
+        RunMerger m = new RunMerger(inputs, cmp);
+        while (m.hasNext())
+            merged.add(m.next());
+        for (DbIterator run : inputs)
+            ((SpillFile) run).delete();
+        runs.add(merged);
+    }
+
+    /** (Re)start merging the spilled runs and the last run from their beginning. */
+    private void startMerge() throws DbException, TransactionAbortedException {
+        ArrayList<DbIterator> inputs = new ArrayList<DbIterator>();
+        for (SpillFile run : runs) {
+            run.open();
+            inputs.add(run);
+        }
+        lastRun.open();
+        inputs.add(lastRun);
+        merger = new RunMerger(inputs, cmp);
+    }
+
     public void close() {
         super.close();
+        try {
+            discard();
+        } catch (DbException e) {
+            throw new RuntimeException(e);
+        }
+    }
+
+    /** Drop the sorted tuples and runs of the last open. */
+    private void discard() throws DbException {
         it = null;
+        merger = null;
+        lastRun = null;
+        childTups.clear();
+        if (reserved > 0) {
+            Database.getMemoryManager().release(reserved);
+            reserved = 0;
+        }
+        // delete every run, then report the first failure
+        DbException failure = null;
+        for (SpillFile run : runs) {
+            try {
+                run.delete();
+            } catch (DbException e) {
+                if (failure == null)
+                    failure = e;
+            }
+        }
+        runs.clear();
+        if (failure != null)
+            throw failure;
     }
 
     public void rewind() throws DbException, TransactionAbortedException {
-        it = childTups.iterator();
+        if (lastRun != null)
+            startMerge();
+        else
+            it = childTups.iterator();
     }
 
     /**
@@ -82,7 +290,9 @@ public class OrderBy extends Operator {
      */
     protected Tuple fetchNext() throws NoSuchElementException,
             TransactionAbortedException, DbException {
-        if (it != null && it.hasNext()) {
+        if (merger != null) {
+            return merger.hasNext() ? merger.next() : null;
+        } else if (it != null && it.hasNext()) {
             return it.next();
         } else
             return null;
@@ -100,24 +310,53 @@ public class OrderBy extends Operator {
 
 }
 
-class TupleComparator implements Comparator<Tuple> {
-    int field;
-    boolean asc;
+/**
+ * Merges sorted inputs into one sorted stream, keeping the head of every
+ * input in a heap.
+ */
+class RunMerger {
+    private PriorityQueue<RunHead> heads;
 
-    public TupleComparator(int field, boolean asc) {
-        this.field = field;
-        this.asc = asc;
+    /** The current tuple of one input. */
+    static class RunHead {
+        Tuple tuple;
+        DbIterator input;
+
+        RunHead(Tuple tuple, DbIterator input) {
+            this.tuple = tuple;
+            this.input = input;
+        }
     }
 
-    public int compare(Tuple o1, Tuple o2) {
-        Field t1 = (o1).getField(field);
-        Field t2 = (o2).getField(field);
-        if (t1.compare(Predicate.Op.EQUALS, t2))
-            return 0;
-        if (t1.compare(Predicate.Op.GREATER_THAN, t2))
-            return asc ? 1 : -1;
-        else
-            return asc ? -1 : 1;
+    /**
+     * @param inputs
+     *            opened iterators, each sorted by cmp
+     */
+    RunMerger(List<DbIterator> inputs, final Comparator<Tuple> cmp)
+            throws DbException, TransactionAbortedException {
+        heads = new PriorityQueue<RunHead>(Math.max(1, inputs.size()),
+                new Comparator<RunHead>() {
+                    public int compare(RunHead a, RunHead b) {
+                        return cmp.compare(a.tuple, b.tuple);
+                    }
+                });
+        for (DbIterator input : inputs) {
+            if (input.hasNext())
+                heads.add(new RunHead(input.next(), input));
+        }
+    }
+
+    boolean hasNext() {
+        return !heads.isEmpty();
+    }
+
+    Tuple next() throws DbException, TransactionAbortedException {
+        RunHead head = heads.poll();
+        Tuple t = head.tuple;
+        if (head.input.hasNext()) {
+            head.tuple = head.input.next();
+            heads.add(head);
+        }
+        return t;
     }
-    
 }
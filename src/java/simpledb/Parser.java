@@ -4,6 +4,8 @@ import Zql.*;
 import java.io.*;
 import java.lang.reflect.InvocationTargetException;
 import java.util.*;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
 
 import jline.ArgumentCompletor;
 import jline.ConsoleReader;
@@ -12,6 +14,120 @@ import jline.SimpleCompletor;
 public class Parser {
     static boolean explain = false;
 
+    static {
+        // approximate aggregates; Zql treats registered functions as aggregates
+        ZUtils.addCustomFunction("approx_count_distinct", 1);
+        ZUtils.addCustomFunction("approx_median", 1);
+        ZUtils.addCustomFunction("approx_percentile", 2);
+    }
+
+    /**
+     * @return the name of the aggregate computed by the select item si, as
+     *         understood by {@link LogicalPlan#getAggOp}:
+     *         APPROX_COUNT_DISTINCT(f) is COUNT_DISTINCT, APPROX_MEDIAN(f) is
+     *         MEDIAN and APPROX_PERCENTILE(f, p) is Pp
+     */
+    static String getAggregateName(ZSelectItem si) throws simpledb.ParsingException {
+        String agg = si.getAggregate().toUpperCase();
+        if (agg.equals("APPROX_COUNT_DISTINCT"))
+            return "COUNT_DISTINCT";
+        if (agg.equals("APPROX_MEDIAN"))
+            return "MEDIAN";
+        if (agg.equals("APPROX_PERCENTILE")) {
+            ZExp p = ((ZExpression) si.getExpression()).getOperand(1);
+            if (!(p instanceof ZConstant)
+                    || ((ZConstant) p).getType() != ZConstant.NUMBER) {
+                throw new simpledb.ParsingException(
+                        "APPROX_PERCENTILE expects a constant percentile");
+            }
+            String percentile = ((ZConstant) p).getValue();
+            if (percentile.equals("50"))
+                return "MEDIAN";
+            if (percentile.equals("25") || percentile.equals("75")
+                    || percentile.equals("90") || percentile.equals("99"))
+                return "P" + percentile;
+            throw new simpledb.ParsingException("Percentile " + percentile
+                    + " not supported; use 25, 50, 75, 90 or 99.");
+        }
+        return agg;
+    }
+
+    // Zql has no LIMIT clause, so a trailing "LIMIT n" is cut off a statement
+    // before Zql parses it
+    private static final Pattern LIMIT_CLAUSE = Pattern.compile(
+            "\\s+LIMIT\\s+(\\d+)\\s*(;?)\\s*$", Pattern.CASE_INSENSITIVE);
+
+    /**
+     * @return the n of a trailing "LIMIT n" clause of the statement s, or -1
+     *         if s has none
+     */
+    static int getLimit(String s) throws simpledb.ParsingException {
+        Matcher m = LIMIT_CLAUSE.matcher(s);
+        if (!m.find())
+            return -1;
+        try {
+            return Integer.parseInt(m.group(1));
+        } catch (NumberFormatException e) {
+            throw new simpledb.ParsingException("LIMIT " + m.group(1) + " is too large");
+        }
+    }
+
+    /** @return the statement s without its trailing LIMIT clause, if any */
+    static String stripLimit(String s) {
+        Matcher m = LIMIT_CLAUSE.matcher(s);
+        if (!m.find())
+            return s;
+        return s.substring(0, m.start()) + m.group(2);
+    }
+
+    // nor does it have locking clauses: a trailing NOWAIT, SKIP LOCKED or
+    // WAIT n (milliseconds) comes after any LIMIT and is cut off first
+    private static final Pattern LOCK_CLAUSE = Pattern.compile(
+            "\\s+(NOWAIT|SKIP\\s+LOCKED|WAIT\\s+(\\d+))\\s*(;?)\\s*$",
+            Pattern.CASE_INSENSITIVE);
+
+    /**
+     * @return the trailing locking clause of the statement s as "NOWAIT",
+     *         "SKIP LOCKED" or "WAIT n", or null if s has none
+     */
+    static String getLockClause(String s) {
+        Matcher m = LOCK_CLAUSE.matcher(s);
+        if (!m.find())
+            return null;
+        if (m.group(2) != null)
+            return "WAIT " + m.group(2);
+        return m.group(1).toUpperCase().replaceAll("\\s+", " ");
+    }
+
+    /** @return the statement s without its trailing locking clause, if any */
+    static String stripLockClause(String s) {
+        Matcher m = LOCK_CLAUSE.matcher(s);
+        if (!m.find())
+            return s;
+        return s.substring(0, m.start()) + m.group(3);
+    }
+
+    /**
+     * Make the statement about to run in transaction tid wait for locks as
+     * its locking clause says. SKIP LOCKED in a DELETE locks the tuples it
+     * scans for writing, so that concurrent DELETEs take disjoint tuples.
+     */
+    private static void applyLockClause(String clause, TransactionId tid,
+            boolean delete) throws simpledb.ParsingException {
+        BufferPool bp = Database.getBufferPool();
+        if (clause.equals("NOWAIT")) {
+            bp.setLockWait(tid, LockManager.NO_WAIT);
+        } else if (clause.equals("SKIP LOCKED")) {
+            bp.setSkipLocked(tid, delete ? Permissions.READ_WRITE : Permissions.READ_ONLY);
+        } else {
+            try {
+                bp.setLockWait(tid, Long.parseLong(clause.substring("WAIT ".length())));
+            } catch (NumberFormatException e) {
+                throw new simpledb.ParsingException(clause + " is too long");
+            }
+        }
+    }
+
     public static Predicate.Op getOp(String s) throws simpledb.ParsingException {
         if (s.equals("="))
             return Predicate.Op.EQUALS;
@@ -182,22 +298,19 @@ public class Parser {
 
         // now look for group by fields
         ZGroupBy gby = q.getGroupBy();
-        String groupByField = null;
+        Vector<String> groupByFields = new Vector<String>();
         if (gby != null) {
             @SuppressWarnings("unchecked")
             Vector<ZExp> gbs = gby.getGroupBy();
-            if (gbs.size() > 1) {
-                throw new simpledb.ParsingException(
-                        "At most one grouping field expression supported.");
-            }
-            if (gbs.size() == 1) {
-                ZExp gbe = gbs.elementAt(0);
+            for (int i = 0; i < gbs.size(); i++) {
+                ZExp gbe = gbs.elementAt(i);
                 if (!(gbe instanceof ZConstant)) {
                     throw new simpledb.ParsingException(
                             "Complex grouping expressions (" + gbe
                                     + ") not supported.");
                 }
-                groupByField = ((ZConstant) gbe).getValue();
+                String groupByField = ((ZConstant) gbe).getValue();
+                groupByFields.addElement(groupByField);
                 System.out.println("GROUP BY FIELD : " + groupByField);
             }
 
@@ -207,8 +320,8 @@ public class Parser {
         // validity
         @SuppressWarnings("unchecked")
         Vector<ZSelectItem> selectList = q.getSelect();
-        String aggField = null;
-        String aggFun = null;
+        Vector<String> aggFields = new Vector<String>();
+        Vector<String> aggFuns = new Vector<String>();
 
         for (int i = 0; i < selectList.size(); i++) {
             ZSelectItem si = selectList.elementAt(i);
@@ -218,20 +331,18 @@ public class Parser {
                         "Expressions in SELECT list are not supported.");
             }
             if (si.getAggregate() != null) {
-                if (aggField != null) {
-                    throw new simpledb.ParsingException(
-                            "Aggregates over multiple fields not supported.");
-                }
-                aggField = ((ZConstant) ((ZExpression) si.getExpression())
+                String aggField = ((ZConstant) ((ZExpression) si.getExpression())
                         .getOperand(0)).getValue();
-                aggFun = si.getAggregate();
+                String aggFun = getAggregateName(si);
                 System.out.println("Aggregate field is " + aggField
                         + ", agg fun is : " + aggFun);
+                aggFields.addElement(aggField);
+                aggFuns.addElement(aggFun);
                 lp.addProjectField(aggField, aggFun);
             } else {
-                if (groupByField != null
-                        && !(groupByField.equals(si.getTable() + "."
-                                + si.getColumn()) || groupByField.equals(si
+                if (groupByFields.size() > 0
+                        && !(groupByFields.contains(si.getTable() + "."
+                                + si.getColumn()) || groupByFields.contains(si
                                 .getColumn()))) {
                     throw new simpledb.ParsingException("Non-aggregate field "
                             + si.getColumn()
@@ -241,30 +352,29 @@ public class Parser {
             }
         }
 
-        if (groupByField != null && aggFun == null) {
+        if (groupByFields.size() > 0 && aggFuns.size() == 0) {
             throw new simpledb.ParsingException("GROUP BY without aggregation.");
         }
 
-        if (aggFun != null) {
-            lp.addAggregate(aggFun, aggField, groupByField);
+        if (aggFuns.size() > 0) {
+            lp.addAggregate(aggFuns.toArray(new String[aggFuns.size()]),
+                    aggFields.toArray(new String[aggFields.size()]),
+                    groupByFields.toArray(new String[groupByFields.size()]));
         }
         // sort the data
 
         if (q.getOrderBy() != null) {
             @SuppressWarnings("unchecked")
             Vector<ZOrderBy> obys = q.getOrderBy();
-            if (obys.size() > 1) {
-                throw new simpledb.ParsingException(
-                        "Multi-attribute ORDER BY is not supported.");
-            }
-            ZOrderBy oby = obys.elementAt(0);
-            if (!(oby.getExpression() instanceof ZConstant)) {
-                throw new simpledb.ParsingException(
-                        "Complex ORDER BY's are not supported");
-            }
-            ZConstant f = (ZConstant) oby.getExpression();
+            for (ZOrderBy oby : obys) {
+                if (!(oby.getExpression() instanceof ZConstant)) {
+                    throw new simpledb.ParsingException(
+                            "Complex ORDER BY's are not supported");
+                }
+                ZConstant f = (ZConstant) oby.getExpression();
 
-            lp.addOrderBy(f.getValue(), oby.getAscOrder());
+                lp.addOrderBy(f.getValue(), oby.getAscOrder());
+            }
 
         }
         return lp;
@@ -276,10 +386,24 @@ public class Parser {
     public Query handleQueryStatement(ZQuery s, TransactionId tId)
             throws TransactionAbortedException, DbException, IOException,
             simpledb.ParsingException, Zql.ParseException {
+        return handleQueryStatement(s, tId, -1);
+    }
+
+    /**
+     * Like {@link #handleQueryStatement(ZQuery, TransactionId)}, for a query
+     * that had a LIMIT clause
+     * 
+     * @param limit
+     *            the maximum number of tuples returned, or -1 for no limit
+     */
+    public Query handleQueryStatement(ZQuery s, TransactionId tId, int limit)
+            throws TransactionAbortedException, DbException, IOException,
+            simpledb.ParsingException, Zql.ParseException {
         Query query = new Query(tId);
 
 //        System.out.println("at handleQueryStatement");
         LogicalPlan lp = parseQueryLogicalPlan(tId, s);
+        lp.setLimit(limit);
 //        System.out.println("logical plan done");
         DbIterator physicalPlan = lp.physicalPlan(tId,
                 TableStats.getStatsMap(), explain);
@@ -475,12 +599,15 @@ public class Parser {
 
     public LogicalPlan generateLogicalPlan(TransactionId tid, String s)
             throws simpledb.ParsingException {
-        ByteArrayInputStream bis = new ByteArrayInputStream(s.getBytes());
+        s = stripLockClause(s);
+        int limit = getLimit(s);
+        ByteArrayInputStream bis = new ByteArrayInputStream(stripLimit(s).getBytes());
         ZqlParser p = new ZqlParser(bis);
         try {
             ZStatement stmt = p.readStatement();
             if (stmt instanceof ZQuery) {
                 LogicalPlan lp = parseQueryLogicalPlan(tid, (ZQuery) stmt);
+                lp.setLimit(limit);
                 return lp;
             }
         } catch (Zql.ParseException e) {
@@ -511,16 +638,62 @@ public class Parser {
         }
     }
 
+    /**
+     * Read one statement from is: everything up to and including the first
+     * ';' that is not inside a quoted string, or up to the end of the stream.
+     * The rest of the stream is left unread, so that the trailing clauses of
+     * a statement are looked for in that statement only.
+     *
+     * @return the statement, or null if nothing but whitespace was left in is
+     */
+    static String readStatement(InputStream is) throws IOException {
+        ByteArrayOutputStream statement = new ByteArrayOutputStream();
+        int quote = 0;
+        for (int b; (b = is.read()) >= 0;) {
+            statement.write(b);
+            if (quote != 0) {
+                if (b == quote)
+                    quote = 0;
+            } else if (b == '\'' || b == '"') {
+                quote = b;
+            } else if (b == ';') {
+                break;
+            }
+        }
+        String text = statement.toString("UTF-8");
+        return text.trim().length() == 0 ? null : text;
+    }
+
+    /**
+     * Process the next statement of is (see {@link #readStatement}), leaving
+     * the statements after it unread.
+     */
     public void processNextStatement(InputStream is) {
         try {
-            ZqlParser p = new ZqlParser(is);
+            String text = readStatement(is);
+            if (text == null)
+                return;
+            String lockClause = getLockClause(text);
+            text = stripLockClause(text);
+            int limit = getLimit(text);
+            ZqlParser p = new ZqlParser(new ByteArrayInputStream(
+                    stripLimit(text).getBytes("UTF-8")));
             ZStatement s = p.readStatement();
+            if (limit >= 0 && !(s instanceof ZQuery))
+                throw new simpledb.ParsingException(
+                        "LIMIT is only supported on SELECT statements.");
+            if (lockClause != null && !(s instanceof ZQuery || s instanceof ZDelete
+                    || s instanceof ZInsert))
+                throw new simpledb.ParsingException(
+                        lockClause + " is only supported on SELECT, INSERT and DELETE statements.");
             Query query = null;
             if (s instanceof ZTransactStmt) {
                 handleTransactStatement((ZTransactStmt) s);
             } else {
                 if (!this.inUserTrans) {
-                    curtrans = new Transaction();
+                    // a single SELECT reads a snapshot instead of locking,
+                    // unless it asks for a way of waiting for locks
+                    curtrans = new Transaction(s instanceof ZQuery && lockClause == null);
                     curtrans.start();
                     System.out.println("Started a new transaction tid = "
                             + curtrans.getId().getId());
@@ -535,14 +708,25 @@ public class Parser {
                     } else if (s instanceof ZQuery) {
 //                        System.out.println("handlingQueryStatement");
                         query = handleQueryStatement((ZQuery) s,
-                                curtrans.getId());
+                                curtrans.getId(), limit);
                     } else {
                         System.out
                                 .println("Can't parse "
                                         + s
                                         + "\n -- parser only handles SQL transactions, insert, delete, and select statements");
                     }
-                    if (query != null) {
+                    if (query != null && lockClause != null) {
+                        BufferPool bp = Database.getBufferPool();
+                        TransactionId tid = curtrans.getId();
+                        long wait = bp.getLockWait(tid);
+                        applyLockClause(lockClause, tid, s instanceof ZDelete);
+                        try {
+                            query.execute();
+                        } finally {
+                            bp.setLockWait(tid, wait);
+                            bp.setSkipLocked(tid, null);
+                        }
+                    } else if (query != null) {
                         query.execute();
                     }
 
@@ -591,7 +775,8 @@ public class Parser {
 
     // Basic SQL completions
     public static final String[] SQL_COMMANDS = { "select", "from", "where",
-            "group by", "max(", "min(", "avg(", "count", "rollback", "commit",
+            "group by", "max(", "min(", "avg(", "count", "approx_count_distinct(",
+            "approx_median(", "approx_percentile(", "order by", "limit", "rollback", "commit",
             "insert", "delete", "values", "into" };
 
     public static void main(String argv[]) throws IOException {
@@ -646,7 +831,10 @@ public class Parser {
                 // curtrans = new Transaction();
                 // curtrans.start();
                 long startTime = System.currentTimeMillis();
-                processNextStatement(new FileInputStream(new File(queryFile)));
+                InputStream in = new BufferedInputStream(new FileInputStream(new File(queryFile)));
+                for (String s; (s = readStatement(in)) != null;)
+                    processNextStatement(s);
+                in.close();
                 long time = System.currentTimeMillis() - startTime;
                 System.out.printf("----------------\n%.2f seconds\n\n",
                         ((double) time / 1000.0));
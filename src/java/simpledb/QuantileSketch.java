@@ -0,0 +1,144 @@
+package simpledb;
+
+import java.io.Serializable;
+import java.util.Arrays;
+
+/**
+ * A KLL quantile sketch over ints, used for the approximate percentile
+ * aggregates (APPROX_MEDIAN, APPROX_PERCENTILE).
+ * <p>
+ * Values are kept in a stack of compactors: level h holds items that each
+ * stand for 2^h input values. When a level reaches its capacity it is sorted
+ * and every other item is promoted to the level above, halving its size.
+ * Capacities shrink geometrically from the top level down, so the sketch
+ * holds O(K) items in total while the rank error stays around 1/K relative
+ * to the number of values added.
+ * <p>
+ * Sketches built over disjoint parts of the input can be combined with
+ * {@link #merge}.
+ */
+public class QuantileSketch implements Serializable {
+
+    private static final long serialVersionUID = 1L;
+
+    static final int K = 200;
+    static final int MIN_CAPACITY = 8;
+    /** Rough size in bytes of a full sketch, whose levels hold about 3K items. */
+    static final int MAX_SIZE_IN_BYTES = 3 * K * 4;
+
+    private int[][] levels;
+    private int[] sizes;
+    private int numLevels;
+    private long count;
+    private boolean odd; // alternates which half of a level is promoted
+
+    /** Creates an empty sketch. */
+    public QuantileSketch() {
+        this.levels = new int[4][];
+        this.sizes = new int[4];
+        this.numLevels = 0;
+        this.count = 0;
+        this.odd = false;
+        ensureLevel(0);
+    }
+
+    private void ensureLevel(int h) {
+        while (this.numLevels <= h) {
+            if (this.numLevels == this.levels.length) {
+                this.levels = Arrays.copyOf(this.levels, this.levels.length * 2);
+                this.sizes = Arrays.copyOf(this.sizes, this.sizes.length * 2);
+            }
+            this.levels[this.numLevels] = new int[MIN_CAPACITY];
+            this.sizes[this.numLevels] = 0;
+            this.numLevels++;
+        }
+    }
+
+    private int capacity(int h) {
+        int depth = this.numLevels - 1 - h;
+        return Math.max(MIN_CAPACITY, (int) Math.ceil(K * Math.pow(2.0 / 3.0, depth)));
+    }
+
+    private void append(int h, int value) {
+        ensureLevel(h);
+        if (this.sizes[h] == this.levels[h].length)
+            this.levels[h] = Arrays.copyOf(this.levels[h], this.levels[h].length * 2);
+        this.levels[h][this.sizes[h]++] = value;
+    }
+
+    /** Add value to the sketch. */
+    public void add(int value) {
+        append(0, value);
+        this.count++;
+        if (this.sizes[0] >= capacity(0))
+            compress();
+    }
+
+    /** Add all values of other to this sketch. */
+    public void merge(QuantileSketch other) {
+        for (int h = 0; h < other.numLevels; h++) {
+            for (int i = 0; i < other.sizes[h]; i++)
+                append(h, other.levels[h][i]);
+        }
+        this.count += other.count;
+        compress();
+    }
+
+    /** Compact every level that is at or over its capacity. */
+    private void compress() {
+        for (int h = 0; h < this.numLevels; h++) {
+            if (this.sizes[h] >= capacity(h))
+                compact(h);
+        }
+    }
+
+    private void compact(int h) {
+        int[] items = this.levels[h];
+        int size = this.sizes[h];
+        Arrays.sort(items, 0, size);
+        // with an odd number of items the smallest one stays behind, so that
+        // the total weight of the sketch is preserved
+        int first = size % 2;
+        int start = first + (this.odd ? 1 : 0);
+        this.odd = !this.odd;
+        for (int i = start; i < size; i += 2)
+            append(h + 1, items[i]);
+        this.sizes[h] = first;
+    }
+
+    /** @return the number of values added to the sketch */
+    public long count() {
+        return this.count;
+    }
+
+    /**
+     * @return an approximation of the value whose rank is q times the number
+     *         of values added
+     * @throws IllegalStateException if the sketch is empty
+     */
+    public int quantile(double q) {
+        if (this.count == 0)
+            throw new IllegalStateException("quantile of an empty sketch");
+        int total = 0;
+        for (int h = 0; h < this.numLevels; h++)
+            total += this.sizes[h];
+        // sort (value, level) pairs by value; the level gives the weight
+        long[] items = new long[total];
+        long weight = 0;
+        int n = 0;
+        for (int h = 0; h < this.numLevels; h++) {
+            for (int i = 0; i < this.sizes[h]; i++)
+                items[n++] = ((long) this.levels[h][i] << 8) | h;
+            weight += (long) this.sizes[h] << h;
+        }
+        Arrays.sort(items);
+        double target = q * weight;
+        long seen = 0;
+        for (int i = 0; i < total; i++) {
+            seen += 1L << (items[i] & 0xff);
+            if (seen >= target)
+                return (int) (items[i] >> 8);
+        }
+        return (int) (items[total - 1] >> 8);
+    }
+}
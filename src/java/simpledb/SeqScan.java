@@ -6,6 +6,12 @@ import java.util.*;
  * SeqScan is an implementation of a sequential scan access method that reads
  * each tuple of a table in no particular order (e.g., as they are laid out on
  * disk).
+ * <p>
+ * Predicates that compare a field with a constant can be pushed into the
+ * scan with {@link #addPredicate}; they are evaluated on the raw page bytes,
+ * so tuples that fail them are never materialized. With
+ * {@link #setOutputFields} the scan returns only some fields of the table,
+ * so operators above it carry (and buffer) narrower tuples.
  */
 public class SeqScan implements DbIterator {
 
@@ -14,6 +20,14 @@ public class SeqScan implements DbIterator {
     private int tableId;
     private String tableAlias;
     private DbFileIterator dfIterator;
+    private ArrayList<Predicate> predicates = new ArrayList<Predicate>();
+    private int[] outFields; // fields of the table that are returned, or null for all
+    private TupleDesc outTd;
+
+    // runtime join filter pushed down by a Join, see setRuntimeFilter
+    private BloomFilter runtimeFilter;
+    private int runtimeFilterField;
+    private Tuple nextTuple;
 
     /**
      * Creates a sequential scan over the specified table as a part of the
@@ -36,7 +50,7 @@ public class SeqScan implements DbIterator {
         this.tableId = tableid;
         this.tableAlias = tableAlias;
         HeapFile f = (HeapFile)(Database.getCatalog().getDbFile(tableid));
-        this.dfIterator = f.iterator(this.tid);
+        this.dfIterator = f.iterator(this.tid, this.predicates);
     }
 
     /**
@@ -78,9 +92,82 @@ public class SeqScan implements DbIterator {
     }
 
     public void open() throws DbException, TransactionAbortedException {
+        this.nextTuple = null;
         this.dfIterator.open(); 
     }
 
+    /**
+     * Only return tuples that satisfy p, as a Filter over this scan would.
+     * Must be called before the scan is opened.
+     */
+    public void addPredicate(Predicate p) {
+        this.predicates.add(p);
+    }
+
+    /**
+     * @return the predicates pushed into this scan with addPredicate
+     */
+    public List<Predicate> getPredicates() {
+        return this.predicates;
+    }
+
+    /**
+     * Only return the given fields of the table, in the given order. Field
+     * indexes of predicates added with addPredicate still refer to the
+     * table's TupleDesc; the runtime filter field refers to the returned
+     * tuples.
+     *
+     * @param fields
+     *            indexes of the fields to return in the table's TupleDesc
+     */
+    public void setOutputFields(int[] fields) {
+        TupleDesc td = Database.getCatalog().getTupleDesc(this.tableId);
+        Type[] types = new Type[fields.length];
+        String[] names = new String[fields.length];
+        for(int i = 0; i < fields.length; i++) {
+            types[i] = td.getFieldType(fields[i]);
+            names[i] = td.getFieldName(fields[i]);
+        }
+        this.outFields = fields;
+        this.outTd = new TupleDesc(types, names);
+    }
+
+    /**
+     * @return the indexes of the table fields this scan returns, or null if
+     *         it returns all of them
+     */
+    public int[] getOutputFields() {
+        return this.outFields;
+    }
+
+    /** @return t narrowed to the output fields */
+    private Tuple project(Tuple t) {
+        if(this.outFields == null) {
+            return t;
+        }
+        Tuple p = new Tuple(this.outTd);
+        p.setRecordId(t.getRecordId());
+        for(int i = 0; i < this.outFields.length; i++) {
+            p.setField(i, t.getField(this.outFields[i]));
+        }
+        return p;
+    }
+
+    /**
+     * Only return tuples whose field might be contained in filter. A Join
+     * that has built its hash table calls this on the scan of its probe side
+     * so that tuples which cannot find a join partner are dropped right here.
+     *
+     * @param field
+     *            index of the field in this scan's tuples to test
+     * @param filter
+     *            the filter to apply, or null to remove the current filter
+     */
+    public void setRuntimeFilter(int field, BloomFilter filter) {
+        this.runtimeFilterField = field;
+        this.runtimeFilter = filter;
+    }
+
     /**
      * Returns the TupleDesc with field names from the underlying HeapFile,
      * prefixed with the tableAlias string from the constructor. This prefix
@@ -91,24 +178,47 @@ public class SeqScan implements DbIterator {
      *         prefixed with the tableAlias string from the constructor.
      */
     public TupleDesc getTupleDesc() {
+        if(this.outTd != null) {
+            return this.outTd;
+        }
         return Database.getCatalog().getTupleDesc(this.tableId);
     }
 
     public boolean hasNext() throws TransactionAbortedException, DbException {
-        return this.dfIterator.hasNext();
+        if(this.runtimeFilter == null) {
+            return this.nextTuple != null || this.dfIterator.hasNext();
+        }
+        int field = this.outFields == null ? this.runtimeFilterField
+                : this.outFields[this.runtimeFilterField];
+        while(this.nextTuple == null && this.dfIterator.hasNext()) {
+            Tuple t = this.dfIterator.next();
+            if(this.runtimeFilter.mightContain(t.getField(field))) {
+                this.nextTuple = project(t);
+            }
+        }
+        return this.nextTuple != null;
     }
 
     public Tuple next() throws NoSuchElementException,
             TransactionAbortedException, DbException {
-        return this.dfIterator.next();
+        if(!this.hasNext())
+            throw new NoSuchElementException("there is no next tuple");
+        if(this.nextTuple != null) {
+            Tuple t = this.nextTuple;
+            this.nextTuple = null;
+            return t;
+        }
+        return project(this.dfIterator.next());
     }
 
     public void close() {
+        this.nextTuple = null;
         this.dfIterator.close(); 
     }
 
     public void rewind() throws DbException, NoSuchElementException,
             TransactionAbortedException {
+        this.nextTuple = null;
         this.dfIterator.rewind();
     }
 }
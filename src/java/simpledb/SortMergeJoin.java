@@ -0,0 +1,380 @@
+package simpledb;
+
+import java.util.*;
+
+/**
+ * SortMergeJoin joins two inputs that are sorted in ascending order on their
+ * join fields. It handles equality as well as the inequality predicates
+ * (&lt;, &lt;=, &gt;, &gt;=, &lt;&gt;), which the plain Join can only evaluate
+ * with a nested loop over every pair of tuples.
+ * <p>
+ * Inputs that are not known to be sorted are wrapped in an {@link OrderBy};
+ * an input that already is an ascending OrderBy on the join field, or that
+ * the caller declares sorted (e.g. because it comes from an index), is used
+ * as is.
+ * <p>
+ * For equality the two inputs are merged in a single pass, buffering only the
+ * run of child2 tuples that share the current key. For the inequalities the
+ * sorted child2 is buffered and, because child1 arrives in ascending order,
+ * the boundaries of the matching range of child2 only ever move forward, so
+ * every child1 tuple is matched against its range without evaluating the
+ * predicate on non-matching pairs.
+ * <p>
+ * The buffered child2 is held within the memory the {@link MemoryManager}
+ * grants. If child2 does not fit, it is cut into sorted blocks: the first
+ * block stays in memory, the rest of child2 goes to a {@link SpillFile}, and
+ * child1 is merged against each block in turn, rewinding it between
+ * blocks.
+ * <p>
+ * The output tuples are the concatenation of the child1 and child2 tuples,
+ * as for {@link Join}.
+ */
+public class SortMergeJoin extends Operator {
+
+    private static final long serialVersionUID = 1L;
+
+    JoinPredicate p;
+    DbIterator child1;
+    DbIterator child2;
+    TupleDesc td;
+
+    // equality merge state
+    Tuple left;
+    ArrayList<Tuple> group; // run of child2 tuples whose key equals groupKey
+    Field groupKey;
+    int groupIndex;
+    Tuple rightPeek; // first child2 tuple after the current group
+
+    // inequality state
+    ArrayList<Tuple> right; // the current block of child2, sorted
+    long reserved; // bytes of the MemoryManager held by right
+    SpillFile rest; // the child2 tuples after the current block, or null if they all fit
+    int lower; // first index of right with key >= key of left
+    int upper; // first index of right with key > key of left
+    int rangeIndex;
+    int rangeEnd;
+    int secondStart; // second range to emit (only used by NOT_EQUALS), or -1
+
+    /**
+     * Constructor. Inputs that are not ascending OrderBys on their join field
+     * are sorted first.
+     *
+     * @param p
+     *            The predicate to use to join the children
+     * @param child1
+     *            Iterator for the left(outer) relation to join
+     * @param child2
+     *            Iterator for the right(inner) relation to join
+     */
+    public SortMergeJoin(JoinPredicate p, DbIterator child1, DbIterator child2) {
+        this(p, child1, child2, isSortedOn(child1, p.getField1()),
+                isSortedOn(child2, p.getField2()));
+    }
+
+    /**
+     * Constructor.
+     *
+     * @param p
+     *            The predicate to use to join the children
+     * @param child1
+     *            Iterator for the left(outer) relation to join
+     * @param child2
+     *            Iterator for the right(inner) relation to join
+     * @param sorted1
+     *            true if child1 already returns its tuples in ascending order of
+     *            the join field
+     * @param sorted2
+     *            true if child2 already returns its tuples in ascending order of
+     *            the join field
+     * @throws IllegalArgumentException if the predicate cannot be evaluated by merging
+     */
+    public SortMergeJoin(JoinPredicate p, DbIterator child1, DbIterator child2,
+            boolean sorted1, boolean sorted2) {
+        if (!supports(p.getOperator()))
+            throw new IllegalArgumentException("sort-merge join does not support " + p.getOperator());
+        this.p = p;
+        this.child1 = sorted1 ? child1 : new OrderBy(p.getField1(), true, child1);
+        this.child2 = sorted2 ? child2 : new OrderBy(p.getField2(), true, child2);
+        this.td = null;
+    }
+
+    /**
+     * @return true if a sort-merge join can evaluate join predicates with op
+     */
+    public static boolean supports(Predicate.Op op) {
+        return op != Predicate.Op.LIKE;
+    }
+
+    /**
+     * @return true if child is known to return its tuples in ascending order
+     *         of field
+     */
+    public static boolean isSortedOn(DbIterator child, int field) {
+        if (!(child instanceof OrderBy))
+            return false;
+        OrderBy ob = (OrderBy) child;
+        return ob.isASC() && ob.getOrderByField() == field;
+    }
+
+    public JoinPredicate getJoinPredicate() {
+        return this.p;
+    }
+
+    /**
+     * @return the field name of join field1, quantified by alias or table name.
+     */
+    public String getJoinField1Name() {
+        return this.child1.getTupleDesc().getFieldName(this.p.getField1());
+    }
+
+    /**
+     * @return the field name of join field2, quantified by alias or table name.
+     */
+    public String getJoinField2Name() {
+        return this.child2.getTupleDesc().getFieldName(this.p.getField2());
+    }
+
+    public TupleDesc getTupleDesc() {
+        if (this.td == null) {
+            this.td = TupleDesc.merge(this.child1.getTupleDesc(), this.child2.getTupleDesc());
+        }
+        return this.td;
+    }
+
+    public void open() throws DbException, NoSuchElementException,
+            TransactionAbortedException {
+        super.open();
+        this.child1.open();
+        this.child2.open();
+        this.left = null;
+        if (this.p.getOperator() == Predicate.Op.EQUALS) {
+            this.group = new ArrayList<Tuple>();
+            this.groupKey = null;
+            this.groupIndex = 0;
+            this.rightPeek = this.child2.hasNext() ? this.child2.next() : null;
+        } else {
+            this.rest = null;
+            if (!readBlock(this.child2)) {
+                // child2 does not fit in memory: keep the rest of it on disk
+                this.rest = new SpillFile(this.child2.getTupleDesc());
+                while (this.child2.hasNext())
+                    this.rest.add(this.child2.next());
+                this.rest.open();
+            }
+            startBlock();
+        }
+    }
+
+    /**
+     * Read the next block of right from source: as many tuples as the
+     * MemoryManager grants room for, and at least one.
+     *
+     * @return true if source is exhausted
+     */
+    private boolean readBlock(DbIterator source) throws DbException, TransactionAbortedException {
+        MemoryManager mm = Database.getMemoryManager();
+        long tupleSize = MemoryManager.estimateSize(source.getTupleDesc());
+        releaseBlock();
+        this.right = new ArrayList<Tuple>();
+        while (source.hasNext()) {
+            if (!mm.reserve(tupleSize)) {
+                if (!this.right.isEmpty())
+                    return false;
+                mm.forceReserve(tupleSize);
+            }
+            this.reserved += tupleSize;
+            this.right.add(source.next());
+        }
+        return true;
+    }
+
+    private void releaseBlock() {
+        this.right = null;
+        if (this.reserved > 0) {
+            Database.getMemoryManager().release(this.reserved);
+            this.reserved = 0;
+        }
+    }
+
+    /** Reset the range state to merge child1 against a new block of right. */
+    private void startBlock() {
+        this.left = null;
+        this.lower = 0;
+        this.upper = 0;
+        this.rangeIndex = 0;
+        this.rangeEnd = 0;
+        this.secondStart = -1;
+    }
+
+    public void close() {
+        super.close();
+        this.child1.close();
+        this.child2.close();
+        this.left = null;
+        this.group = null;
+        this.rightPeek = null;
+        releaseBlock();
+        if (this.rest != null) {
+            try {
+                this.rest.delete();
+            } catch (DbException e) {
+                throw new RuntimeException(e);
+            } finally {
+                this.rest = null;
+            }
+        }
+    }
+
+    public void rewind() throws DbException, TransactionAbortedException {
+        this.close();
+        this.open();
+    }
+
+    /**
+     * @return negative, zero or positive as a is less than, equal to or
+     *         greater than b
+     */
+    static int compare(Field a, Field b) {
+        if (a instanceof IntField) {
+            int x = ((IntField) a).getValue();
+            int y = ((IntField) b).getValue();
+            return x < y ? -1 : (x == y ? 0 : 1);
+        }
+        return ((StringField) a).getValue().compareTo(((StringField) b).getValue());
+    }
+
+    private Tuple mergeTuples(Tuple tuple1, Tuple tuple2) {
+        Tuple newTuple = new Tuple(this.getTupleDesc());
+        int j = tuple1.getTupleDesc().numFields();
+        for (int i = 0; i < j; i++) {
+            newTuple.setField(i, tuple1.getField(i));
+        }
+        for (int i = 0; i < tuple2.getTupleDesc().numFields(); i++) {
+            newTuple.setField(j + i, tuple2.getField(i));
+        }
+        return newTuple;
+    }
+
+    /**
+     * Returns the next tuple generated by the join, or null if there are no
+     * more tuples.
+     *
+     * @see Join#fetchNext
+     */
+    protected Tuple fetchNext() throws TransactionAbortedException, DbException {
+        if (this.p.getOperator() == Predicate.Op.EQUALS)
+            return fetchNextEquals();
+        return fetchNextRange();
+    }
+
+    private Tuple fetchNextEquals() throws TransactionAbortedException, DbException {
+        while (true) {
+            if (this.left != null && this.groupIndex < this.group.size()) {
+                return mergeTuples(this.left, this.group.get(this.groupIndex++));
+            }
+            if (!this.child1.hasNext())
+                return null;
+            this.left = this.child1.next();
+            this.groupIndex = 0;
+            Field key = this.left.getField(this.p.getField1());
+            if (this.groupKey != null && compare(key, this.groupKey) == 0)
+                continue; // same key as the previous child1 tuple: reuse the group
+
+            // skip the child2 tuples that are smaller than key
+            while (this.rightPeek != null
+                    && compare(this.rightPeek.getField(this.p.getField2()), key) < 0) {
+                this.rightPeek = this.child2.hasNext() ? this.child2.next() : null;
+            }
+            this.group.clear();
+            this.groupKey = null;
+            if (this.rightPeek == null) {
+                return null; // no child2 tuples left to match
+            }
+            if (compare(this.rightPeek.getField(this.p.getField2()), key) == 0) {
+                this.groupKey = key;
+                while (this.rightPeek != null
+                        && compare(this.rightPeek.getField(this.p.getField2()), key) == 0) {
+                    this.group.add(this.rightPeek);
+                    this.rightPeek = this.child2.hasNext() ? this.child2.next() : null;
+                }
+            }
+        }
+    }
+
+    private Tuple fetchNextRange() throws TransactionAbortedException, DbException {
+        while (true) {
+            if (this.left != null && this.rangeIndex < this.rangeEnd) {
+                return mergeTuples(this.left, this.right.get(this.rangeIndex++));
+            }
+            if (this.left != null && this.secondStart >= 0) {
+                this.rangeIndex = this.secondStart;
+                this.rangeEnd = this.right.size();
+                this.secondStart = -1;
+                continue;
+            }
+            if (!this.child1.hasNext()) {
+                if (this.rest == null || !this.rest.hasNext())
+                    return null;
+                // merge child1 again against the next block of child2
+                readBlock(this.rest);
+                this.child1.rewind();
+                startBlock();
+                continue;
+            }
+            this.left = this.child1.next();
+            Field key = this.left.getField(this.p.getField1());
+            int field2 = this.p.getField2();
+            while (this.lower < this.right.size()
+                    && compare(this.right.get(this.lower).getField(field2), key) < 0) {
+                this.lower++;
+            }
+            if (this.upper < this.lower)
+                this.upper = this.lower;
+            while (this.upper < this.right.size()
+                    && compare(this.right.get(this.upper).getField(field2), key) <= 0) {
+                this.upper++;
+            }
+            // the predicate is "key op right key"
+            this.secondStart = -1;
+            switch (this.p.getOperator()) {
+            case LESS_THAN:
+                this.rangeIndex = this.upper;
+                this.rangeEnd = this.right.size();
+                break;
+            case LESS_THAN_OR_EQ:
+                this.rangeIndex = this.lower;
+                this.rangeEnd = this.right.size();
+                break;
+            case GREATER_THAN:
+                this.rangeIndex = 0;
+                this.rangeEnd = this.lower;
+                break;
+            case GREATER_THAN_OR_EQ:
+                this.rangeIndex = 0;
+                this.rangeEnd = this.upper;
+                break;
+            case NOT_EQUALS:
+                this.rangeIndex = 0;
+                this.rangeEnd = this.lower;
+                this.secondStart = this.upper;
+                break;
+            default:
+                throw new DbException("unsupported sort-merge join predicate " + this.p.getOperator());
+            }
+        }
+    }
+
+    @Override
+    public DbIterator[] getChildren() {
+        return new DbIterator[] { this.child1, this.child2 };
+    }
+
+    @Override
+    public void setChildren(DbIterator[] children) {
+        if (children.length >= 2) {
+            this.child1 = children[0];
+            this.child2 = children[1];
+        }
+    }
+
+}
@@ -0,0 +1,193 @@
+package simpledb;
+
+import java.io.*;
+import java.util.*;
+
+/**
+ * SpillFile is a temporary, append-only file of tuples that operators use
+ * when their in-memory state grows beyond what the {@link MemoryManager}
+ * grants them.
+ * <p>
+ * Tuples are first added with {@link #add}; once {@link #open} is called the
+ * file becomes read-only and can be iterated (and rewound) like any other
+ * DbIterator. Tuples are stored in a compact binary form: ints as four bytes
+ * and strings as modified UTF-8 with a two byte length, so short strings do
+ * not pay for the fixed-width page layout. RecordIds are not preserved.
+ * <p>
+ * The backing file is removed by {@link #delete}, which the operator owning
+ * the file calls when it is closed; nothing removes it at JVM exit.
+ */
+public class SpillFile implements DbIterator {
+
+    private static final long serialVersionUID = 1L;
+    static final int BUFFER_SIZE = 64 * 1024;
+
+    private TupleDesc td;
+    private File file;
+    private DataOutputStream out;
+    private DataInputStream in;
+    private int size;
+    private int read;
+
+    /**
+     * Creates a new, empty spill file for tuples with the given schema.
+     *
+     * @throws DbException if the temporary file cannot be created
+     */
+    public SpillFile(TupleDesc td) throws DbException {
+        this.td = td;
+        this.size = 0;
+        this.read = 0;
+        this.in = null;
+        try {
+            this.file = File.createTempFile("simpledb", ".spill");
+            this.out = new DataOutputStream(new BufferedOutputStream(
+                    new FileOutputStream(this.file), BUFFER_SIZE));
+        } catch (IOException e) {
+            throw new DbException("could not create spill file: " + e.getMessage());
+        }
+    }
+
+    /**
+     * Append a tuple to the end of the file.
+     *
+     * @throws IllegalStateException if the file has already been opened for reading
+     */
+    public void add(Tuple t) throws DbException {
+        if (this.out == null)
+            throw new IllegalStateException("spill file is already opened for reading");
+        try {
+            writeTuple(this.out, t, this.td);
+        } catch (IOException e) {
+            throw new DbException("could not write spill file: " + e.getMessage());
+        }
+        this.size++;
+    }
+
+    /** @return the number of tuples in this file */
+    public int size() {
+        return this.size;
+    }
+
+    /** @return the number of bytes written to this file so far */
+    public long length() {
+        return this.out == null ? this.file.length() : this.out.size();
+    }
+
+    /** Finish writing and position the file at its first tuple. */
+    public void open() throws DbException {
+        try {
+            if (this.out != null) {
+                this.out.close();
+                this.out = null;
+            }
+            closeInput();
+            this.in = new DataInputStream(new BufferedInputStream(
+                    new FileInputStream(this.file), BUFFER_SIZE));
+        } catch (IOException e) {
+            throw new DbException("could not open spill file: " + e.getMessage());
+        }
+        this.read = 0;
+    }
+
+    public boolean hasNext() {
+        if (this.in == null)
+            throw new IllegalStateException("spill file not opened");
+        return this.read < this.size;
+    }
+
+    public Tuple next() throws DbException, NoSuchElementException {
+        if (!hasNext())
+            throw new NoSuchElementException();
+        try {
+            Tuple t = readTuple(this.in, this.td);
+            this.read++;
+            return t;
+        } catch (IOException e) {
+            throw new DbException("could not read spill file: " + e.getMessage());
+        }
+    }
+
+    public void rewind() throws DbException {
+        open();
+    }
+
+    public TupleDesc getTupleDesc() {
+        return this.td;
+    }
+
+    /**
+     * Stop reading the file.
+     *
+     * @throws RuntimeException wrapping a DbException if the file cannot be
+     *             closed, as DbIterator.close cannot throw one
+     */
+    public void close() {
+        try {
+            closeInput();
+        } catch (DbException e) {
+            throw new RuntimeException(e);
+        }
+    }
+
+    private void closeInput() throws DbException {
+        if (this.in != null) {
+            try {
+                this.in.close();
+            } catch (IOException e) {
+                throw new DbException("could not close spill file: " + e.getMessage());
+            } finally {
+                this.in = null;
+            }
+        }
+    }
+
+    /**
+     * Close the file and remove it from disk.
+     *
+     * @throws DbException if the file cannot be closed or removed
+     */
+    public void delete() throws DbException {
+        try {
+            closeInput();
+            if (this.out != null) {
+                try {
+                    this.out.close();
+                } catch (IOException e) {
+                    throw new DbException("could not close spill file: " + e.getMessage());
+                } finally {
+                    this.out = null;
+                }
+            }
+        } finally {
+            this.file.delete();
+        }
+        if (this.file.exists())
+            throw new DbException("could not delete spill file " + this.file);
+    }
+
+    /** Write t to dos in the spill file format. */
+    static void writeTuple(DataOutputStream dos, Tuple t, TupleDesc td) throws IOException {
+        for (int i = 0; i < td.numFields(); i++) {
+            Field f = t.getField(i);
+            if (td.getFieldType(i) == Type.INT_TYPE) {
+                dos.writeInt(((IntField) f).getValue());
+            } else {
+                dos.writeUTF(((StringField) f).getValue());
+            }
+        }
+    }
+
+    /** Read a tuple written by {@link #writeTuple} from dis. */
+    static Tuple readTuple(DataInputStream dis, TupleDesc td) throws IOException {
+        Tuple t = new Tuple(td);
+        for (int i = 0; i < td.numFields(); i++) {
+            if (td.getFieldType(i) == Type.INT_TYPE) {
+                t.setField(i, new IntField(dis.readInt()));
+            } else {
+                t.setField(i, new StringField(dis.readUTF(), Type.STRING_LEN));
+            }
+        }
+        return t;
+    }
+}
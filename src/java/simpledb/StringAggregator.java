@@ -4,7 +4,8 @@ import java.util.HashMap;
 import java.util.ArrayList;
 
 /**
- * Knows how to compute some aggregate over a set of StringFields.
+ * Knows how to compute some aggregate over a set of StringFields: COUNT, or
+ * an estimate of COUNT_DISTINCT from a {@link HyperLogLog} per group.
  */
 public class StringAggregator implements Aggregator {
 
@@ -15,47 +16,62 @@ public class StringAggregator implements Aggregator {
     Op operator;
     TupleDesc td;
 
+    // keyed by group value, or by null when there is no grouping
     HashMap<Field, Integer> cntAggregator;
+    HashMap<Field, HyperLogLog> distinctAggregator;
 
     /**
      * Aggregate constructor
      * @param gbfield the 0-based index of the group-by field in the tuple, or NO_GROUPING if there is no grouping
      * @param gbfieldtype the type of the group by field (e.g., Type.INT_TYPE), or null if there is no grouping
      * @param afield the 0-based index of the aggregate field in the tuple
-     * @param what aggregation operator to use -- only supports COUNT
-     * @throws IllegalArgumentException if what != COUNT
+     * @param what aggregation operator to use -- only supports COUNT and COUNT_DISTINCT
+     * @throws IllegalArgumentException if what is not COUNT or COUNT_DISTINCT
      */
 
     public StringAggregator(int gbfield, Type gbfieldtype, int afield, Op what) {
+        if(what != Aggregator.Op.COUNT && what != Aggregator.Op.COUNT_DISTINCT) {
+            throw new IllegalArgumentException(what + " is not supported over string fields");
+        }
         this.gbField = gbfield;
         this.gbFieldType = gbfieldtype;
         this.aggregateField = afield;
         this.operator = what;
+        this.cntAggregator = new HashMap<Field, Integer> ();
+        this.distinctAggregator = new HashMap<Field, HyperLogLog> ();
         if(gbfield != NO_GROUPING) {
-            this.cntAggregator = new HashMap<Field, Integer> ();
             this.td = new TupleDesc(new Type[]{gbfieldtype, Type.INT_TYPE});
         } else {
-            this.cntAggregator = new HashMap<Field, Integer> ();
-            this.td = new TupleDesc(new Type[]{gbfieldtype});
+            this.td = new TupleDesc(new Type[]{Type.INT_TYPE});
         }
     }
 
+    /**
+     * @return the number of groups seen so far
+     */
+    public int numGroups() {
+        if(this.gbField == NO_GROUPING) {
+            return 1;
+        }
+        return this.operator == Aggregator.Op.COUNT ? this.cntAggregator.size() : this.distinctAggregator.size();
+    }
+
     /**
      * Merge a new tuple into the aggregate, grouping as indicated in the constructor
      * @param tup the Tuple containing an aggregate field and a group-by field
      */
     public void mergeTupleIntoGroup(Tuple tup) {
-        Field tmpField = tup.getField(this.gbField);
-        if(this.gbField == NO_GROUPING) {
-            this.cntAggregator.put(tmpField, 0);
+        Field tmpField = this.gbField == NO_GROUPING ? null : tup.getField(this.gbField);
+        if(this.operator == Aggregator.Op.COUNT) {
+            Integer count = this.cntAggregator.get(tmpField);
+            this.cntAggregator.put(tmpField, count == null ? 1 : count + 1);
         } else {
-            if(this.operator == Aggregator.Op.COUNT) {
-                if(this.cntAggregator.containsKey(tmpField)) {
-                    this.cntAggregator.put(tmpField, this.cntAggregator.get(tmpField) + 1);
-                } else {
-                    this.cntAggregator.put(tmpField, 1);
-                }
+            HyperLogLog hll = this.distinctAggregator.get(tmpField);
+            if(hll == null) {
+                hll = new HyperLogLog();
+                this.distinctAggregator.put(tmpField, hll);
             }
+            hll.add(tup.getField(this.aggregateField));
         }
     }
 
@@ -69,15 +85,25 @@ public class StringAggregator implements Aggregator {
      */
     public DbIterator iterator() {
         ArrayList<Tuple> tuples = new ArrayList<Tuple> ();
+        HashMap<Field, Integer> results = this.cntAggregator;
+        if(this.operator == Aggregator.Op.COUNT_DISTINCT) {
+            results = new HashMap<Field, Integer> ();
+            for(Map.Entry<Field, HyperLogLog> element : this.distinctAggregator.entrySet()) {
+                results.put(element.getKey(), (int) element.getValue().estimate());
+            }
+        }
+        if(this.gbField == NO_GROUPING && results.isEmpty()) {
+            results = new HashMap<Field, Integer> ();
+            results.put(null, 0);
+        }
         Tuple currTuple = null;
-        for(Map.Entry element: this.cntAggregator.entrySet()) {
-            Field key = (Field)element.getKey();
-            Integer value = (Integer)element.getValue();
+        for(Map.Entry<Field, Integer> element: results.entrySet()) {
             currTuple = new Tuple(this.td);
-            currTuple.setField(0, key);
+            int i = 0;
             if(this.gbField != NO_GROUPING) {
-                currTuple.setField(1, new IntField(value.intValue()));
+                currTuple.setField(i++, element.getKey());
             }
+            currTuple.setField(i, new IntField(element.getValue().intValue()));
             tuples.add(currTuple);
         }
         return new TupleIterator(td, tuples);
@@ -0,0 +1,157 @@
+package simpledb;
+
+import java.util.*;
+
+/**
+ * TopN is an operator that implements ORDER BY followed by LIMIT: it returns
+ * the first limit tuples of its child in the given order.
+ * <p>
+ * Instead of sorting the whole input, TopN keeps the best limit tuples seen
+ * so far in a heap whose root is the worst of them, so each input tuple costs
+ * O(log limit) and only limit tuples are held in memory.
+ */
+public class TopN extends Operator {
+
+    private static final long serialVersionUID = 1L;
+    private DbIterator child;
+    private TupleDesc td;
+    private int[] orderByFields;
+    private boolean[] asc;
+    private int limit;
+    private ArrayList<Tuple> top = new ArrayList<Tuple>();
+    private Iterator<Tuple> it;
+    private long reserved; // bytes of the MemoryManager held by top
+
+    /**
+     * Creates a new TopN node over the tuples from the iterator.
+     *
+     * @param orderbyField
+     *            the field to which the sort is applied.
+     * @param asc
+     *            true if the sort order is ascending.
+     * @param limit
+     *            the maximum number of tuples to return.
+     * @param child
+     *            the tuples to sort.
+     */
+    public TopN(int orderbyField, boolean asc, int limit, DbIterator child) {
+        this(new int[] { orderbyField }, new boolean[] { asc }, limit, child);
+    }
+
+    /**
+     * Creates a new TopN node that sorts on several fields, as
+     * {@link OrderBy#OrderBy(int[], boolean[], DbIterator)} does.
+     *
+     * @param orderbyFields
+     *            the fields to which the sort is applied, most significant
+     *            first.
+     * @param asc
+     *            for each field, true if its sort order is ascending.
+     * @param limit
+     *            the maximum number of tuples to return.
+     * @param child
+     *            the tuples to sort.
+     */
+    public TopN(int[] orderbyFields, boolean[] asc, int limit, DbIterator child) {
+        if (limit < 0)
+            throw new IllegalArgumentException("negative limit " + limit);
+        this.child = child;
+        this.td = child.getTupleDesc();
+        this.orderByFields = orderbyFields;
+        this.asc = asc;
+        this.limit = limit;
+    }
+
+    /** @return the fields of the sort, most significant first */
+    public int[] getOrderByFields() {
+        return this.orderByFields;
+    }
+
+    /** @return for each field of the sort, true if it is ascending */
+    public boolean[] getAscending() {
+        return this.asc;
+    }
+
+    public int getLimit() {
+        return this.limit;
+    }
+
+    public TupleDesc getTupleDesc() {
+        return td;
+    }
+
+    public void open() throws DbException, NoSuchElementException,
+            TransactionAbortedException {
+        child.open();
+        discard();
+        final Comparator<Tuple> cmp = new TupleComparator(orderByFields, asc, td);
+        // the root of the heap is the tuple that would be dropped first
+        PriorityQueue<Tuple> heap = new PriorityQueue<Tuple>(
+                Math.max(1, Math.min(limit, 1024)), new Comparator<Tuple>() {
+                    public int compare(Tuple a, Tuple b) {
+                        return cmp.compare(b, a);
+                    }
+                });
+        while (child.hasNext()) {
+            Tuple t = child.next();
+            if (heap.size() < limit) {
+                heap.add(t);
+            } else if (limit > 0 && cmp.compare(t, heap.peek()) < 0) {
+                heap.poll();
+                heap.add(t);
+            }
+        }
+        while (!heap.isEmpty())
+            top.add(heap.poll());
+        Collections.reverse(top);
+        reserved = top.size() * MemoryManager.estimateSize(td);
+        Database.getMemoryManager().forceReserve(reserved);
+        it = top.iterator();
+        super.open();
+    }
+
+    public void close() {
+        super.close();
+        discard();
+    }
+
+    /** Drop the tuples kept by the last open. */
+    private void discard() {
+        it = null;
+        top.clear();
+        if (reserved > 0) {
+            Database.getMemoryManager().release(reserved);
+            reserved = 0;
+        }
+    }
+
+    public void rewind() throws DbException, TransactionAbortedException {
+        it = top.iterator();
+    }
+
+    /**
+     * Operator.fetchNext implementation. Returns the top tuples of the child
+     * operator in order
+     *
+     * @return The next tuple in the ordering, or null if there are no more
+     *         tuples
+     */
+    protected Tuple fetchNext() throws NoSuchElementException,
+            TransactionAbortedException, DbException {
+        if (it != null && it.hasNext()) {
+            return it.next();
+        } else
+            return null;
+    }
+
+    @Override
+    public DbIterator[] getChildren() {
+        return new DbIterator[] { this.child };
+    }
+
+    @Override
+    public void setChildren(DbIterator[] children) {
+        this.child = children[0];
+    }
+
+}
@@ -9,15 +9,28 @@ import java.io.*;
 
 public class Transaction {
     private final TransactionId tid;
+    private final boolean readOnly;
     volatile boolean started = false;
 
     public Transaction() {
+        this(false);
+    }
+
+    /**
+     * @param readOnly true if the transaction only reads; it then reads a
+     *        snapshot of the database taken when it starts, without locks
+     * @see BufferPool#beginSnapshot
+     */
+    public Transaction(boolean readOnly) {
         tid = new TransactionId();
+        this.readOnly = readOnly;
     }
 
     /** Start the transaction running */
     public void start() {
         started = true;
+        if (readOnly)
+            Database.getBufferPool().beginSnapshot(tid);
         try {
             Database.getLogFile().logXactionBegin(tid);
         } catch (IOException e) {
@@ -29,6 +42,19 @@ public class Transaction {
         return tid;
     }
 
+    public boolean isReadOnly() {
+        return readOnly;
+    }
+
+    /**
+     * Set how long this transaction waits for each lock before it is
+     * aborted, in milliseconds.
+     * @see BufferPool#setLockWait
+     */
+    public void setLockTimeout(long millis) {
+        Database.getBufferPool().setLockWait(tid, millis);
+    }
+
     /** Finish the transaction */
     public void commit() throws IOException {
         transactionComplete(false);
@@ -46,6 +72,9 @@ public class Transaction {
             if (abort) {
                 Database.getLogFile().logAbort(tid); //does rollback too
             } else {
+                // force the changes to the log before any page is written,
+                // without holding the buffer pool while the log is on disk
+                Database.getLogFile().forceRecords(tid);
                 //write all the dirty pages for this transaction out
                 Database.getBufferPool().flushPages(tid);
                 Database.getLogFile().logCommit(tid);
@@ -0,0 +1,51 @@
+package simpledb;
+
+import java.util.Comparator;
+
+/**
+ * Compares tuples on one or more fields, each ascending or descending. The
+ * comparison of each field is chosen from its type when the comparator is
+ * built, so ints are compared as primitives and strings with
+ * String.compareTo, without going through Field.compare.
+ */
+class TupleComparator implements Comparator<Tuple> {
+    final int[] fields;
+    final boolean[] asc;
+    final boolean[] isInt;
+
+    /**
+     * @param fields
+     *            the fields to compare, most significant first
+     * @param asc
+     *            for each field, true if it is compared in ascending order
+     * @param td
+     *            the TupleDesc of the tuples compared
+     */
+    public TupleComparator(int[] fields, boolean[] asc, TupleDesc td) {
+        if (fields.length == 0 || fields.length != asc.length)
+            throw new IllegalArgumentException("need one direction per sort field");
+        this.fields = fields;
+        this.asc = asc;
+        this.isInt = new boolean[fields.length];
+        for (int i = 0; i < fields.length; i++)
+            this.isInt[i] = td.getFieldType(fields[i]) == Type.INT_TYPE;
+    }
+
+    public int compare(Tuple o1, Tuple o2) {
+        for (int i = 0; i < fields.length; i++) {
+            int c;
+            if (isInt[i]) {
+                int v1 = ((IntField) o1.getField(fields[i])).getValue();
+                int v2 = ((IntField) o2.getField(fields[i])).getValue();
+                c = v1 < v2 ? -1 : (v1 == v2 ? 0 : 1);
+            } else {
+                String v1 = ((StringField) o1.getField(fields[i])).getValue();
+                String v2 = ((StringField) o2.getField(fields[i])).getValue();
+                c = v1.compareTo(v2);
+            }
+            if (c != 0)
+                return asc[i] ? c : -c;
+        }
+        return 0;
+    }
+}
@@ -0,0 +1,193 @@
+package simpledb;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.fail;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.Random;
+
+import junit.framework.JUnit4TestAdapter;
+
+import org.junit.Test;
+
+import simpledb.systemtest.SimpleDbTestBase;
+
+public class AggregateTest extends SimpleDbTestBase {
+
+    private final Random r = new Random(20160229);
+
+    private final static Aggregator.Op[] OPS = new Aggregator.Op[] {
+            Aggregator.Op.MIN, Aggregator.Op.MAX, Aggregator.Op.SUM,
+            Aggregator.Op.AVG, Aggregator.Op.COUNT };
+
+    /**
+     * @return the aggregate of column 1 grouped by column 0, as tuple data
+     *   for TestUtil.createTupleList
+     */
+    private int[] expected(int[] data, Aggregator.Op op) {
+        HashMap<Integer, int[]> groups = new HashMap<Integer, int[]>();
+        for (int i = 0; i < data.length; i += 2) {
+            int[] g = groups.get(data[i]);
+            if (g == null) {
+                // min, max, sum, count
+                g = new int[] { Integer.MAX_VALUE, Integer.MIN_VALUE, 0, 0 };
+                groups.put(data[i], g);
+            }
+            g[0] = Math.min(g[0], data[i + 1]);
+            g[1] = Math.max(g[1], data[i + 1]);
+            g[2] += data[i + 1];
+            g[3]++;
+        }
+        int[] out = new int[groups.size() * 2];
+        int i = 0;
+        for (Integer key : groups.keySet()) {
+            int[] g = groups.get(key);
+            out[i++] = key;
+            switch (op) {
+            case MIN: out[i++] = g[0]; break;
+            case MAX: out[i++] = g[1]; break;
+            case SUM: out[i++] = g[2]; break;
+            case AVG: out[i++] = g[2] / g[3]; break;
+            default: out[i++] = g[3]; break;
+            }
+        }
+        return out;
+    }
+
+    /**
+     * Unit test for grouped aggregates whose groups fit in memory.
+     */
+    @Test public void groupsInMemory() throws Exception {
+        int[] data = TestUtil.randomPairs(r, 1000, 0, 40);
+        for (Aggregator.Op op : OPS) {
+            Aggregate agg = new Aggregate(TestUtil.createTupleList(2, data), 1, 0, op);
+            TestUtil.matchAllTuples(2, expected(data, op), agg);
+        }
+    }
+
+    /**
+     * Unit test for grouped aggregates with many more groups than fit in
+     * memory, so that partial aggregates are spilled, merged and (for a
+     * budget this small) split again.
+     */
+    @Test public void groupsSpill() throws Exception {
+        Database.resetMemoryManager(30 * MemoryManager.estimateSize(Utility.getTupleDesc(3)));
+        int[] data = TestUtil.randomPairs(r, 3000, 0, 1500);
+        for (Aggregator.Op op : OPS) {
+            Aggregate agg = new Aggregate(TestUtil.createTupleList(2, data), 1, 0, op);
+            int[] expected = expected(data, op);
+            TestUtil.matchAllTuples(2, expected, agg);
+            // reopening aggregates again from the child
+            TestUtil.matchAllTuples(2, expected, agg);
+            assertEquals(Database.getMemoryManager().getCapacity(),
+                    Database.getMemoryManager().available());
+        }
+    }
+
+    /**
+     * Unit test for all five aggregates computed in one Aggregate, grouped
+     * by two columns, both in memory and with spilling.
+     */
+    @Test public void multipleGroupsAndAggregates() throws Exception {
+        int rows = 2000;
+        int[] data = new int[rows * 3];
+        for (int i = 0; i < rows; i++) {
+            data[3 * i] = r.nextInt(30);
+            data[3 * i + 1] = r.nextInt(20);
+            data[3 * i + 2] = r.nextInt(1000);
+        }
+        HashMap<ArrayList<Integer>, int[]> groups = new HashMap<ArrayList<Integer>, int[]>();
+        for (int i = 0; i < data.length; i += 3) {
+            ArrayList<Integer> key = new ArrayList<Integer>(Arrays.asList(data[i], data[i + 1]));
+            int[] g = groups.get(key);
+            if (g == null) {
+                g = new int[] { Integer.MAX_VALUE, Integer.MIN_VALUE, 0, 0 };
+                groups.put(key, g);
+            }
+            g[0] = Math.min(g[0], data[i + 2]);
+            g[1] = Math.max(g[1], data[i + 2]);
+            g[2] += data[i + 2];
+            g[3]++;
+        }
+        int[] expected = new int[groups.size() * 7];
+        int n = 0;
+        for (Map.Entry<ArrayList<Integer>, int[]> e : groups.entrySet()) {
+            int[] g = e.getValue();
+            int[] row = new int[] { e.getKey().get(0), e.getKey().get(1),
+                    g[0], g[1], g[2], g[2] / g[3], g[3] };
+            System.arraycopy(row, 0, expected, n, row.length);
+            n += row.length;
+        }
+
+        int[] afields = new int[] { 2, 2, 2, 2, 2 };
+        for (int pass = 0; pass < 2; pass++) {
+            if (pass == 1)
+                Database.resetMemoryManager(40 * MemoryManager.estimateSize(Utility.getTupleDesc(8)));
+            Aggregate agg = new Aggregate(TestUtil.createTupleList(3, data),
+                    new int[] { 0, 1 }, afields, OPS);
+            assertEquals(7, agg.getTupleDesc().numFields());
+            TestUtil.matchAllTuples(7, expected, agg);
+        }
+    }
+
+    /**
+     * Unit test for averages whose sums do not fit in an int: they are
+     * computed exactly, while a SUM that does not fit is reported instead of
+     * wrapping around.
+     */
+    @Test public void longAccumulators() throws Exception {
+        int[] data = new int[] { 0, Integer.MAX_VALUE, 0, Integer.MAX_VALUE - 2,
+                1, Integer.MIN_VALUE, 1, Integer.MIN_VALUE };
+        Aggregate avg = new Aggregate(TestUtil.createTupleList(2, data), 1, 0, Aggregator.Op.AVG);
+        TestUtil.matchAllTuples(2, new int[] { 0, Integer.MAX_VALUE - 1,
+                1, Integer.MIN_VALUE }, avg);
+
+        Aggregate sum = new Aggregate(TestUtil.createTupleList(2, data), 1, 0, Aggregator.Op.SUM);
+        try {
+            sum.open();
+            while (sum.hasNext())
+                sum.next();
+            fail("expected the SUM to overflow");
+        } catch (ArithmeticException e) {
+            // expected
+        }
+        sum.close();
+    }
+
+    /**
+     * Unit test for spilled averages whose partial sums do not fit in an
+     * int: the partials carry long sums and counts, so the averages are
+     * still exact.
+     */
+    @Test public void spilledLongAverages() throws Exception {
+        Database.resetMemoryManager(30 * MemoryManager.estimateSize(Utility.getTupleDesc(5)));
+        int groups = 300, perGroup = 4;
+        int[] data = new int[groups * perGroup * 2];
+        int[] expected = new int[groups * 2];
+        for (int g = 0; g < groups; g++) {
+            long sum = 0;
+            for (int i = 0; i < perGroup; i++) {
+                int row = g * perGroup + i;
+                data[2 * row] = g;
+                data[2 * row + 1] = Integer.MAX_VALUE - r.nextInt(1000);
+                sum += data[2 * row + 1];
+            }
+            expected[2 * g] = g;
+            expected[2 * g + 1] = (int) (sum / perGroup);
+        }
+        Aggregate agg = new Aggregate(TestUtil.createTupleList(2, data), 1, 0, Aggregator.Op.AVG);
+        TestUtil.matchAllTuples(2, expected, agg);
+        assertEquals(Database.getMemoryManager().getCapacity(),
+                Database.getMemoryManager().available());
+    }
+
+    /**
+     * JUnit suite target
+     */
+    public static junit.framework.Test suite() {
+        return new JUnit4TestAdapter(AggregateTest.class);
+    }
+}
@@ -0,0 +1,210 @@
+package simpledb;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import junit.framework.JUnit4TestAdapter;
+
+import org.junit.Before;
+import org.junit.Test;
+
+import simpledb.systemtest.SimpleDbTestBase;
+import simpledb.systemtest.SystemTestUtil;
+
+public class BufferPoolTest extends SimpleDbTestBase {
+
+    private HeapFile hf;
+
+    @Before public void setUp() throws Exception {
+        hf = SystemTestUtil.createRandomHeapFile(2, 20, null, null);
+    }
+
+    private int count(TransactionId tid) throws Exception {
+        DbFileIterator it = hf.iterator(tid);
+        it.open();
+        int n = 0;
+        for (; it.hasNext(); n++)
+            it.next();
+        it.close();
+        return n;
+    }
+
+    /**
+     * Unit test for snapshot reads: a read-only transaction takes no locks,
+     * so it reads a page a writer holds an X lock on, and it keeps seeing
+     * the data as of its start after the writer commits.
+     */
+    @Test public void snapshotRead() throws Exception {
+        BufferPool bp = Database.getBufferPool();
+        TransactionId writer = new TransactionId();
+        TransactionId reader = new TransactionId();
+        bp.beginSnapshot(reader);
+        assertTrue(bp.isSnapshot(reader));
+
+        Tuple t = new Tuple(Utility.getTupleDesc(2));
+        t.setField(0, new IntField(1));
+        t.setField(1, new IntField(2));
+        bp.insertTuple(writer, hf.getId(), t);
+        assertEquals(20, count(reader));
+        assertFalse(bp.holdsLock(reader, new HeapPageId(hf.getId(), 0)));
+
+        bp.transactionComplete(writer, true);
+        assertEquals(20, count(reader));
+        TransactionId later = new TransactionId();
+        bp.beginSnapshot(later);
+        assertEquals(21, count(later));
+        try {
+            bp.getPage(later, new HeapPageId(hf.getId(), 0), Permissions.READ_WRITE);
+            fail("a snapshot reader got a page for writing");
+        } catch (DbException e) {
+            // expected
+        }
+        bp.transactionComplete(reader);
+        bp.transactionComplete(later);
+
+        TransactionId locking = new TransactionId();
+        assertEquals(21, count(locking));
+        bp.transactionComplete(locking);
+    }
+
+    /**
+     * Unit test for the commit of a locking reader: the pages it only read
+     * are not copied.
+     */
+    @Test public void readOnlyCommit() throws Exception {
+        BufferPool bp = Database.getBufferPool();
+        TransactionId reader = new TransactionId();
+        assertEquals(20, count(reader));
+        HeapPage page = (HeapPage) bp.getPage(reader,
+                new HeapPageId(hf.getId(), 0), Permissions.READ_ONLY);
+        byte[] before = page.oldData;
+        assertFalse(page.wroteSlots(reader));
+        bp.transactionComplete(reader, true);
+        assertSame(before, page.oldData);
+    }
+
+    /**
+     * Unit test for row locks: two transactions delete different tuples of
+     * one page without waiting for each other, and the commit of one and
+     * the abort of the other only affect their own tuples, in the buffer
+     * pool and on disk.
+     */
+    @Test public void rowLocks() throws Exception {
+        BufferPool bp = Database.getBufferPool();
+        HeapPageId pid = new HeapPageId(hf.getId(), 0);
+        TransactionId reader = new TransactionId();
+        bp.beginSnapshot(reader);
+        DbFileIterator it = hf.iterator(reader);
+        it.open();
+        Tuple first = it.next();
+        Tuple second = it.next();
+        it.close();
+        bp.transactionComplete(reader);
+        int empty = ((HeapPage) hf.readPage(pid)).getNumEmptySlots();
+
+        TransactionId t1 = new TransactionId();
+        TransactionId t2 = new TransactionId();
+        bp.deleteTuple(t1, first);
+        bp.deleteTuple(t2, second);
+        assertFalse(bp.holdsLock(t1, pid));
+        bp.flushPages(t1);
+        bp.transactionComplete(t1, true);
+        bp.transactionComplete(t2, false);
+
+        assertEquals(empty + 1, ((HeapPage) hf.readPage(pid)).getNumEmptySlots());
+        TransactionId after = new TransactionId();
+        assertEquals(19, count(after));
+        bp.transactionComplete(after);
+    }
+
+    /**
+     * Unit test for SKIP LOCKED: a scan passes over a tuple another
+     * transaction is deleting instead of waiting for it, and Parser finds
+     * the locking clauses.
+     */
+    @Test public void skipLocked() throws Exception {
+        BufferPool bp = Database.getBufferPool();
+        TransactionId t1 = new TransactionId();
+        DbFileIterator it = hf.iterator(t1);
+        it.open();
+        bp.deleteTuple(t1, it.next());
+        it.close();
+
+        TransactionId t2 = new TransactionId();
+        bp.setSkipLocked(t2, Permissions.READ_ONLY);
+        assertEquals(Permissions.READ_ONLY, bp.getSkipLocked(t2));
+        assertEquals(19, count(t2));
+        bp.transactionComplete(t2);
+        assertEquals(null, bp.getSkipLocked(t2));
+        bp.transactionComplete(t1, false);
+
+        assertEquals("NOWAIT", Parser.getLockClause("select * from t nowait;"));
+        assertEquals("SKIP LOCKED", Parser.getLockClause("delete from t Skip  Locked"));
+        assertEquals("WAIT 250", Parser.getLockClause("select * from t limit 3 wait 250;"));
+        assertEquals("select * from t limit 3;",
+                Parser.stripLockClause("select * from t limit 3 WAIT 250 ;"));
+        assertEquals(null, Parser.getLockClause("select * from t;"));
+    }
+
+    /**
+     * Multi-threaded test: transactions on their own threads insert into
+     * the one page of a table that is not cached yet, and every row they
+     * commit is there afterwards. Repeated over fresh tables, since the
+     * threads only race while the page is being read in.
+     */
+    @Test public void concurrentInsert() throws Exception {
+        final int threads = 8, rows = 10, rounds = 30;
+        for (int r = 0; r < rounds; r++) {
+            final HeapFile table = SystemTestUtil.createRandomHeapFile(2, 20, null, null);
+            final BufferPool bp = Database.getBufferPool();
+            final AtomicInteger failures = new AtomicInteger();
+            final CountDownLatch start = new CountDownLatch(1);
+            Thread[] ts = new Thread[threads];
+            for (int i = 0; i < threads; i++) {
+                ts[i] = new Thread() {
+                    public void run() {
+                        try {
+                            TransactionId tid = new TransactionId();
+                            start.await();
+                            for (int n = 0; n < rows; n++) {
+                                Tuple t = new Tuple(Utility.getTupleDesc(2));
+                                t.setField(0, new IntField(n));
+                                t.setField(1, new IntField(n));
+                                bp.insertTuple(tid, table.getId(), t);
+                            }
+                            bp.transactionComplete(tid, true);
+                        } catch (Exception e) {
+                            failures.incrementAndGet();
+                        }
+                    }
+                };
+                ts[i].start();
+            }
+            start.countDown();
+            for (Thread t : ts)
+                t.join(30000);
+            assertEquals(0, failures.get());
+            assertEquals(1, table.numPages());
+
+            // read back from disk, so rows lost from the cache show too
+            Database.resetBufferPool(BufferPool.DEFAULT_PAGES);
+            hf = table;
+            TransactionId reader = new TransactionId();
+            assertEquals(20 + threads * rows, count(reader));
+            Database.getBufferPool().transactionComplete(reader);
+        }
+    }
+
+    /**
+     * JUnit suite target
+     */
+    public static junit.framework.Test suite() {
+        return new JUnit4TestAdapter(BufferPoolTest.class);
+    }
+}
@@ -0,0 +1,113 @@
+package simpledb;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertSame;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+
+import junit.framework.JUnit4TestAdapter;
+
+import org.junit.Test;
+
+import simpledb.systemtest.SimpleDbTestBase;
+
+public class IntHashTableTest extends SimpleDbTestBase {
+
+    /**
+     * Check that every key in keys has the id of its position, both through
+     * find and findOrAdd, and that key maps the ids back.
+     */
+    private void checkIds(IntHashTable table, int[] keys) {
+        assertEquals(keys.length, table.numKeys());
+        for (int id = 0; id < keys.length; id++) {
+            assertEquals(id, table.find(keys[id]));
+            assertEquals(id, table.findOrAdd(keys[id]));
+            assertEquals(keys[id], table.key(id));
+        }
+        assertEquals(keys.length, table.numKeys());
+    }
+
+    /**
+     * Unit test for findOrAdd and key across several resizes: ids stay
+     * dense and in insertion order.
+     */
+    @Test public void resize() {
+        IntHashTable table = new IntHashTable();
+        int[] keys = new int[1000];
+        for (int i = 0; i < keys.length; i++) {
+            keys[i] = i * 7919;
+            assertEquals(IntHashTable.NONE, table.find(keys[i]));
+            assertEquals(i, table.findOrAdd(keys[i]));
+            if (i == IntHashTable.MIN_CAPACITY / 2)
+                checkIds(table, Arrays.copyOf(keys, i + 1));
+        }
+        checkIds(table, keys);
+        assertEquals(IntHashTable.NONE, table.find(-7919));
+    }
+
+    /**
+     * Unit test for keys that all hash to the same slot, so that they are
+     * found by probing past each other, before and after a resize.
+     */
+    @Test public void collidingKeys() {
+        // the slot of a key in an empty table of MIN_CAPACITY slots
+        int shift = 32 - Integer.numberOfTrailingZeros(IntHashTable.MIN_CAPACITY);
+        ArrayList<Integer> colliding = new ArrayList<Integer>();
+        for (int k = -100000; colliding.size() < 6; k++) {
+            if (((k * 0x9E3779B9) >>> shift) == IntHashTable.MIN_CAPACITY - 1)
+                colliding.add(k);
+        }
+        int[] keys = new int[colliding.size()];
+        for (int i = 0; i < keys.length; i++)
+            keys[i] = colliding.get(i);
+
+        IntHashTable table = new IntHashTable();
+        for (int i = 0; i < keys.length; i++)
+            assertEquals(i, table.findOrAdd(keys[i]));
+        checkIds(table, keys);
+
+        int[] more = Arrays.copyOf(keys, 100);
+        for (int i = keys.length; i < more.length; i++) {
+            more[i] = 1000000 + i;
+            assertEquals(i, table.findOrAdd(more[i]));
+        }
+        checkIds(table, more);
+    }
+
+    /**
+     * Unit test for negative keys and the extreme int values, including
+     * the rows stored under them.
+     */
+    @Test public void extremeKeys() {
+        int[] keys = new int[] { Integer.MIN_VALUE, Integer.MAX_VALUE, 0, -1,
+                1, Integer.MIN_VALUE + 1, Integer.MAX_VALUE - 1, -16, -32 };
+        IntHashTable table = new IntHashTable(2);
+        for (int i = 0; i < keys.length; i++)
+            assertEquals(i, table.findOrAdd(keys[i]));
+        checkIds(table, keys);
+
+        Tuple first = new Tuple(Utility.getTupleDesc(1));
+        Tuple second = new Tuple(Utility.getTupleDesc(1));
+        table.addRow(Integer.MIN_VALUE, first);
+        table.addRow(Integer.MAX_VALUE, second);
+        table.addRow(Integer.MIN_VALUE, second);
+        int row = table.firstRow(Integer.MIN_VALUE);
+        assertSame(first, table.row(row));
+        row = table.nextRow(row);
+        assertSame(second, table.row(row));
+        assertEquals(IntHashTable.NONE, table.nextRow(row));
+        assertSame(second, table.row(table.firstRow(Integer.MAX_VALUE)));
+        assertEquals(IntHashTable.NONE, table.firstRow(0));
+        assertEquals(IntHashTable.NONE, table.firstRow(2));
+        assertEquals(keys.length, table.numKeys());
+        assertEquals(3, table.numRows());
+    }
+
+    /**
+     * JUnit suite target
+     */
+    public static junit.framework.Test suite() {
+        return new JUnit4TestAdapter(IntHashTableTest.class);
+    }
+}
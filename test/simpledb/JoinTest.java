@@ -0,0 +1,190 @@
+package simpledb;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashSet;
+import java.util.Random;
+
+import junit.framework.JUnit4TestAdapter;
+
+import org.junit.Test;
+
+import simpledb.systemtest.SimpleDbTestBase;
+import simpledb.systemtest.SystemTestUtil;
+
+public class JoinTest extends SimpleDbTestBase {
+
+    private final Random r = new Random(20160301);
+
+    /**
+     * @return the joined tuples, computed with nested loops, as tuple data
+     *   for TestUtil.createTupleList
+     */
+    private int[] expectedJoin(int[] left, int[] right, Predicate.Op op) {
+        ArrayList<Integer> out = new ArrayList<Integer>();
+        for (int i = 0; i < left.length; i += 2) {
+            for (int j = 0; j < right.length; j += 2) {
+                if (new IntField(left[i]).compare(op, new IntField(right[j]))) {
+                    out.addAll(Arrays.asList(left[i], left[i + 1], right[j], right[j + 1]));
+                }
+            }
+        }
+        int[] data = new int[out.size()];
+        for (int i = 0; i < data.length; i++)
+            data[i] = out.get(i);
+        return data;
+    }
+
+    /**
+     * Unit test for the hash join when the build side fits in memory.
+     */
+    @Test public void hashJoinInMemory() throws Exception {
+        int[] left = TestUtil.randomPairs(r, 500, 0, 100);
+        int[] right = TestUtil.randomPairs(r, 700, 0, 100);
+        Join j = new Join(new JoinPredicate(0, Predicate.Op.EQUALS, 0),
+                TestUtil.createTupleList(2, left), TestUtil.createTupleList(2, right));
+        TestUtil.matchAllTuples(4, expectedJoin(left, right, Predicate.Op.EQUALS), j);
+    }
+
+    /**
+     * Unit test for the hash join when the build side has to be spilled to
+     * disk and (because of the skewed keys) partitioned more than once.
+     */
+    @Test public void hashJoinSpills() throws Exception {
+        Database.resetMemoryManager(20 * MemoryManager.estimateSize(Utility.getTupleDesc(2)));
+        int[] left = TestUtil.randomPairs(r, 1000, 0, 50);
+        int[] right = TestUtil.randomPairs(r, 300, 0, 60);
+        Join j = new Join(new JoinPredicate(0, Predicate.Op.EQUALS, 0),
+                TestUtil.createTupleList(2, left), TestUtil.createTupleList(2, right));
+        int[] expected = expectedJoin(left, right, Predicate.Op.EQUALS);
+        TestUtil.matchAllTuples(4, expected, j);
+        // a second run over the same operator sees the same result
+        TestUtil.matchAllTuples(4, expected, j);
+        assertEquals(Database.getMemoryManager().getCapacity(),
+                Database.getMemoryManager().available());
+    }
+
+    /**
+     * Unit test for the Bloom filter the hash join pushes into a SeqScan on
+     * its probe side: while the join is open the scan drops most tuples whose
+     * key is not in child1, the result is unchanged, and the scan returns all
+     * of its tuples again once the join is closed.
+     */
+    @Test public void hashJoinRuntimeFilter() throws Exception {
+        ArrayList<ArrayList<Integer>> rows = new ArrayList<ArrayList<Integer>>();
+        HeapFile f = SystemTestUtil.createRandomHeapFile(2, 2000, 1000, null, rows);
+        Database.getCatalog().addTable(f, SystemTestUtil.getUUID());
+        int[] right = new int[rows.size() * 2];
+        for (int i = 0; i < rows.size(); i++) {
+            right[2 * i] = rows.get(i).get(0);
+            right[2 * i + 1] = rows.get(i).get(1);
+        }
+        int[] left = TestUtil.randomPairs(r, 100, 0, 50);
+        HashSet<Integer> leftKeys = new HashSet<Integer>();
+        for (int i = 0; i < left.length; i += 2)
+            leftKeys.add(left[i]);
+        int matching = 0;
+        for (int i = 0; i < right.length; i += 2)
+            if (leftKeys.contains(right[i]))
+                matching++;
+
+        TransactionId tid = new TransactionId();
+        SeqScan scan = new SeqScan(tid, f.getId());
+        Join j = new Join(new JoinPredicate(0, Predicate.Op.EQUALS, 0),
+                TestUtil.createTupleList(2, left), scan);
+        j.open();
+        assertSame(scan, j.filteredScan);
+        int rejected = 0;
+        for (int key = 1000; key < 1100; key++)
+            if (!j.bloom.mightContain(new IntField(key)))
+                rejected++;
+        assertTrue(rejected > 90);
+        int scanned = 0;
+        scan.rewind();
+        while (scan.hasNext()) {
+            scan.next();
+            scanned++;
+        }
+        assertTrue(scanned >= matching);
+        assertTrue("the scan returned " + scanned + " of " + rows.size() + " tuples",
+                scanned < rows.size() / 4);
+        j.close();
+        TestUtil.matchAllTuples(4, expectedJoin(left, right, Predicate.Op.EQUALS), j);
+        TestUtil.matchAllTuples(2, right, scan);
+        Database.getBufferPool().transactionComplete(tid);
+    }
+
+    /**
+     * Unit test for the block nested loops join when child1 spans several
+     * blocks, so child2 has to be rewound between them.
+     */
+    @Test public void blockNestedLoopsJoin() throws Exception {
+        int[] left = TestUtil.randomPairs(r, 1200, 0, 100);
+        int[] right = TestUtil.randomPairs(r, 20, 0, 100);
+        Join j = new Join(new JoinPredicate(0, Predicate.Op.GREATER_THAN, 0),
+                TestUtil.createTupleList(2, left), TestUtil.createTupleList(2, right), 1);
+        assertEquals(true, j.blockSize() < 1200);
+        int[] expected = expectedJoin(left, right, Predicate.Op.GREATER_THAN);
+        TestUtil.matchAllTuples(4, expected, j);
+        TestUtil.matchAllTuples(4, expected, j);
+    }
+
+    /**
+     * Unit test for SortMergeJoin with every predicate it supports, sorting
+     * one input itself and taking the other already sorted.
+     */
+    @Test public void sortMergeJoin() throws Exception {
+        Predicate.Op[] ops = new Predicate.Op[] { Predicate.Op.EQUALS,
+                Predicate.Op.LESS_THAN, Predicate.Op.LESS_THAN_OR_EQ,
+                Predicate.Op.GREATER_THAN, Predicate.Op.GREATER_THAN_OR_EQ,
+                Predicate.Op.NOT_EQUALS };
+        int[] left = TestUtil.randomPairs(r, 100, 0, 40);
+        int[] right = TestUtil.randomPairs(r, 60, 0, 40);
+        for (Predicate.Op op : ops) {
+            DbIterator sortedRight = new OrderBy(0, true, TestUtil.createTupleList(2, right));
+            SortMergeJoin j = new SortMergeJoin(new JoinPredicate(0, op, 0),
+                    TestUtil.createTupleList(2, left), sortedRight);
+            assertEquals(sortedRight, j.getChildren()[1]);
+            int[] expected = expectedJoin(left, right, op);
+            TestUtil.matchAllTuples(4, expected, j);
+            TestUtil.matchAllTuples(4, expected, j);
+        }
+    }
+
+    /**
+     * Unit test for SortMergeJoin with inequality predicates when child2 does
+     * not fit in memory: it is merged in blocks and the memory it reserves
+     * stays within the budget.
+     */
+    @Test public void sortMergeJoinBlocks() throws Exception {
+        Database.resetMemoryManager(40 * MemoryManager.estimateSize(Utility.getTupleDesc(2)));
+        Predicate.Op[] ops = new Predicate.Op[] { Predicate.Op.LESS_THAN,
+                Predicate.Op.GREATER_THAN_OR_EQ, Predicate.Op.NOT_EQUALS };
+        int[] left = TestUtil.randomPairs(r, 40, 0, 30);
+        int[] right = TestUtil.randomPairs(r, 150, 0, 30);
+        for (Predicate.Op op : ops) {
+            SortMergeJoin j = new SortMergeJoin(new JoinPredicate(0, op, 0),
+                    TestUtil.createTupleList(2, left), TestUtil.createTupleList(2, right),
+                    false, false);
+            int[] expected = expectedJoin(left, right, op);
+            j.open();
+            assertEquals(true, j.right.size() < 150);
+            j.close();
+            TestUtil.matchAllTuples(4, expected, j);
+            TestUtil.matchAllTuples(4, expected, j);
+            assertEquals(Database.getMemoryManager().getCapacity(),
+                    Database.getMemoryManager().available());
+        }
+    }
+
+    /**
+     * JUnit suite target
+     */
+    public static junit.framework.Test suite() {
+        return new JUnit4TestAdapter(JoinTest.class);
+    }
+}
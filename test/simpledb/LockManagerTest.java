@@ -0,0 +1,279 @@
+package simpledb;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import junit.framework.JUnit4TestAdapter;
+
+import org.junit.Test;
+
+import simpledb.systemtest.SimpleDbTestBase;
+
+public class LockManagerTest extends SimpleDbTestBase {
+
+    private final PageId p0 = new HeapPageId(1, 0);
+    private final PageId p1 = new HeapPageId(1, 1);
+
+    /** Requests a lock on another thread; granted counts down once it is held. */
+    private static class Acquirer extends Thread {
+        final LockManager lm;
+        final TransactionId tid;
+        final PageId pid;
+        final Permissions perm;
+        final CountDownLatch granted = new CountDownLatch(1);
+        volatile Exception error;
+
+        Acquirer(LockManager lm, TransactionId tid, PageId pid, Permissions perm) {
+            this.lm = lm;
+            this.tid = tid;
+            this.pid = pid;
+            this.perm = perm;
+            setDaemon(true);
+            start();
+        }
+
+        public void run() {
+            try {
+                lm.acquireLock(tid, pid, perm);
+                granted.countDown();
+            } catch (Exception e) {
+                error = e;
+            }
+        }
+
+        boolean waitGranted(long millis) throws InterruptedException {
+            return granted.await(millis, TimeUnit.MILLISECONDS);
+        }
+    }
+
+    /**
+     * Unit test for queued requests: readers share the lock, a writer waits
+     * for them, and a reader that arrives after the writer waits behind it.
+     */
+    @Test public void fifoQueue() throws Exception {
+        LockManager lm = new LockManager();
+        TransactionId t1 = new TransactionId();
+        TransactionId t2 = new TransactionId();
+        TransactionId t3 = new TransactionId();
+        TransactionId t4 = new TransactionId();
+        lm.acquireLock(t1, p0, Permissions.READ_ONLY);
+        lm.acquireLock(t2, p0, Permissions.READ_ONLY);
+
+        Acquirer writer = new Acquirer(lm, t3, p0, Permissions.READ_WRITE);
+        assertFalse(writer.waitGranted(50));
+        Acquirer reader = new Acquirer(lm, t4, p0, Permissions.READ_ONLY);
+        assertFalse(reader.waitGranted(50));
+
+        lm.releaseAllLocks(t1);
+        assertFalse(writer.waitGranted(50));
+        lm.releaseLock(t2, p0);
+        assertTrue(writer.waitGranted(1000));
+        assertTrue(lm.holdsLock(t3, p0));
+        assertFalse(reader.waitGranted(50));
+
+        lm.releaseAllLocks(t3);
+        assertTrue(reader.waitGranted(1000));
+        assertTrue(lm.holdsLock(t4, p0));
+    }
+
+    /**
+     * Unit test for an upgrade from S to X, which is granted before a writer
+     * that asked earlier.
+     */
+    @Test public void upgrade() throws Exception {
+        LockManager lm = new LockManager();
+        TransactionId t1 = new TransactionId();
+        TransactionId t2 = new TransactionId();
+        TransactionId t3 = new TransactionId();
+        lm.acquireLock(t1, p0, Permissions.READ_ONLY);
+        lm.acquireLock(t2, p0, Permissions.READ_ONLY);
+
+        Acquirer writer = new Acquirer(lm, t3, p0, Permissions.READ_WRITE);
+        assertFalse(writer.waitGranted(50));
+        Acquirer upgrader = new Acquirer(lm, t1, p0, Permissions.READ_WRITE);
+        assertFalse(upgrader.waitGranted(50));
+
+        lm.releaseAllLocks(t2);
+        assertTrue(upgrader.waitGranted(1000));
+        assertFalse(writer.waitGranted(50));
+        lm.releaseAllLocks(t1);
+        assertTrue(writer.waitGranted(1000));
+    }
+
+    /**
+     * Unit test for deadlock detection: two transactions that wait for each
+     * other's X lock, of which the younger one is aborted.
+     */
+    @Test public void deadlock() throws Exception {
+        LockManager lm = new LockManager();
+        TransactionId older = new TransactionId();
+        TransactionId younger = new TransactionId();
+        lm.acquireLock(older, p0, Permissions.READ_WRITE);
+        lm.acquireLock(younger, p1, Permissions.READ_WRITE);
+
+        Acquirer a = new Acquirer(lm, older, p1, Permissions.READ_WRITE);
+        assertFalse(a.waitGranted(50));
+        Acquirer b = new Acquirer(lm, younger, p0, Permissions.READ_WRITE);
+        b.join(1000);
+        assertTrue(b.error instanceof DeadlockException);
+        assertEquals(1, lm.getDeadlockCount());
+        assertFalse(a.waitGranted(50));
+
+        // the victim aborts, releasing its locks
+        lm.releaseAllLocks(younger);
+        assertTrue(a.waitGranted(1000));
+        assertTrue(lm.holdsLock(older, p1));
+    }
+
+    /**
+     * Unit test for intention locks and escalation: a transaction reading
+     * many pages of a table ends up with an S lock on the table, which lets
+     * others read its pages but not write them; writing a page then takes
+     * SIX on the table.
+     */
+    @Test public void escalation() throws Exception {
+        LockManager lm = new LockManager();
+        lm.setEscalationThreshold(8);
+        TransactionId t1 = new TransactionId();
+        TransactionId t2 = new TransactionId();
+        for (int p = 0; p < 8; p++)
+            lm.acquireLock(t1, new HeapPageId(1, p), Permissions.READ_ONLY);
+        assertEquals(1, lm.getEscalationCount());
+        assertTrue(lm.holdsLock(t1, new HeapPageId(1, 15)));
+
+        lm.acquireLock(t2, new HeapPageId(1, 20), Permissions.READ_ONLY);
+        Acquirer writer = new Acquirer(lm, t2, new HeapPageId(1, 20), Permissions.READ_WRITE);
+        assertFalse(writer.waitGranted(50));
+
+        lm.acquireLock(t1, new HeapPageId(1, 3), Permissions.READ_WRITE);
+        assertTrue(lm.holdsLock(t1, new HeapPageId(1, 3)));
+        assertFalse(writer.waitGranted(50));
+
+        lm.releaseAllLocks(t1);
+        assertTrue(writer.waitGranted(1000));
+        assertFalse(lm.holdsLock(t1, new HeapPageId(1, 15)));
+        assertEquals(0, lm.getDeadlockCount());
+    }
+
+    /**
+     * Unit test for row locks: writers of different tuples of a page do not
+     * conflict, writers of one tuple do, and a page lock waits for both.
+     */
+    @Test public void rowLocks() throws Exception {
+        LockManager lm = new LockManager();
+        TransactionId t1 = new TransactionId();
+        TransactionId t2 = new TransactionId();
+        TransactionId t3 = new TransactionId();
+        lm.acquireRowLock(t1, new RecordId(p0, 0), Permissions.READ_WRITE);
+        lm.acquireRowLock(t2, new RecordId(p0, 1), Permissions.READ_WRITE);
+        assertFalse(lm.tryAcquireRowLock(t2, new RecordId(p0, 0), Permissions.READ_WRITE));
+        assertFalse(lm.holdsLock(t1, p0));
+
+        Acquirer reader = new Acquirer(lm, t3, p0, Permissions.READ_ONLY);
+        assertFalse(reader.waitGranted(50));
+        lm.releaseAllLocks(t1);
+        assertFalse(reader.waitGranted(50));
+        lm.releaseAllLocks(t2);
+        assertTrue(reader.waitGranted(1000));
+    }
+
+    /**
+     * Unit test for lock wait limits: under NO_WAIT a conflicting request
+     * fails at once, a positive limit fails after about that long, and
+     * neither leaves the request queued.
+     */
+    @Test public void lockWait() throws Exception {
+        LockManager lm = new LockManager();
+        TransactionId t1 = new TransactionId();
+        TransactionId t2 = new TransactionId();
+        lm.acquireLock(t1, p0, Permissions.READ_WRITE);
+
+        lm.setLockWait(t2, LockManager.NO_WAIT);
+        long start = System.currentTimeMillis();
+        try {
+            lm.acquireLock(t2, p0, Permissions.READ_ONLY);
+            fail("NO_WAIT waited for a lock");
+        } catch (LockTimeoutException e) {
+            assertTrue(System.currentTimeMillis() - start < 50);
+        }
+
+        lm.setLockWait(t2, 100);
+        start = System.currentTimeMillis();
+        try {
+            lm.acquireLock(t2, p0, Permissions.READ_ONLY);
+            fail("a lock wait did not time out");
+        } catch (LockTimeoutException e) {
+            assertTrue(System.currentTimeMillis() - start >= 100);
+        }
+        assertEquals(2, lm.getTimeoutCount());
+
+        lm.releaseAllLocks(t1);
+        lm.acquireLock(t2, p0, Permissions.READ_WRITE);
+        assertTrue(lm.holdsLock(t2, p0));
+        assertEquals(100, lm.getLockWait(t2));
+        lm.releaseAllLocks(t2);
+        assertEquals(LockManager.WAIT_FOREVER, lm.getLockWait(t2));
+    }
+
+    /**
+     * Multi-threaded test: transactions on their own threads repeatedly take
+     * shared locks on many pages and X locks on private ones, then release
+     * them, as a committing transaction does. All of them finish within a
+     * generous bound, so that contention on the lock table shows up as a
+     * failure rather than a slow run.
+     */
+    @Test public void concurrentAcquire() throws Exception {
+        final LockManager lm = new LockManager();
+        final int threads = 8, rounds = 200, pages = 64;
+        final AtomicInteger failures = new AtomicInteger();
+        Thread[] ts = new Thread[threads];
+        for (int i = 0; i < threads; i++) {
+            final int table = i + 2;
+            ts[i] = new Thread() {
+                public void run() {
+                    try {
+                        for (int n = 0; n < rounds; n++) {
+                            TransactionId tid = new TransactionId();
+                            for (int p = 0; p < pages; p++) {
+                                lm.acquireLock(tid, new HeapPageId(1, p), Permissions.READ_ONLY);
+                                lm.acquireLock(tid, new HeapPageId(table, p), Permissions.READ_WRITE);
+                            }
+                            if (!lm.holdsLock(tid, new HeapPageId(1, pages - 1)))
+                                failures.incrementAndGet();
+                            lm.releaseAllLocks(tid);
+                        }
+                    } catch (Exception e) {
+                        failures.incrementAndGet();
+                    }
+                }
+            };
+        }
+        long deadline = System.currentTimeMillis() + 30000;
+        for (Thread t : ts)
+            t.start();
+        for (Thread t : ts) {
+            t.join(Math.max(1, deadline - System.currentTimeMillis()));
+            assertFalse("lock acquisitions did not finish in time", t.isAlive());
+        }
+        assertEquals(0, failures.get());
+        // every lock was released: a writer gets the shared pages at once
+        TransactionId writer = new TransactionId();
+        for (int p = 0; p < pages; p++)
+            assertTrue(new Acquirer(lm, writer, new HeapPageId(1, p),
+                    Permissions.READ_WRITE).waitGranted(1000));
+        assertEquals(0, lm.getDeadlockCount());
+    }
+
+    /**
+     * JUnit suite target
+     */
+    public static junit.framework.Test suite() {
+        return new JUnit4TestAdapter(LockManagerTest.class);
+    }
+}
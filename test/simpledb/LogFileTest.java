@@ -0,0 +1,225 @@
+package simpledb;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import java.io.File;
+import java.io.RandomAccessFile;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import junit.framework.JUnit4TestAdapter;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import simpledb.systemtest.SimpleDbTestBase;
+import simpledb.systemtest.SystemTestUtil;
+
+public class LogFileTest extends SimpleDbTestBase {
+
+    private File f;
+    private LogFile log;
+
+    @Before public void setUp() throws Exception {
+        f = File.createTempFile("simpledb-log", ".dat");
+        f.deleteOnExit();
+        log = new LogFile(f);
+    }
+
+    @After public void tearDown() throws Exception {
+        log.raf.close();
+        f.delete();
+    }
+
+    /** Begins and commits rounds transactions on each of threads threads. */
+    private void commitAll(int threads, final int rounds) throws Exception {
+        final AtomicInteger failures = new AtomicInteger();
+        Thread[] ts = new Thread[threads];
+        for (int i = 0; i < threads; i++) {
+            ts[i] = new Thread() {
+                public void run() {
+                    try {
+                        for (int n = 0; n < rounds; n++) {
+                            TransactionId tid = new TransactionId();
+                            log.logXactionBegin(tid);
+                            log.logCommit(tid);
+                        }
+                    } catch (Exception e) {
+                        failures.incrementAndGet();
+                    }
+                }
+            };
+        }
+        for (Thread t : ts)
+            t.start();
+        for (Thread t : ts)
+            t.join(60000);
+        assertEquals(0, failures.get());
+    }
+
+    /**
+     * Unit test for group commit: a single committer forces the log once
+     * per commit, while concurrent committers share forces.
+     */
+    @Test public void groupCommit() throws Exception {
+        log.setMaxCommitDelay(0);
+        commitAll(1, 20);
+        assertEquals(20, log.getForceCount());
+
+        log.setMaxCommitDelay(LogFile.DEFAULT_MAX_COMMIT_DELAY);
+        int threads = 16, rounds = 50;
+        commitAll(threads, rounds);
+        long forces = log.getForceCount() - 20;
+        assertTrue(forces < threads * rounds);
+        assertEquals(20 * 2 + threads * rounds * 2, log.getTotalRecords());
+    }
+
+    /**
+     * Unit test for the log buffer: records get increasing LSNs, stay in
+     * memory until the log is forced, and an insert record reads back as
+     * the slot change it logged.
+     */
+    @Test public void lsns() throws Exception {
+        HeapFile hf = SystemTestUtil.createRandomHeapFile(2, 20, null, null);
+        HeapPage page = (HeapPage) hf.readPage(new HeapPageId(hf.getId(), 0));
+        RecordId rid = new RecordId(page.getId(), 3);
+        byte[] tuple = page.slotData(3);
+        TransactionId tid = new TransactionId();
+
+        long begin = log.logXactionBegin(tid);
+        long insert = log.logInsert(tid, rid, tuple);
+        assertEquals(begin + 1 + 2 * LogFile.LONG_SIZE, insert);
+        int slot = 4 * LogFile.INT_SIZE + tuple.length;
+        assertEquals(insert + 1 + 2 * LogFile.LONG_SIZE + slot, log.getCurrentLsn());
+        assertEquals(0, log.getFlushedLsn());
+
+        long commit = log.logCommit(tid);
+        assertEquals(insert + 1 + 2 * LogFile.LONG_SIZE + slot, commit);
+        assertEquals(log.getCurrentLsn(), log.getForcedLsn());
+        assertEquals(log.getCurrentLsn(), f.length());
+
+        RandomAccessFile raf = new RandomAccessFile(f, "r");
+        raf.seek(insert);
+        assertEquals(LogFile.INSERT_RECORD, raf.readByte());
+        assertEquals(tid.getId(), raf.readLong());
+        LogFile.SlotRecord record = new LogFile.SlotRecord(LogFile.INSERT_RECORD, tid.getId(), raf);
+        assertEquals(page.getId(), record.pid);
+        assertEquals(3, record.slot);
+        assertTrue(Arrays.equals(tuple, record.tuple));
+        raf.close();
+
+        // a checkpoint truncates the log, but LSNs keep growing
+        long end = log.getCurrentLsn();
+        log.logCheckpoint();
+        assertTrue(log.getCurrentLsn() > end);
+        assertTrue(f.length() < end);
+        assertEquals(log.getCurrentLsn(), log.getFlushedLsn());
+    }
+
+    /** @return the number of used slots of page 0 of hf on disk */
+    private int usedOnDisk(HeapFile hf) {
+        HeapPage p = (HeapPage) hf.readPage(new HeapPageId(hf.getId(), 0));
+        int used = 0;
+        for (int i = 0; i < p.numSlots; i++)
+            if (p.isSlotUsed(i))
+                used++;
+        return used;
+    }
+
+    /**
+     * Unit test for slot records: they are a small fraction of a page, an
+     * abort undoes changes its transaction had flushed, and recovery redoes
+     * committed changes and undoes those of unfinished transactions.
+     */
+    @Test public void slotRecords() throws Exception {
+        HeapFile hf = SystemTestUtil.createRandomHeapFile(2, 20, null, null);
+        BufferPool bp = Database.getBufferPool();
+        LogFile dblog = Database.getLogFile();
+        Tuple t = new Tuple(Utility.getTupleDesc(2));
+        t.setField(0, new IntField(1));
+        t.setField(1, new IntField(2));
+
+        Transaction inserter = new Transaction();
+        inserter.start();
+        long before = dblog.getCurrentLsn();
+        bp.insertTuple(inserter.getId(), hf.getId(), t);
+        assertTrue(dblog.getCurrentLsn() - before < 64);
+        inserter.commit();
+        assertEquals(21, usedOnDisk(hf));
+
+        // an abort after the changes reached disk
+        Transaction aborter = new Transaction();
+        aborter.start();
+        bp.deleteTuple(aborter.getId(), t);
+        bp.flushPages(aborter.getId());
+        assertEquals(20, usedOnDisk(hf));
+        aborter.abort();
+        assertEquals(21, usedOnDisk(hf));
+
+        // a crash after an unfinished transaction flushed its changes
+        Transaction loser = new Transaction();
+        loser.start();
+        bp.deleteTuple(loser.getId(), t);
+        bp.insertTuple(loser.getId(), hf.getId(), t);
+        bp.insertTuple(loser.getId(), hf.getId(), t);
+        bp.flushPages(loser.getId());
+        assertEquals(22, usedOnDisk(hf));
+        Database.resetBufferPool(BufferPool.DEFAULT_PAGES);
+        File dbf = new File("log");
+        LogFile recovered = new LogFile(dbf);
+        recovered.recover();
+        assertEquals(21, usedOnDisk(hf));
+        // recovering again changes nothing
+        new LogFile(dbf).recover();
+        assertEquals(21, usedOnDisk(hf));
+    }
+
+    /**
+     * Unit test for recovery after a crash in the middle of appending a
+     * record: the torn record is cut off, so the ABORTs recovery appends for
+     * unfinished transactions are read back by the next recovery.
+     */
+    @Test public void tornTail() throws Exception {
+        HeapFile hf = SystemTestUtil.createRandomHeapFile(2, 20, null, null);
+        BufferPool bp = Database.getBufferPool();
+        Tuple t = new Tuple(Utility.getTupleDesc(2));
+        t.setField(0, new IntField(1));
+        t.setField(1, new IntField(2));
+
+        Transaction loser = new Transaction();
+        loser.start();
+        bp.insertTuple(loser.getId(), hf.getId(), t);
+        bp.flushPages(loser.getId());
+        assertEquals(21, usedOnDisk(hf));
+
+        // the crash leaves the first bytes of a record behind
+        Database.resetBufferPool(BufferPool.DEFAULT_PAGES);
+        File dbf = new File("log");
+        RandomAccessFile raf = new RandomAccessFile(dbf, "rw");
+        long end = raf.length();
+        raf.seek(end);
+        raf.writeByte(LogFile.INSERT_RECORD);
+        raf.writeInt(0);
+        raf.close();
+
+        LogFile recovered = new LogFile(dbf);
+        recovered.recover();
+        assertEquals(20, usedOnDisk(hf));
+        HashMap<Long,Integer> outcomes = new HashMap<Long,Integer>();
+        recovered.readSlotRecords(LogFile.LONG_SIZE, outcomes);
+        assertEquals(Integer.valueOf(LogFile.ABORT_RECORD), outcomes.get(loser.getId().getId()));
+        assertEquals(dbf.length(), recovered.recordsEnd);
+        assertTrue(dbf.length() > end);
+        recovered.raf.close();
+    }
+
+    /**
+     * JUnit suite target
+     */
+    public static junit.framework.Test suite() {
+        return new JUnit4TestAdapter(LogFileTest.class);
+    }
+}
@@ -0,0 +1,80 @@
+package simpledb;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+
+import java.util.ArrayList;
+
+import junit.framework.JUnit4TestAdapter;
+
+import org.junit.Test;
+
+import simpledb.systemtest.SimpleDbTestBase;
+import simpledb.systemtest.SystemTestUtil;
+
+public class LogicalPlanTest extends SimpleDbTestBase {
+
+    /** Add the SeqScans in plan to scans */
+    private void findScans(DbIterator plan, ArrayList<SeqScan> scans) {
+        if (plan instanceof SeqScan) {
+            scans.add((SeqScan) plan);
+        } else if (plan instanceof Operator) {
+            for (DbIterator child : ((Operator) plan).getChildren())
+                findScans(child, scans);
+        }
+    }
+
+    /**
+     * Unit test for the pushdown of filters and of the fields used by a
+     * query into the scans of its physical plan.
+     */
+    @Test public void scanPushdown() throws Exception {
+        ArrayList<ArrayList<Integer>> rows1 = new ArrayList<ArrayList<Integer>>();
+        ArrayList<ArrayList<Integer>> rows2 = new ArrayList<ArrayList<Integer>>();
+        HeapFile f1 = SystemTestUtil.createRandomHeapFile(4, 300, 40, null, rows1, "c");
+        HeapFile f2 = SystemTestUtil.createRandomHeapFile(3, 200, 40, null, rows2, "c");
+        Database.getCatalog().addTable(f1, "t1");
+        Database.getCatalog().addTable(f2, "t2");
+        TableStats.computeStatistics();
+
+        TransactionId tid = new TransactionId();
+        LogicalPlan lp = new Parser().generateLogicalPlan(tid,
+                "SELECT t1.c1, t2.c2 FROM t1, t2 WHERE t1.c0 = t2.c0 AND t1.c3 < 20;");
+        DbIterator plan = lp.physicalPlan(tid, TableStats.getStatsMap(), false);
+
+        ArrayList<SeqScan> scans = new ArrayList<SeqScan>();
+        findScans(plan, scans);
+        assertEquals(2, scans.size());
+        for (SeqScan scan : scans) {
+            if (scan.getAlias().equals("t1")) {
+                // c3 is only filtered on, inside the scan
+                assertArrayEquals(new int[] { 0, 1 }, scan.getOutputFields());
+                assertEquals(1, scan.getPredicates().size());
+            } else {
+                assertArrayEquals(new int[] { 0, 2 }, scan.getOutputFields());
+                assertEquals(0, scan.getPredicates().size());
+            }
+        }
+
+        ArrayList<ArrayList<Integer>> expected = new ArrayList<ArrayList<Integer>>();
+        for (ArrayList<Integer> r1 : rows1) {
+            for (ArrayList<Integer> r2 : rows2) {
+                if (r1.get(0).equals(r2.get(0)) && r1.get(3) < 20) {
+                    ArrayList<Integer> out = new ArrayList<Integer>();
+                    out.add(r1.get(1));
+                    out.add(r2.get(2));
+                    expected.add(out);
+                }
+            }
+        }
+        SystemTestUtil.matchTuples(plan, expected);
+        Database.getBufferPool().transactionComplete(tid);
+    }
+
+    /**
+     * JUnit suite target
+     */
+    public static junit.framework.Test suite() {
+        return new JUnit4TestAdapter(LogicalPlanTest.class);
+    }
+}
@@ -0,0 +1,210 @@
+package simpledb;
+
+import static org.junit.Assert.assertEquals;
+
+import java.io.ByteArrayInputStream;
+import java.io.InputStream;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.Random;
+
+import junit.framework.JUnit4TestAdapter;
+
+import org.junit.Test;
+
+import simpledb.systemtest.SimpleDbTestBase;
+
+public class OrderByTest extends SimpleDbTestBase {
+
+    private final Random r = new Random(20160302);
+
+    /** @return the keys of data in the order OrderBy should return them */
+    private ArrayList<Integer> sortedKeys(int[] data, boolean asc) {
+        ArrayList<Integer> keys = new ArrayList<Integer>();
+        for (int i = 0; i < data.length; i += 2)
+            keys.add(data[i]);
+        Collections.sort(keys);
+        if (!asc)
+            Collections.reverse(keys);
+        return keys;
+    }
+
+    /** @return the keys returned by it, and check that no row went missing */
+    private ArrayList<Integer> drainKeys(DbIterator it, int rows) throws Exception {
+        ArrayList<Integer> keys = new ArrayList<Integer>();
+        boolean[] seen = new boolean[rows];
+        while (it.hasNext()) {
+            Tuple t = it.next();
+            keys.add(((IntField) t.getField(0)).getValue());
+            seen[((IntField) t.getField(1)).getValue()] = true;
+        }
+        for (boolean s : seen)
+            assertEquals(true, s);
+        return keys;
+    }
+
+    /**
+     * Unit test for an OrderBy whose input fits in memory, including
+     * rewinding and reopening it.
+     */
+    @Test public void inMemory() throws Exception {
+        int[] data = TestUtil.randomPairs(r, 500, -500, 500);
+        OrderBy ob = new OrderBy(0, false, TestUtil.createTupleList(2, data));
+        ob.open();
+        assertEquals(sortedKeys(data, false), drainKeys(ob, 500));
+        ob.rewind();
+        assertEquals(sortedKeys(data, false), drainKeys(ob, 500));
+        ob.close();
+        ob.open();
+        assertEquals(sortedKeys(data, false), drainKeys(ob, 500));
+        ob.close();
+    }
+
+    /**
+     * Unit test for the external merge sort, with more runs than are merged
+     * in one pass.
+     */
+    @Test public void externalSort() throws Exception {
+        Database.resetMemoryManager(20 * MemoryManager.estimateSize(Utility.getTupleDesc(2)));
+        int rows = 20 * (OrderBy.MAX_MERGE_WIDTH + 10);
+        int[] data = TestUtil.randomPairs(r, rows, -500, 500);
+        OrderBy ob = new OrderBy(0, true, TestUtil.createTupleList(2, data));
+        ob.open();
+        assertEquals(sortedKeys(data, true), drainKeys(ob, rows));
+        ob.rewind();
+        assertEquals(sortedKeys(data, true), drainKeys(ob, rows));
+        ob.close();
+        assertEquals(Database.getMemoryManager().getCapacity(),
+                Database.getMemoryManager().available());
+    }
+
+    /**
+     * Unit test for sorting on a string field descending and then an int
+     * field ascending, with OrderBy and with TopN.
+     */
+    @Test public void multipleKeys() throws Exception {
+        int rows = 1000;
+        Object[] data = new Object[rows * 2];
+        ArrayList<String> expected = new ArrayList<String>();
+        for (int i = 0; i < rows; i++) {
+            data[2 * i] = "k" + r.nextInt(7);
+            data[2 * i + 1] = r.nextInt(100) - 50;
+            expected.add(data[2 * i] + "\t" + data[2 * i + 1]);
+        }
+        Collections.sort(expected, new Comparator<String>() {
+            public int compare(String a, String b) {
+                String[] fa = a.split("\t"), fb = b.split("\t");
+                int c = fb[0].compareTo(fa[0]);
+                if (c != 0)
+                    return c;
+                return Integer.compare(Integer.parseInt(fa[1]), Integer.parseInt(fb[1]));
+            }
+        });
+        int[] fields = new int[] { 0, 1 };
+        boolean[] asc = new boolean[] { false, true };
+        DbIterator[] sorts = new DbIterator[] {
+                new OrderBy(fields, asc, TestUtil.createTupleList(2, data)),
+                new TopN(fields, asc, 100, TestUtil.createTupleList(2, data)) };
+        for (DbIterator sort : sorts) {
+            ArrayList<String> actual = new ArrayList<String>();
+            sort.open();
+            while (sort.hasNext()) {
+                Tuple t = sort.next();
+                actual.add(((StringField) t.getField(0)).getValue() + "\t"
+                        + ((IntField) t.getField(1)).getValue());
+            }
+            sort.close();
+            assertEquals(expected.subList(0, actual.size()), actual);
+        }
+    }
+
+    /**
+     * Unit test for sorts run in parallel, with and without normalized keys.
+     */
+    @Test public void parallelSort() throws Exception {
+        int threshold = OrderBy.getParallelThreshold();
+        OrderBy.setParallelThreshold(100);
+        try {
+            int[] data = TestUtil.randomPairs(r, 5000, -500, 500);
+            OrderBy ob = new OrderBy(0, true, TestUtil.createTupleList(2, data));
+            ob.open();
+            assertEquals(sortedKeys(data, true), drainKeys(ob, 5000));
+            ob.close();
+            ob = new OrderBy(new int[] { 0, 1 }, new boolean[] { false, false },
+                    TestUtil.createTupleList(2, data));
+            ob.open();
+            assertEquals(sortedKeys(data, false), drainKeys(ob, 5000));
+            ob.close();
+        } finally {
+            OrderBy.setParallelThreshold(threshold);
+        }
+    }
+
+    /**
+     * Unit test for TopN, which should return a prefix of what OrderBy
+     * returns.
+     */
+    @Test public void topN() throws Exception {
+        int[] data = TestUtil.randomPairs(r, 2000, -500, 500);
+        for (int limit : new int[] { 0, 1, 10, 2000, 5000 }) {
+            TopN top = new TopN(0, false, limit, TestUtil.createTupleList(2, data));
+            ArrayList<Integer> expected = sortedKeys(data, false);
+            top.open();
+            ArrayList<Integer> keys = new ArrayList<Integer>();
+            while (top.hasNext())
+                keys.add(((IntField) top.next().getField(0)).getValue());
+            assertEquals(expected.subList(0, Math.min(limit, 2000)), keys);
+            top.rewind();
+            int n = 0;
+            for (; top.hasNext(); n++)
+                top.next();
+            assertEquals(keys.size(), n);
+            top.close();
+        }
+        assertEquals(Database.getMemoryManager().getCapacity(),
+                Database.getMemoryManager().available());
+    }
+
+    /**
+     * Unit test for Limit, and for how Parser finds LIMIT clauses.
+     */
+    @Test public void limit() throws Exception {
+        Limit l = new Limit(3, TestUtil.createTupleList(2, TestUtil.randomPairs(r, 10, -500, 500)));
+        l.open();
+        int n = 0;
+        for (; l.hasNext(); n++)
+            l.next();
+        assertEquals(3, n);
+        l.close();
+
+        assertEquals(10, Parser.getLimit("select * from t order by t.a limit 10;"));
+        assertEquals("select * from t order by t.a;",
+                Parser.stripLimit("select * from t order by t.a LIMIT 10 ;"));
+        assertEquals(-1, Parser.getLimit("select * from t;"));
+        assertEquals("select * from t;", Parser.stripLimit("select * from t;"));
+    }
+
+    /**
+     * Unit test for reading statements one at a time: a LIMIT clause is only
+     * looked for in its own statement, and the rest of the stream stays
+     * unread.
+     */
+    @Test public void readStatement() throws Exception {
+        InputStream in = new ByteArrayInputStream(
+                "select * from t where t.s = 'a;b';\nselect * from t limit 5;\n".getBytes("UTF-8"));
+        String first = Parser.readStatement(in);
+        assertEquals("select * from t where t.s = 'a;b';", first);
+        assertEquals(-1, Parser.getLimit(first));
+        String second = Parser.readStatement(in);
+        assertEquals(5, Parser.getLimit(second));
+        assertEquals(null, Parser.readStatement(in));
+    }
+
+    /**
+     * JUnit suite target
+     */
+    public static junit.framework.Test suite() {
+        return new JUnit4TestAdapter(OrderByTest.class);
+    }
+}
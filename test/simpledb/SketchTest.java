@@ -0,0 +1,129 @@
+package simpledb;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import java.util.ArrayList;
+import java.util.Collections;
+
+import junit.framework.JUnit4TestAdapter;
+
+import org.junit.Test;
+
+import simpledb.systemtest.SimpleDbTestBase;
+
+public class SketchTest extends SimpleDbTestBase {
+
+    private void assertWithin(double expected, double actual, double error) {
+        assertTrue("expected " + expected + " +/- " + (error * 100) + "%, got " + actual,
+                Math.abs(actual - expected) <= error * expected);
+    }
+
+    /**
+     * Unit test for HyperLogLog estimates over ints and strings, and for
+     * merging sketches of overlapping inputs.
+     */
+    @Test public void hyperLogLog() {
+        HyperLogLog a = new HyperLogLog();
+        HyperLogLog b = new HyperLogLog();
+        for (int i = 0; i < 60000; i++) {
+            a.add(new IntField(i));
+            b.add(new IntField(i + 40000));
+            // duplicates do not count
+            a.add(new IntField(i));
+        }
+        assertWithin(60000, a.estimate(), 0.06);
+        a.merge(b);
+        assertWithin(100000, a.estimate(), 0.06);
+
+        HyperLogLog s = new HyperLogLog();
+        for (int i = 0; i < 500; i++) {
+            s.add(new StringField("value" + (i % 250), Type.STRING_LEN));
+        }
+        assertWithin(250, s.estimate(), 0.03);
+    }
+
+    /**
+     * Unit test for quantiles of a KLL sketch, on its own and merged.
+     */
+    @Test public void quantileSketch() {
+        ArrayList<Integer> values = new ArrayList<Integer>();
+        for (int i = 0; i < 100000; i++) {
+            values.add(i);
+        }
+        Collections.shuffle(values);
+        QuantileSketch a = new QuantileSketch();
+        QuantileSketch b = new QuantileSketch();
+        for (int i = 0; i < values.size(); i++) {
+            (i % 2 == 0 ? a : b).add(values.get(i));
+        }
+        assertWithin(50000, a.quantile(0.5), 0.03);
+        a.merge(b);
+        assertEquals(100000, a.count());
+        assertWithin(50000, a.quantile(0.5), 0.03);
+        assertWithin(90000, a.quantile(0.9), 0.03);
+        assertWithin(99000, a.quantile(0.99), 0.03);
+    }
+
+    /**
+     * Unit test for the approximate aggregates computed by Aggregate.
+     */
+    @Test public void approximateAggregates() throws Exception {
+        int rows = 20000;
+        int[] data = new int[rows * 2];
+        for (int i = 0; i < rows; i++) {
+            data[2 * i] = i % 2;
+            data[2 * i + 1] = i % 2 == 0 ? i % 5000 : i;
+        }
+        Aggregate agg = new Aggregate(TestUtil.createTupleList(2, data),
+                new int[] { 0 }, new int[] { 1, 1 },
+                new Aggregator.Op[] { Aggregator.Op.COUNT_DISTINCT, Aggregator.Op.MEDIAN });
+        agg.open();
+        while (agg.hasNext()) {
+            Tuple t = agg.next();
+            int group = ((IntField) t.getField(0)).getValue();
+            int distinct = ((IntField) t.getField(1)).getValue();
+            int median = ((IntField) t.getField(2)).getValue();
+            assertWithin(group == 0 ? 2500 : 10000, distinct, 0.06);
+            assertWithin(group == 0 ? 2500 : 10000, median, 0.05);
+        }
+        agg.close();
+    }
+
+    /**
+     * Unit test for approximate aggregates over more groups than fit in the
+     * memory budget: they do not spill, but their groups are charged to the
+     * MemoryManager until the Aggregate is closed.
+     */
+    @Test public void approximateAggregatesOverBudget() throws Exception {
+        Database.resetMemoryManager(10 * HyperLogLog.NUM_REGISTERS);
+        int groups = 100, rows = 2000;
+        int[] data = new int[rows * 2];
+        for (int i = 0; i < rows; i++) {
+            data[2 * i] = i % groups;
+            data[2 * i + 1] = i;
+        }
+        Aggregate agg = new Aggregate(TestUtil.createTupleList(2, data),
+                new int[] { 0 }, new int[] { 1 },
+                new Aggregator.Op[] { Aggregator.Op.COUNT_DISTINCT });
+        agg.open();
+        assertEquals(0, Database.getMemoryManager().available());
+        int seen = 0;
+        while (agg.hasNext()) {
+            Tuple t = agg.next();
+            assertWithin(rows / groups, ((IntField) t.getField(1)).getValue(), 0.1);
+            seen++;
+        }
+        agg.close();
+        assertEquals(groups, seen);
+        assertEquals(Database.getMemoryManager().getCapacity(),
+                Database.getMemoryManager().available());
+    }
+
+    /**
+     * JUnit suite target
+     */
+    public static junit.framework.Test suite() {
+        return new JUnit4TestAdapter(SketchTest.class);
+    }
+}
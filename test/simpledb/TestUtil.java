@@ -149,6 +149,40 @@ public class TestUtil {
         }
     }
 
+    /**
+     * Check that actual returns exactly the tuples in expected, in any
+     *   order. actual is opened, read once and closed, so that operators
+     *   that recompute their result on rewind are not rerun per tuple.
+     * @param width the number of fields in each tuple
+     * @param expected tuple data as for createTupleList; its tuples must be
+     *   distinct
+     */
+    public static void matchAllTuples(int width, int[] expected, DbIterator actual)
+            throws DbException, TransactionAbortedException {
+        ArrayList<Tuple> tuples = new ArrayList<Tuple>();
+        actual.open();
+        while (actual.hasNext())
+            tuples.add(actual.next());
+        actual.close();
+        assertEquals(expected.length / width, tuples.size());
+        TupleIterator read = new TupleIterator(actual.getTupleDesc(), tuples);
+        read.open();
+        matchAllTuples(createTupleList(width, expected), read);
+    }
+
+    /**
+     * @return tuple data for createTupleList of width 2, (key, row number),
+     *   with keys drawn from [minKey, maxKey)
+     */
+    public static int[] randomPairs(Random r, int rows, int minKey, int maxKey) {
+        int[] data = new int[rows * 2];
+        for (int i = 0; i < rows; i++) {
+            data[2 * i] = minKey + r.nextInt(maxKey - minKey);
+            data[2 * i + 1] = i;
+        }
+        return data;
+    }
+
     /**
      * Verifies that the DbIterator has been exhausted of all elements.
      */